@@ -75,7 +75,8 @@ public class ALS {
 
 		this.timer.tic();
 
-		MLSparseMatrix R_train_t = R_train.transpose();
+		// Rt is only read so it's kept in packed csr format if it fits
+		MLSparseMatrix R_train_t = MLSparseMatrixCSR.fromTranspose(R_train);
 		this.timer.toc("obtained R Rt");
 
 		// randomly initialize U and V
@@ -92,14 +93,14 @@ public class ALS {
 		}
 
 		for (int i = 0; i < R_train.getNRows(); i++) {
-			if (R_train.getRow(i) == null) {
+			if (R_train.getRowLength(i) == 0) {
 				// zero out cold start users
 				this.U.setRow(new MLDenseVector(new float[this.params.rank]),
 						i);
 			}
 		}
 		for (int i = 0; i < R_train_t.getNRows(); i++) {
-			if (R_train_t.getRow(i) == null) {
+			if (R_train_t.getRowLength(i) == 0) {
 				// zero out cold start items
 				this.V.setRow(new MLDenseVector(new float[this.params.rank]),
 						i);
@@ -133,17 +134,15 @@ public class ALS {
 		this.V = Vp;
 	}
 
-	private MLDenseVector solve(final int targetIndex,
-			final MLSparseMatrix data, final float[] H, final float[] HH,
+	private MLDenseVector solve(final int[] rowIndexes, final float[] values,
+			final int rowNNZ, final float[] H, final float[] HH,
 			final float[] cache) {
-		int[] rowIndexes = data.getRow(targetIndex).getIndexes();
-		float[] values = data.getRow(targetIndex).getValues();
 
 		float[] HC_minus_IH = new float[this.params.rank * this.params.rank];
 		for (int i = 0; i < this.params.rank; i++) {
 			for (int j = i; j < this.params.rank; j++) {
 				float total = 0;
-				for (int k = 0; k < rowIndexes.length; k++) {
+				for (int k = 0; k < rowNNZ; k++) {
 					int offset = rowIndexes[k] * this.params.rank;
 					total += H[offset + i] * H[offset + j] * values[k];
 				}
@@ -157,7 +156,7 @@ public class ALS {
 		float[] HCp = new float[this.params.rank];
 		for (int i = 0; i < this.params.rank; i++) {
 			float total = 0;
-			for (int k = 0; k < rowIndexes.length; k++) {
+			for (int k = 0; k < rowNNZ; k++) {
 				total += H[rowIndexes[k] * this.params.rank + i]
 						* (1 + this.params.alpha * values[k]);
 			}
@@ -184,17 +183,15 @@ public class ALS {
 		return new MLDenseVector(HCp);
 	}
 
-	private MLDenseVector solve(final int targetIndex,
-			final MLSparseMatrix data, final MLDenseMatrix H, final float[] HH,
+	private MLDenseVector solve(final int[] rowIndexes, final float[] values,
+			final int rowNNZ, final MLDenseMatrix H, final float[] HH,
 			final float[] cache) {
-		int[] rowIndexes = data.getRow(targetIndex).getIndexes();
-		float[] values = data.getRow(targetIndex).getValues();
 
 		float[] HC_minus_IH = new float[this.params.rank * this.params.rank];
 		for (int i = 0; i < this.params.rank; i++) {
 			for (int j = i; j < this.params.rank; j++) {
 				float total = 0;
-				for (int k = 0; k < rowIndexes.length; k++) {
+				for (int k = 0; k < rowNNZ; k++) {
 					total += H.getValue(rowIndexes[k], i)
 							* H.getValue(rowIndexes[k], j) * values[k];
 				}
@@ -208,7 +205,7 @@ public class ALS {
 		float[] HCp = new float[this.params.rank];
 		for (int i = 0; i < this.params.rank; i++) {
 			float total = 0;
-			for (int k = 0; k < rowIndexes.length; k++) {
+			for (int k = 0; k < rowNNZ; k++) {
 				total += H.getValue(rowIndexes[k], i)
 						* (1 + this.params.alpha * values[k]);
 			}
@@ -244,6 +241,12 @@ public class ALS {
 		// float[] cache = new float[cacheSize];
 		MLConcurrentUtils.Async<float[]> cache = new MLConcurrentUtils.Async<>(
 				() -> new float[cacheSize], null);
+		// rows are copied into per thread buffers, getRow() would allocate
+		// and decode dates for csr input
+		MLConcurrentUtils.Async<int[]> indexesBuf =
+				new MLConcurrentUtils.Async<>(() -> new int[0], null);
+		MLConcurrentUtils.Async<float[]> valuesBuf =
+				new MLConcurrentUtils.Async<>(() -> new float[0], null);
 		MLTimer timer = new MLTimer("als", data.getNRows());
 		timer.tic();
 
@@ -279,15 +282,27 @@ public class ALS {
 				timer.tocLoop(count);
 			}
 			int rowIndex = rowIndices[i];
-			if (data.getRow(rowIndex) == null) {
+			int rowNNZ = data.getRowLength(rowIndex);
+			if (rowNNZ == 0) {
 				return;
 			}
+			int[] rowIndexes = indexesBuf.get();
+			float[] values = valuesBuf.get();
+			if (rowIndexes.length < rowNNZ) {
+				rowIndexes = new int[rowNNZ];
+				values = new float[rowNNZ];
+				indexesBuf.set(rowIndexes);
+				valuesBuf.set(values);
+			}
+			data.copyRow(rowIndex, rowIndexes, values, 0);
 
 			MLDenseVector solution;
 			if (useFlat[0] == true) {
-				solution = solve(rowIndex, data, Hflat[0], HHflat, cache.get());
+				solution = solve(rowIndexes, values, rowNNZ, Hflat[0], HHflat,
+						cache.get());
 			} else {
-				solution = solve(rowIndex, data, H, HHflat, cache.get());
+				solution = solve(rowIndexes, values, rowNNZ, H, HHflat,
+						cache.get());
 			}
 
 			W.setRow(solution, rowIndex);
@@ -47,15 +47,35 @@ public abstract class EvaluatorCF {
 			final int rankingSize, final int rowBatchSize) {
 
 		// convenience function
+		return getRankingsNative(Rtrain, rowIndexes, 0, rowIndexes.length,
+				colIndexes, U, V, rankingSize, rowBatchSize);
+	}
+
+	public static FloatElement[][] getRankingsNative(
+			final MLSparseMatrix Rtrain, final int[] rowIndexes,
+			final int rowStart, final int rowEnd, int[] colIndexes,
+			final MLDenseMatrix U, final MLDenseMatrix V,
+			final int rankingSize, final int rowBatchSize) {
+
+		// convenience function, only rowIndexes[rowStart, rowEnd) are ranked
 		float[] Vflat = V.slice(colIndexes).toFlatArray();
-		return getRankingsNative(Rtrain, rowIndexes, colIndexes, U, Vflat,
-				rankingSize, rowBatchSize);
+		return getRankingsNative(Rtrain, rowIndexes, rowStart, rowEnd,
+				colIndexes, U, Vflat, rankingSize, rowBatchSize);
 	}
 
 	public static FloatElement[][] getRankingsNative(
 			final MLSparseMatrix Rtrain, final int[] rowIndexes,
 			final int[] colIndexes, final MLDenseMatrix U, final float[] V,
 			final int rankingSize, final int rowBatchSize) {
+		return getRankingsNative(Rtrain, rowIndexes, 0, rowIndexes.length,
+				colIndexes, U, V, rankingSize, rowBatchSize);
+	}
+
+	public static FloatElement[][] getRankingsNative(
+			final MLSparseMatrix Rtrain, final int[] rowIndexes,
+			final int rowStart, final int rowEnd, final int[] colIndexes,
+			final MLDenseMatrix U, final float[] V, final int rankingSize,
+			final int rowBatchSize) {
 
 		FloatElement[][] rankings = new FloatElement[U.getNRows()][];
 		final int nRowsV = colIndexes.length;
@@ -68,11 +88,11 @@ public abstract class EvaluatorCF {
 
 		final int uBatchSize = Math.min(rowBatchSize,
 				Math.floorDiv(LowLevelRoutines.MAX_ARRAY_SIZE, nRowsV));
-		int nBatch = -Math.floorDiv(-rowIndexes.length, uBatchSize);
+		int nBatch = -Math.floorDiv(-(rowEnd - rowStart), uBatchSize);
 
 		for (int batch = 0; batch < nBatch; batch++) {
-			final int start = batch * uBatchSize;
-			final int end = Math.min(start + uBatchSize, rowIndexes.length);
+			final int start = rowStart + batch * uBatchSize;
+			final int end = Math.min(start + uBatchSize, rowEnd);
 
 			final float[] result = new float[(end - start) * nRowsV];
 			MLDenseMatrix uBatchRows = U.slice(rowIndexes, start, end);
@@ -0,0 +1,123 @@
+package common;
+
+import java.util.stream.IntStream;
+
+/**
+ * Column statistics of a sparse matrix computed in one parallel pass over
+ * the rows. Rows are split into blocks that are reduced into private double
+ * accumulators and merged in block order at the end, so no locks are taken
+ * and results don't depend on thread scheduling. The number of blocks is
+ * capped by a memory budget so very wide matrices fall back to fewer, larger
+ * blocks instead of allocating an accumulator per block.
+ */
+public class MLColStats {
+
+	// total memory for block accumulators
+	private static final long MAX_ACCUMULATOR_BYTES = 256L << 20;
+	private static final int MAX_BLOCKS = 64;
+	private static final int MIN_BLOCK_ROWS = 1_024;
+
+	private MLDenseVector nnz;
+	private MLDenseVector sum;
+	private MLDenseVector norm;
+
+	private MLColStats() {
+	}
+
+	public static MLColStats compute(final MLSparseMatrix matrix,
+			final boolean computeNNZ, final boolean computeSum,
+			final int normP) {
+		// compute requested statistics in one pass, norm is skipped if
+		// normP <= 0
+		final int nRows = matrix.getNRows();
+		final int nCols = matrix.getNCols();
+		final boolean computeNorm = normP > 0;
+		int nStats = (computeNNZ ? 1 : 0) + (computeSum ? 1 : 0)
+				+ (computeNorm ? 1 : 0);
+
+		long blockBytes = Math.max(1L, (long) nCols * nStats * Double.BYTES);
+		int nBlocks = (int) Math.min(MAX_BLOCKS,
+				Math.max(1L, MAX_ACCUMULATOR_BYTES / blockBytes));
+		int maxBlocksByRows = (nRows + MIN_BLOCK_ROWS - 1) / MIN_BLOCK_ROWS;
+		nBlocks = Math.max(1, Math.min(nBlocks, maxBlocksByRows));
+
+		final int nBlocksF = nBlocks;
+		double[][] nnzBlocks = computeNNZ ? new double[nBlocks][] : null;
+		double[][] sumBlocks = computeSum ? new double[nBlocks][] : null;
+		double[][] normBlocks = computeNorm ? new double[nBlocks][] : null;
+		IntStream.range(0, nBlocks).parallel().forEach(block -> {
+			int start = (int) ((long) block * nRows / nBlocksF);
+			int end = (int) ((long) (block + 1) * nRows / nBlocksF);
+			double[] nnzAcc = computeNNZ ? new double[nCols] : null;
+			double[] sumAcc = computeSum ? new double[nCols] : null;
+			double[] normAcc = computeNorm ? new double[nCols] : null;
+			for (int rowIndex = start; rowIndex < end; rowIndex++) {
+				matrix.forEachNonZero(rowIndex, (index, value) -> {
+					if (nnzAcc != null) {
+						nnzAcc[index] += 1;
+					}
+					if (sumAcc != null) {
+						sumAcc[index] += value;
+					}
+					if (normAcc != null) {
+						if (normP == 1) {
+							normAcc[index] += Math.abs(value);
+						} else {
+							normAcc[index] += Math.pow(value, normP);
+						}
+					}
+				});
+			}
+			if (computeNNZ == true) {
+				nnzBlocks[block] = nnzAcc;
+			}
+			if (computeSum == true) {
+				sumBlocks[block] = sumAcc;
+			}
+			if (computeNorm == true) {
+				normBlocks[block] = normAcc;
+			}
+		});
+
+		MLColStats stats = new MLColStats();
+		if (computeNNZ == true) {
+			stats.nnz = merge(nnzBlocks, nCols, 1);
+		}
+		if (computeSum == true) {
+			stats.sum = merge(sumBlocks, nCols, 1);
+		}
+		if (computeNorm == true) {
+			stats.norm = merge(normBlocks, nCols, normP);
+		}
+		return stats;
+	}
+
+	public MLDenseVector getNNZ() {
+		return this.nnz;
+	}
+
+	public MLDenseVector getNorm() {
+		return this.norm;
+	}
+
+	public MLDenseVector getSum() {
+		return this.sum;
+	}
+
+	private static MLDenseVector merge(final double[][] blocks,
+			final int nCols, final int p) {
+		// sum blocks in block order and take p'th root
+		float[] result = new float[nCols];
+		IntStream.range(0, nCols).parallel().forEach(colIndex -> {
+			double total = 0;
+			for (double[] block : blocks) {
+				total += block[colIndex];
+			}
+			if (p != 1) {
+				total = Math.pow(total, 1.0 / p);
+			}
+			result[colIndex] = (float) total;
+		});
+		return new MLDenseVector(result);
+	}
+}
@@ -0,0 +1,140 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * Compact immutable storage for interaction dates. Dates are stored as
+ * offsets from the smallest date using the narrowest of byte, short, int or
+ * long that fits the date range, so track positions within a playlist take
+ * one byte per date and timestamps from a few years take four bytes.
+ * Arrays are never modified after they are encoded so they can be shared
+ * between copies of the same row.
+ */
+public class MLDateArray implements Serializable {
+
+	private static final long serialVersionUID = 4373219645061869235L;
+	private static final long BYTE_RANGE = 0xFFL;
+	private static final long SHORT_RANGE = 0xFFFFL;
+	private static final long INT_RANGE = 0xFFFFFFFFL;
+
+	private long base;
+	private int length;
+	// only one of these is not null depending on date range
+	private byte[] bytes;
+	private short[] shorts;
+	private int[] ints;
+	private long[] longs;
+
+	private MLDateArray(final long baseP, final int lengthP) {
+		this.base = baseP;
+		this.length = lengthP;
+	}
+
+	public void copyTo(final int from, final long[] dest,
+			final int destOffset, final int n) {
+		for (int i = 0; i < n; i++) {
+			dest[destOffset + i] = this.get(from + i);
+		}
+	}
+
+	public static MLDateArray encode(final long[] dates) {
+		if (dates == null) {
+			return null;
+		}
+		return encode(dates, 0, dates.length);
+	}
+
+	public static MLDateArray encode(final long[] dates, final int from,
+			final int to) {
+		// encode dates in [from, to), returns null if dates is null
+		if (dates == null) {
+			return null;
+		}
+
+		long min = 0;
+		long max = 0;
+		if (to > from) {
+			min = dates[from];
+			max = dates[from];
+			for (int i = from + 1; i < to; i++) {
+				if (dates[i] < min) {
+					min = dates[i];
+				} else if (dates[i] > max) {
+					max = dates[i];
+				}
+			}
+		}
+
+		int n = to - from;
+		long range = max - min;
+		if (range < 0 || range > INT_RANGE) {
+			// range doesn't fit into 32 bits, store dates as is
+			MLDateArray array = new MLDateArray(0, n);
+			array.longs = new long[n];
+			System.arraycopy(dates, from, array.longs, 0, n);
+			return array;
+		}
+
+		MLDateArray array = new MLDateArray(min, n);
+		if (range <= BYTE_RANGE) {
+			array.bytes = new byte[n];
+			for (int i = 0; i < n; i++) {
+				array.bytes[i] = (byte) (dates[from + i] - min);
+			}
+		} else if (range <= SHORT_RANGE) {
+			array.shorts = new short[n];
+			for (int i = 0; i < n; i++) {
+				array.shorts[i] = (short) (dates[from + i] - min);
+			}
+		} else {
+			array.ints = new int[n];
+			for (int i = 0; i < n; i++) {
+				array.ints[i] = (int) (dates[from + i] - min);
+			}
+		}
+		return array;
+	}
+
+	public long get(final int index) {
+		if (this.bytes != null) {
+			return this.base + (this.bytes[index] & BYTE_RANGE);
+		} else if (this.shorts != null) {
+			return this.base + (this.shorts[index] & SHORT_RANGE);
+		} else if (this.ints != null) {
+			return this.base + (this.ints[index] & INT_RANGE);
+		} else {
+			return this.longs[index];
+		}
+	}
+
+	public int getBytesPerDate() {
+		if (this.bytes != null) {
+			return Byte.BYTES;
+		} else if (this.shorts != null) {
+			return Short.BYTES;
+		} else if (this.ints != null) {
+			return Integer.BYTES;
+		} else {
+			return Long.BYTES;
+		}
+	}
+
+	public int getLength() {
+		return this.length;
+	}
+
+	public MLDateArray slice(final int from, final int to) {
+		// re-encode [from, to), slices can use a narrower type
+		return encode(this.toArray(from, to));
+	}
+
+	public long[] toArray() {
+		return this.toArray(0, this.length);
+	}
+
+	public long[] toArray(final int from, final int to) {
+		long[] dates = new long[to - from];
+		this.copyTo(from, dates, 0, dates.length);
+		return dates;
+	}
+}
@@ -1,7 +1,6 @@
 package common;
 
 import java.io.Serializable;
-import java.util.Map;
 import java.util.stream.IntStream;
 
 public abstract class MLFeatureTransform implements Serializable {
@@ -46,8 +45,9 @@ public abstract class MLFeatureTransform implements Serializable {
 
 	public static class ColSelectorTransform extends MLFeatureTransform {
 
-		private static final long serialVersionUID = -4544414355983339509L;
-		private Map<Integer, Integer> selectedColMap;
+		private static final long serialVersionUID = -2617390461577083215L;
+		// old to new column index, -1 if column is removed
+		private int[] selectedColMap;
 		private int nColsSelected;
 		private int nnzCutOff;
 
@@ -64,7 +64,7 @@ public abstract class MLFeatureTransform implements Serializable {
 
 			// calculate new ncols
 			this.nColsSelected = 0;
-			for (Integer index : selectedColMap.values()) {
+			for (int index : this.selectedColMap) {
 				if (this.nColsSelected < (index + 1)) {
 					this.nColsSelected = index + 1;
 				}
@@ -76,10 +76,11 @@ public abstract class MLFeatureTransform implements Serializable {
 
 		@Override
 		public String[] applyFeatureName(final String[] featureNames) {
-			String[] selectedFeatNames = new String[this.selectedColMap.size()];
-			for (int i = 0; i < featureNames.length; i++) {
-				Integer newIndex = this.selectedColMap.get(i);
-				if (newIndex != null) {
+			String[] selectedFeatNames = new String[this.nColsSelected];
+			for (int i = 0; i < featureNames.length
+					&& i < this.selectedColMap.length; i++) {
+				int newIndex = this.selectedColMap[i];
+				if (newIndex >= 0) {
 					selectedFeatNames[newIndex] = featureNames[i];
 				}
 			}
@@ -0,0 +1,315 @@
+package common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Pull based JSON tokenizer that reads values straight from the character
+ * stream without building an intermediate object tree. Input is assumed to
+ * be well formed, separators are skipped and not validated.
+ */
+public class MLJsonStreamReader implements Closeable {
+
+	public enum Token {
+		BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT;
+	}
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private Reader reader;
+	private char[] buffer;
+	private int pos;
+	private int limit;
+	private StringBuilder builder;
+
+	public MLJsonStreamReader(final Reader readerP) {
+		this.reader = readerP;
+		this.buffer = new char[BUFFER_SIZE];
+		this.pos = 0;
+		this.limit = 0;
+		this.builder = new StringBuilder();
+	}
+
+	public void beginArray() throws IOException {
+		this.expect('[');
+	}
+
+	public void beginObject() throws IOException {
+		this.expect('{');
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.reader.close();
+	}
+
+	public void endArray() throws IOException {
+		this.expect(']');
+	}
+
+	public void endObject() throws IOException {
+		this.expect('}');
+	}
+
+	public boolean hasNext() throws IOException {
+		Token token = this.peek();
+		return token != Token.END_OBJECT && token != Token.END_ARRAY
+				&& token != Token.END_DOCUMENT;
+	}
+
+	public boolean nextBoolean() throws IOException {
+		String literal = this.nextLiteral();
+		if (literal.equals("true") == true) {
+			return true;
+		} else if (literal.equals("false") == true) {
+			return false;
+		}
+		throw new IllegalStateException("expected boolean got " + literal);
+	}
+
+	public double nextDouble() throws IOException {
+		return Double.parseDouble(this.nextLiteral());
+	}
+
+	public int nextInt() throws IOException {
+		return (int) this.nextLong();
+	}
+
+	public long nextLong() throws IOException {
+		String literal = this.nextLiteral();
+		try {
+			return Long.parseLong(literal);
+		} catch (NumberFormatException e) {
+			return (long) Double.parseDouble(literal);
+		}
+	}
+
+	public String nextName() throws IOException {
+		if (this.peek() != Token.STRING) {
+			throw new IllegalStateException("expected name at " + this.pos);
+		}
+		return this.readString();
+	}
+
+	public void nextNull() throws IOException {
+		String literal = this.nextLiteral();
+		if (literal.equals("null") == false) {
+			throw new IllegalStateException("expected null got " + literal);
+		}
+	}
+
+	/**
+	 * Returns string values as is, numbers and booleans as their literal text
+	 * and null for JSON null.
+	 */
+	public String nextString() throws IOException {
+		switch (this.peek()) {
+			case STRING:
+				return this.readString();
+
+			case NUMBER:
+			case BOOLEAN:
+				return this.nextLiteral();
+
+			case NULL:
+				this.nextLiteral();
+				return null;
+
+			default:
+				throw new IllegalStateException(
+						"expected string at " + this.pos);
+		}
+	}
+
+	public Token peek() throws IOException {
+		if (this.skipSeparators() == false) {
+			return Token.END_DOCUMENT;
+		}
+
+		char c = this.buffer[this.pos];
+		switch (c) {
+			case '{':
+				return Token.BEGIN_OBJECT;
+			case '}':
+				return Token.END_OBJECT;
+			case '[':
+				return Token.BEGIN_ARRAY;
+			case ']':
+				return Token.END_ARRAY;
+			case '"':
+				return Token.STRING;
+			case 't':
+			case 'f':
+				return Token.BOOLEAN;
+			case 'n':
+				return Token.NULL;
+			default:
+				return Token.NUMBER;
+		}
+	}
+
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			switch (this.peek()) {
+				case BEGIN_OBJECT:
+				case BEGIN_ARRAY:
+					this.pos++;
+					depth++;
+					break;
+
+				case END_OBJECT:
+				case END_ARRAY:
+					this.pos++;
+					depth--;
+					break;
+
+				case STRING:
+					this.skipString();
+					break;
+
+				case END_DOCUMENT:
+					return;
+
+				default:
+					this.nextLiteral();
+					break;
+			}
+		} while (depth > 0);
+	}
+
+	private void expect(final char c) throws IOException {
+		if (this.skipSeparators() == false || this.buffer[this.pos] != c) {
+			throw new IllegalStateException(
+					"expected '" + c + "' at " + this.pos);
+		}
+		this.pos++;
+	}
+
+	private boolean fill() throws IOException {
+		this.pos = 0;
+		this.limit = this.reader.read(this.buffer, 0, this.buffer.length);
+		if (this.limit <= 0) {
+			this.limit = 0;
+			return false;
+		}
+		return true;
+	}
+
+	private String nextLiteral() throws IOException {
+		if (this.skipSeparators() == false) {
+			throw new IllegalStateException("unexpected end of document");
+		}
+
+		this.builder.setLength(0);
+		while (true) {
+			if (this.pos == this.limit && this.fill() == false) {
+				break;
+			}
+			char c = this.buffer[this.pos];
+			if (c == ',' || c == '}' || c == ']' || c == ':' || c <= ' ') {
+				break;
+			}
+			this.builder.append(c);
+			this.pos++;
+		}
+		return this.builder.toString();
+	}
+
+	private char readEscape() throws IOException {
+		char c = this.readChar();
+		switch (c) {
+			case 'b':
+				return '\b';
+			case 'f':
+				return '\f';
+			case 'n':
+				return '\n';
+			case 'r':
+				return '\r';
+			case 't':
+				return '\t';
+			case 'u':
+				int code = 0;
+				for (int i = 0; i < 4; i++) {
+					int digit = Character.digit(this.readChar(), 16);
+					if (digit < 0) {
+						throw new IllegalStateException(
+								"invalid unicode escape at " + this.pos);
+					}
+					code = (code << 4) | digit;
+				}
+				// surrogate pairs come as two consecutive escapes and are
+				// joined by appending both chars
+				return (char) code;
+			default:
+				// quote, backslash and slash map to themselves
+				return c;
+		}
+	}
+
+	private char readChar() throws IOException {
+		if (this.pos == this.limit && this.fill() == false) {
+			throw new IllegalStateException("unexpected end of document");
+		}
+		return this.buffer[this.pos++];
+	}
+
+	private String readString() throws IOException {
+		// skip opening quote
+		this.pos++;
+
+		// fast path: string is fully inside the buffer with no escapes
+		for (int i = this.pos; i < this.limit; i++) {
+			char c = this.buffer[i];
+			if (c == '"') {
+				String value = new String(this.buffer, this.pos, i - this.pos);
+				this.pos = i + 1;
+				return value;
+			} else if (c == '\\') {
+				break;
+			}
+		}
+
+		this.builder.setLength(0);
+		while (true) {
+			char c = this.readChar();
+			if (c == '"') {
+				return this.builder.toString();
+			} else if (c == '\\') {
+				this.builder.append(this.readEscape());
+			} else {
+				this.builder.append(c);
+			}
+		}
+	}
+
+	private boolean skipSeparators() throws IOException {
+		while (true) {
+			if (this.pos == this.limit && this.fill() == false) {
+				return false;
+			}
+			char c = this.buffer[this.pos];
+			if (c == ',' || c == ':' || c <= ' ') {
+				this.pos++;
+			} else {
+				return true;
+			}
+		}
+	}
+
+	private void skipString() throws IOException {
+		// skip opening quote
+		this.pos++;
+		while (true) {
+			char c = this.readChar();
+			if (c == '"') {
+				return;
+			} else if (c == '\\') {
+				this.readChar();
+			}
+		}
+	}
+
+}
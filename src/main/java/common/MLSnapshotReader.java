@@ -0,0 +1,311 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+/**
+ * Reads snapshots written by {@link MLSnapshotWriter} through memory mapped
+ * windows of the file, CSR sections of sparse matrices are mapped directly
+ * and split into rows in parallel.
+ */
+public class MLSnapshotReader implements Closeable {
+
+	private static final long WINDOW_SIZE = 1L << 26;
+	// max bytes mapped at once when splitting CSR sections into rows
+	private static final long SECTION_SIZE = 1L << 30;
+
+	private FileChannel channel;
+	private long fileSize;
+	private MappedByteBuffer window;
+	private long windowStart;
+	private long position;
+
+	public MLSnapshotReader(final String inFile) throws IOException {
+		this.channel = FileChannel.open(Paths.get(inFile),
+				StandardOpenOption.READ);
+		this.fileSize = this.channel.size();
+		this.position = 0;
+
+		int magic = this.readInt();
+		int version = this.readInt();
+		if (magic != MLSnapshotWriter.MAGIC) {
+			throw new IllegalStateException("not a snapshot file " + inFile);
+		}
+		if (version != MLSnapshotWriter.VERSION) {
+			throw new IllegalStateException(
+					"unsupported snapshot version " + version);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.window = null;
+		this.channel.close();
+	}
+
+	public boolean readBoolean() throws IOException {
+		return this.readByte() != 0;
+	}
+
+	public byte readByte() throws IOException {
+		return this.ensure(1).get();
+	}
+
+	public byte[] readBytes() throws IOException {
+		int length = this.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] values = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			int chunk = (int) Math.min(length - offset, WINDOW_SIZE);
+			this.ensure(chunk).get(values, offset, chunk);
+			offset += chunk;
+		}
+		return values;
+	}
+
+	public float[] readFloatArray() throws IOException {
+		int length = this.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		float[] values = new float[length];
+		int offset = 0;
+		while (offset < length) {
+			int chunk = (int) Math.min(length - offset,
+					WINDOW_SIZE / Float.BYTES);
+			ByteBuffer buffer = this.ensure(chunk * Float.BYTES);
+			buffer.asFloatBuffer().get(values, offset, chunk);
+			buffer.position(buffer.position() + chunk * Float.BYTES);
+			offset += chunk;
+		}
+		return values;
+	}
+
+	public int readInt() throws IOException {
+		return this.ensure(Integer.BYTES).getInt();
+	}
+
+	public int[] readIntArray() throws IOException {
+		int length = this.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		int[] values = new int[length];
+		int offset = 0;
+		while (offset < length) {
+			int chunk = (int) Math.min(length - offset,
+					WINDOW_SIZE / Integer.BYTES);
+			ByteBuffer buffer = this.ensure(chunk * Integer.BYTES);
+			buffer.asIntBuffer().get(values, offset, chunk);
+			buffer.position(buffer.position() + chunk * Integer.BYTES);
+			offset += chunk;
+		}
+		return values;
+	}
+
+	public long readLong() throws IOException {
+		return this.ensure(Long.BYTES).getLong();
+	}
+
+	public long[] readLongArray() throws IOException {
+		int length = this.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		long[] values = new long[length];
+		int offset = 0;
+		while (offset < length) {
+			int chunk = (int) Math.min(length - offset,
+					WINDOW_SIZE / Long.BYTES);
+			ByteBuffer buffer = this.ensure(chunk * Long.BYTES);
+			buffer.asLongBuffer().get(values, offset, chunk);
+			buffer.position(buffer.position() + chunk * Long.BYTES);
+			offset += chunk;
+		}
+		return values;
+	}
+
+	public MLSparseMatrix readMatrix() throws IOException {
+		byte type = this.readByte();
+		switch (type) {
+			case MLSnapshotWriter.MATRIX_NULL:
+				return null;
+
+			case MLSnapshotWriter.MATRIX_FLAT: {
+				int nCols = this.readInt();
+				int[] indexes = this.readIntArray();
+				float[] values = this.readFloatArray();
+				return new MLSparseMatrixFlat(indexes, values, nCols);
+			}
+
+			case MLSnapshotWriter.MATRIX_AOO: {
+				int nCols = this.readInt();
+				boolean hasDates = this.readBoolean();
+				int[] rowLengths = this.readIntArray();
+				long[] rowPtr = this.readLongArray();
+				long nnz = this.readLong();
+
+				MLSparseVector[] rows = new MLSparseVector[rowLengths.length];
+				IntStream.range(0, rows.length).parallel().forEach(i -> {
+					if (rowLengths[i] < 0) {
+						return;
+					}
+					int rowNNZ = (int) (rowPtr[i + 1] - rowPtr[i]);
+					if (rowNNZ == 0) {
+						rows[i] = new MLSparseVector(null, null, null,
+								rowLengths[i]);
+					} else {
+						rows[i] = new MLSparseVector(new int[rowNNZ],
+								new float[rowNNZ],
+								null, rowLengths[i]);
+					}
+				});
+
+				this.readRowSection(rows, rowPtr, nnz, Integer.BYTES,
+						(row, buffer, offset) -> {
+							IntBuffer view = buffer.asIntBuffer();
+							view.position(offset);
+							view.get(row.getIndexes());
+						});
+				this.readRowSection(rows, rowPtr, nnz, Float.BYTES,
+						(row, buffer, offset) -> {
+							FloatBuffer view = buffer.asFloatBuffer();
+							view.position(offset);
+							view.get(row.getValues());
+						});
+				if (hasDates == true) {
+					this.readRowSection(rows, rowPtr, nnz, Long.BYTES,
+							(row, buffer, offset) -> {
+								LongBuffer view = buffer.asLongBuffer();
+								view.position(offset);
+								long[] dates = new long[row
+										.getIndexes().length];
+								view.get(dates);
+								row.setDates(dates);
+							});
+				}
+				return new MLSparseMatrixAOO(rows, nCols);
+			}
+
+			default:
+				throw new IllegalStateException("unknown matrix type " + type);
+		}
+	}
+
+	public Object readObject() throws IOException {
+		byte[] bytes = this.readBytes();
+		if (bytes == null) {
+			return null;
+		}
+
+		try (ObjectInputStream in = new ObjectInputStream(
+				new ByteArrayInputStream(bytes))) {
+			return in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+
+	public String readString() throws IOException {
+		byte[] bytes = this.readBytes();
+		if (bytes == null) {
+			return null;
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	public String[] readStringArray() throws IOException {
+		int length = this.readInt();
+		if (length < 0) {
+			return null;
+		}
+
+		String[] values = new String[length];
+		for (int i = 0; i < length; i++) {
+			values[i] = this.readString();
+		}
+		return values;
+	}
+
+	private interface RowSectionReader {
+		void read(MLSparseVector row, ByteBuffer buffer, int offset);
+	}
+
+	private ByteBuffer ensure(final int nBytes) throws IOException {
+		long windowEnd = this.windowStart
+				+ (this.window == null ? 0 : this.window.limit());
+		if (this.window == null || this.position < this.windowStart
+				|| this.position + nBytes > windowEnd) {
+			long size = Math.min(Math.max(WINDOW_SIZE, nBytes),
+					this.fileSize - this.position);
+			if (size < nBytes) {
+				throw new IllegalStateException(
+						"unexpected end of snapshot at " + this.position);
+			}
+			this.window = this.channel.map(FileChannel.MapMode.READ_ONLY,
+					this.position, size);
+			this.windowStart = this.position;
+		}
+
+		this.window.position((int) (this.position - this.windowStart));
+		this.position += nBytes;
+		return this.window;
+	}
+
+	private void readRowSection(final MLSparseVector[] rows,
+			final long[] rowPtr, final long nnz, final int elementSize,
+			final RowSectionReader reader) throws IOException {
+		long sectionStart = this.position;
+
+		// map blocks of whole rows and fill rows within a block in parallel
+		int blockStart = 0;
+		while (blockStart < rows.length) {
+			int blockEnd = blockStart + 1;
+			while (blockEnd < rows.length
+					&& (rowPtr[blockEnd + 1] - rowPtr[blockStart])
+							* elementSize <= SECTION_SIZE) {
+				blockEnd++;
+			}
+
+			long blockOffset = rowPtr[blockStart];
+			long blockBytes = (rowPtr[blockEnd] - blockOffset) * elementSize;
+			if (blockBytes > 0) {
+				ByteBuffer block = this.channel.map(
+						FileChannel.MapMode.READ_ONLY,
+						sectionStart + blockOffset * elementSize, blockBytes);
+				IntStream.range(blockStart, blockEnd).parallel()
+						.forEach(i -> {
+							MLSparseVector row = rows[i];
+							if (row == null || row.getIndexes() == null) {
+								return;
+							}
+							reader.read(row, block.duplicate(),
+									(int) (rowPtr[i] - blockOffset));
+						});
+			}
+			blockStart = blockEnd;
+		}
+
+		this.position = sectionStart + nnz * elementSize;
+	}
+
+}
@@ -0,0 +1,327 @@
+package common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes the binary snapshot format read back by {@link MLSnapshotReader}.
+ * Values are written sequentially in big endian order, arrays are prefixed
+ * by their length and sparse matrices are stored as CSR arrays.
+ * <p>
+ * NOTE: data goes to a temporary file next to the target which replaces
+ * the target only in {@link #commit()}, so a crash while writing never
+ * leaves a partial snapshot behind. Closing without commit() discards it.
+ */
+public class MLSnapshotWriter implements Closeable {
+
+	public static final int MAGIC = 0x4D4C5353;
+	public static final int VERSION = 4;
+
+	public static final byte MATRIX_NULL = 0;
+	public static final byte MATRIX_AOO = 1;
+	public static final byte MATRIX_FLAT = 2;
+
+	private static final int BUFFER_SIZE = 1 << 23;
+
+	private Path outFile;
+	private Path tmpFile;
+	private boolean committed;
+	private FileChannel channel;
+	private ByteBuffer buffer;
+
+	public MLSnapshotWriter(final String outFileP) throws IOException {
+		this.outFile = Paths.get(outFileP);
+		this.tmpFile = Paths.get(outFileP + ".tmp");
+		this.committed = false;
+		this.channel = FileChannel.open(this.tmpFile,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+		this.writeInt(MAGIC);
+		this.writeInt(VERSION);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (this.committed == true) {
+			return;
+		}
+		// not committed, drop partial data
+		try {
+			this.channel.close();
+		} finally {
+			Files.deleteIfExists(this.tmpFile);
+		}
+	}
+
+	public void commit() throws IOException {
+		// make data durable then replace target in one step
+		try {
+			this.flush();
+			this.channel.force(true);
+		} finally {
+			this.channel.close();
+		}
+		Files.move(this.tmpFile, this.outFile,
+				StandardCopyOption.ATOMIC_MOVE);
+		this.committed = true;
+	}
+
+	public void writeBoolean(final boolean value) throws IOException {
+		this.ensure(1);
+		this.buffer.put(value == true ? (byte) 1 : (byte) 0);
+	}
+
+	public void writeByte(final byte value) throws IOException {
+		this.ensure(1);
+		this.buffer.put(value);
+	}
+
+	public void writeBytes(final byte[] values) throws IOException {
+		if (values == null) {
+			this.writeInt(-1);
+			return;
+		}
+		this.writeInt(values.length);
+
+		int offset = 0;
+		while (offset < values.length) {
+			if (this.buffer.remaining() == 0) {
+				this.flush();
+			}
+			int chunk = Math.min(values.length - offset,
+					this.buffer.remaining());
+			this.buffer.put(values, offset, chunk);
+			offset += chunk;
+		}
+	}
+
+	public void writeFloatArray(final float[] values) throws IOException {
+		if (values == null) {
+			this.writeInt(-1);
+			return;
+		}
+		this.writeInt(values.length);
+		this.writeFloats(values, 0, values.length);
+	}
+
+	public void writeFloats(final float[] values, final int offset,
+			final int length) throws IOException {
+		int cur = offset;
+		int end = offset + length;
+		while (cur < end) {
+			if (this.buffer.remaining() < Float.BYTES) {
+				this.flush();
+			}
+			int chunk = Math.min(end - cur,
+					this.buffer.remaining() / Float.BYTES);
+			this.buffer.asFloatBuffer().put(values, cur, chunk);
+			this.buffer.position(this.buffer.position() + chunk * Float.BYTES);
+			cur += chunk;
+		}
+	}
+
+	public void writeInt(final int value) throws IOException {
+		this.ensure(Integer.BYTES);
+		this.buffer.putInt(value);
+	}
+
+	public void writeIntArray(final int[] values) throws IOException {
+		if (values == null) {
+			this.writeInt(-1);
+			return;
+		}
+		this.writeInt(values.length);
+		this.writeInts(values, 0, values.length);
+	}
+
+	public void writeInts(final int[] values, final int offset,
+			final int length) throws IOException {
+		int cur = offset;
+		int end = offset + length;
+		while (cur < end) {
+			if (this.buffer.remaining() < Integer.BYTES) {
+				this.flush();
+			}
+			int chunk = Math.min(end - cur,
+					this.buffer.remaining() / Integer.BYTES);
+			this.buffer.asIntBuffer().put(values, cur, chunk);
+			this.buffer
+					.position(this.buffer.position() + chunk * Integer.BYTES);
+			cur += chunk;
+		}
+	}
+
+	public void writeLong(final long value) throws IOException {
+		this.ensure(Long.BYTES);
+		this.buffer.putLong(value);
+	}
+
+	public void writeLongArray(final long[] values) throws IOException {
+		if (values == null) {
+			this.writeInt(-1);
+			return;
+		}
+		this.writeInt(values.length);
+		this.writeLongs(values, 0, values.length);
+	}
+
+	public void writeLongs(final long[] values, final int offset,
+			final int length) throws IOException {
+		int cur = offset;
+		int end = offset + length;
+		while (cur < end) {
+			if (this.buffer.remaining() < Long.BYTES) {
+				this.flush();
+			}
+			int chunk = Math.min(end - cur,
+					this.buffer.remaining() / Long.BYTES);
+			this.buffer.asLongBuffer().put(values, cur, chunk);
+			this.buffer.position(this.buffer.position() + chunk * Long.BYTES);
+			cur += chunk;
+		}
+	}
+
+	public void writeMatrix(final MLSparseMatrix matrix) throws IOException {
+		if (matrix == null) {
+			this.writeByte(MATRIX_NULL);
+
+		} else if (matrix instanceof MLSparseMatrixFlat) {
+			this.writeByte(MATRIX_FLAT);
+			this.writeInt(matrix.getNCols());
+
+			int nRows = matrix.getNRows();
+			int[] indexes = new int[nRows];
+			float[] values = new float[nRows];
+			for (int i = 0; i < nRows; i++) {
+				MLSparseVector row = matrix.getRow(i, false);
+				if (row == null) {
+					indexes[i] = MLSparseMatrixFlat.MISSING_ROW;
+				} else {
+					indexes[i] = row.getIndexes()[0];
+					values[i] = row.getValues()[0];
+				}
+			}
+			this.writeIntArray(indexes);
+			this.writeFloatArray(values);
+
+		} else if (matrix instanceof MLSparseMatrixAOO) {
+			this.writeByte(MATRIX_AOO);
+			this.writeInt(matrix.getNCols());
+
+			// row lengths are stored separately since vector length is not
+			// always equal to nCols, -1 marks null rows
+			int nRows = matrix.getNRows();
+			int[] rowLengths = new int[nRows];
+			long[] rowPtr = new long[nRows + 1];
+			boolean hasDates = matrix.hasDates();
+			for (int i = 0; i < nRows; i++) {
+				MLSparseVector row = matrix.getRow(i, false);
+				rowPtr[i + 1] = rowPtr[i];
+				if (row == null) {
+					rowLengths[i] = -1;
+					continue;
+				}
+				rowLengths[i] = row.getLength();
+				if (row.getIndexes() != null) {
+					rowPtr[i + 1] += row.getIndexes().length;
+					if (hasDates == true && row.hasDates() == false) {
+						hasDates = false;
+					}
+				}
+			}
+			this.writeBoolean(hasDates);
+			this.writeIntArray(rowLengths);
+			this.writeLongArray(rowPtr);
+
+			// CSR sections
+			this.writeLong(rowPtr[nRows]);
+			for (int i = 0; i < nRows; i++) {
+				MLSparseVector row = matrix.getRow(i, false);
+				if (row != null && row.getIndexes() != null) {
+					this.writeInts(row.getIndexes(), 0,
+							row.getIndexes().length);
+				}
+			}
+			for (int i = 0; i < nRows; i++) {
+				MLSparseVector row = matrix.getRow(i, false);
+				if (row != null && row.getIndexes() != null) {
+					this.writeFloats(row.getValues(), 0,
+							row.getValues().length);
+				}
+			}
+			if (hasDates == true) {
+				for (int i = 0; i < nRows; i++) {
+					MLSparseVector row = matrix.getRow(i, false);
+					if (row != null && row.getIndexes() != null) {
+						long[] dates = row.getDates();
+						this.writeLongs(dates, 0, dates.length);
+					}
+				}
+			}
+
+		} else {
+			throw new IllegalArgumentException(
+					"unsupported type " + matrix.getClass().getName());
+		}
+	}
+
+	public void writeObject(final Serializable object) throws IOException {
+		if (object == null) {
+			this.writeBytes(null);
+			return;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(object);
+		}
+		this.writeBytes(bytes.toByteArray());
+	}
+
+	public void writeString(final String value) throws IOException {
+		if (value == null) {
+			this.writeBytes(null);
+		} else {
+			this.writeBytes(value.getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	public void writeStringArray(final String[] values) throws IOException {
+		if (values == null) {
+			this.writeInt(-1);
+			return;
+		}
+		this.writeInt(values.length);
+		for (String value : values) {
+			this.writeString(value);
+		}
+	}
+
+	private void ensure(final int nBytes) throws IOException {
+		if (this.buffer.remaining() < nBytes) {
+			this.flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		this.buffer.flip();
+		while (this.buffer.hasRemaining() == true) {
+			this.channel.write(this.buffer);
+		}
+		this.buffer.clear();
+	}
+
+}
@@ -0,0 +1,154 @@
+package common;
+
+import java.util.Arrays;
+
+/**
+ * Sparse accumulator for building one sparse row at a time. Values are
+ * accumulated into a dense scratch array while the touched indexes are
+ * tracked, so extracting and resetting the row only costs the number of
+ * touched indexes instead of the full row length. Accumulators are not
+ * thread safe and are meant to be kept per thread and reused.
+ */
+public class MLSparseAccumulator {
+
+	private float[] values;
+	private boolean[] used;
+	private int[] touched;
+	private int nTouched;
+
+	public MLSparseAccumulator(final int lengthP) {
+		this.values = new float[lengthP];
+		this.used = new boolean[lengthP];
+		this.touched = new int[lengthP];
+		this.nTouched = 0;
+	}
+
+	public void add(final int index, final float value) {
+		if (this.used[index] == false) {
+			this.used[index] = true;
+			this.touched[this.nTouched] = index;
+			this.nTouched++;
+		}
+		this.values[index] += value;
+	}
+
+	public void addRow(final float scale, final MLSparseVector row) {
+		// accumulate scale * row
+		int[] indexes = row.getIndexes();
+		float[] rowValues = row.getValues();
+		for (int i = 0; i < indexes.length; i++) {
+			this.add(indexes[i], scale * rowValues[i]);
+		}
+	}
+
+	public int getLength() {
+		return this.values.length;
+	}
+
+	public int getNTouched() {
+		return this.nTouched;
+	}
+
+	public void reset() {
+		for (int i = 0; i < this.nTouched; i++) {
+			int index = this.touched[i];
+			this.values[index] = 0;
+			this.used[index] = false;
+		}
+		this.nTouched = 0;
+	}
+
+	private int selectTopK(final int[] selected, final int nSelected,
+			final int topK) {
+		// keep topK largest values in a min heap, returns heap size
+		int heapSize = 0;
+		for (int i = 0; i < nSelected; i++) {
+			int index = selected[i];
+			float value = this.values[index];
+			if (heapSize < topK) {
+				// sift up
+				int pos = heapSize;
+				heapSize++;
+				while (pos > 0) {
+					int parent = (pos - 1) >>> 1;
+					int parentIndex = selected[parent];
+					if (smaller(value, index, this.values[parentIndex],
+							parentIndex) == false) {
+						break;
+					}
+					selected[pos] = parentIndex;
+					pos = parent;
+				}
+				selected[pos] = index;
+
+			} else if (smaller(this.values[selected[0]], selected[0], value,
+					index) == true) {
+				// replace smallest and sift down
+				int pos = 0;
+				while (true) {
+					int child = 2 * pos + 1;
+					if (child >= heapSize) {
+						break;
+					}
+					int childIndex = selected[child];
+					if (child + 1 < heapSize && smaller(
+							this.values[selected[child + 1]],
+							selected[child + 1], this.values[childIndex],
+							childIndex) == true) {
+						child++;
+						childIndex = selected[child];
+					}
+					if (smaller(this.values[childIndex], childIndex, value,
+							index) == false) {
+						break;
+					}
+					selected[pos] = childIndex;
+					pos = child;
+				}
+				selected[pos] = index;
+			}
+		}
+		return heapSize;
+	}
+
+	private static boolean smaller(final float value1, final int index1,
+			final float value2, final int index2) {
+		// ties are broken in favour of the lower index
+		if (value1 != value2) {
+			return value1 < value2;
+		}
+		return index1 > index2;
+	}
+
+	public MLSparseVector toSparse(final int length, final int topK) {
+		// extract accumulated row and reset, zeros are dropped and only
+		// topK largest values are kept if topK > 0
+		int nSelected = 0;
+		int[] selected = new int[this.nTouched];
+		for (int i = 0; i < this.nTouched; i++) {
+			int index = this.touched[i];
+			if (this.values[index] != 0) {
+				selected[nSelected] = index;
+				nSelected++;
+			}
+		}
+		if (topK > 0 && nSelected > topK) {
+			nSelected = this.selectTopK(selected, nSelected, topK);
+		}
+
+		if (nSelected == 0) {
+			this.reset();
+			return new MLSparseVector(null, null, null, length);
+		}
+
+		int[] indexes = Arrays.copyOf(selected, nSelected);
+		Arrays.sort(indexes);
+		float[] rowValues = new float[nSelected];
+		for (int i = 0; i < nSelected; i++) {
+			rowValues[i] = this.values[indexes[i]];
+		}
+		this.reset();
+		return new MLSparseVector(indexes, rowValues, null, length);
+	}
+
+}
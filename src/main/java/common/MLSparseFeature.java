@@ -1,12 +1,13 @@
 package common;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 import common.MLTextTransform.MLTextInput;
 
@@ -16,9 +17,17 @@ public class MLSparseFeature implements Serializable {
 
     private MLSparseMatrix featMatrix;
     private MLSparseMatrix featMatrixTrans;
-    private Map<String, Integer> catToIndex;
-    private Map<Integer, String> indexToCat;
-    private AtomicInteger curCatIndex;
+    // category to index dictionary, indexes are contiguous from 0
+    private MLStringDictionary cats;
+    // first (row << 32 | position in row) where each category was seen,
+    // used to make category indexes independent of row processing order
+    private Map<Integer, Long> catFirstSeen;
+    // true if category maps are owned by another feature
+    private boolean sharedCats;
+    // first row and category index added by startAppend(), -1 if not
+    // appending
+    private int appendRowStart = -1;
+    private int appendCatStart;
     // NOTE: last transform in this sequence must tokenize text
     private MLTextTransform[] textTransforms;
     private MLFeatureTransform[] featTransforms;
@@ -29,15 +38,18 @@ public class MLSparseFeature implements Serializable {
     private transient MLSparseMatrix featMatrixCache;
     private transient MLSparseMatrix featMatrixTransCache;
 
+    private MLSparseFeature() {
+        // used by readSnapshot()
+    }
+
     public <T extends MLSparseMatrix> MLSparseFeature(final int nRowsP,
                                                       final MLTextTransform[] textTransformsP,
                                                       final MLFeatureTransform[] featTransformsP, final Class<T> typeP) {
         this.nRows = nRowsP;
         this.type = typeP;
 
-        this.catToIndex = new HashMap<String, Integer>();
-        this.indexToCat = new HashMap<Integer, String>();
-        this.curCatIndex = new AtomicInteger(-1);
+        this.cats = new MLStringDictionary();
+        this.catFirstSeen = new ConcurrentHashMap<Integer, Long>();
 
         this.textTransforms = textTransformsP;
         this.featTransforms = featTransformsP;
@@ -52,10 +64,11 @@ public class MLSparseFeature implements Serializable {
                                                       final MLSparseFeature anotherFeature) {
         this(nRowsP, textTransformsP, transformsP, typeP);
 
-        // share category maps with another feature
-        this.indexToCat = anotherFeature.indexToCat;
-        this.catToIndex = anotherFeature.catToIndex;
-        this.curCatIndex = anotherFeature.curCatIndex;
+        // share category maps with another feature, shared categories are
+        // owned by the other feature and never re-sorted here
+        this.cats = anotherFeature.cats;
+        this.catFirstSeen = null;
+        this.sharedCats = true;
     }
 
     public <T extends MLSparseMatrix> MLSparseFeature(
@@ -109,8 +122,8 @@ public class MLSparseFeature implements Serializable {
 
         if (this.textTransforms == null) {
             // no transforms so treat as category
-            Integer index = this.getCatIndex(text);
-            if (index == null) {
+            int index = this.getCatIndex(text, getCatKey(rowIndex, 0));
+            if (index < 0) {
                 this.featMatrix.setRow(null, rowIndex);
                 return;
             }
@@ -121,7 +134,7 @@ public class MLSparseFeature implements Serializable {
                         rowIndex);
             } else {
                 this.featMatrix.setRow(new MLSparseVector(new int[]{index},
-                                new float[]{1}, null, this.catToIndex.size()),
+                                new float[]{1}, null, this.cats.size()),
                         rowIndex);
             }
 
@@ -143,7 +156,7 @@ public class MLSparseFeature implements Serializable {
 
     public void addRow(final int rowIndex, final String[] cats) {
         // map values to indexes and add sparse row to matrix
-        MLSparseVector sparse = this.getFeatVector(cats);
+        MLSparseVector sparse = this.getFeatVector(cats, rowIndex);
         if (sparse.getIndexes() != null) {
             this.featMatrix.setRow(sparse, rowIndex);
         } else {
@@ -151,19 +164,31 @@ public class MLSparseFeature implements Serializable {
         }
     }
 
+    private void clearTextCaches() {
+        // text caches are only useful while rows are being added
+        if (this.textTransforms != null) {
+            for (MLTextTransform textTransform : this.textTransforms) {
+                textTransform.clearCache();
+            }
+        }
+    }
+
     public void finalizeFeature(final boolean preserveOrig) {
         // NOTE: this fn must be called before feature can be used
+        this.clearTextCaches();
+
+        // rows can be added in any order so re-assign category indexes in
+        // order of first appearance
+        if (this.inInfMode.get() == false && this.catFirstSeen != null) {
+            this.sortCategories(0, 0);
+            this.catFirstSeen = null;
+        }
 
         // infer nCols
         this.featMatrix.inferAndSetNCols();
 
         // this is necessary for features with shared cat maps
-        int nColsCat = 0;
-        for (Integer index : this.catToIndex.values()) {
-            if (nColsCat < (index + 1)) {
-                nColsCat = index + 1;
-            }
-        }
+        int nColsCat = this.cats.size();
         if (this.featMatrix.getNCols() < nColsCat) {
             this.featMatrix.setNCols(nColsCat);
         }
@@ -190,6 +215,56 @@ public class MLSparseFeature implements Serializable {
         this.inInfMode.set(true);
     }
 
+    public void finishAppend() {
+        // NOTE: must be called after all rows added since startAppend()
+        if (this.appendRowStart < 0) {
+            throw new IllegalStateException(
+                    "feature is not in append mode, call startAppend()");
+        }
+        this.clearTextCaches();
+
+        // new categories are ordered by first appearance after all
+        // existing ones, existing indexes are never changed
+        if (this.catFirstSeen != null) {
+            this.sortCategories(this.appendCatStart, this.appendRowStart);
+            this.catFirstSeen = null;
+        }
+
+        int nColsCat = this.cats.size();
+        if (this.featMatrix.getNCols() < nColsCat) {
+            this.featMatrix.setNCols(nColsCat);
+        }
+
+        // transform new rows with the already fitted transforms
+        if (this.featMatrixTrans != this.featMatrix
+                || this.featTransforms != null) {
+            IntStream.range(this.appendRowStart, this.nRows).parallel()
+                    .forEach(rowIndex -> {
+                        MLSparseVector row = this.featMatrix.getRow(rowIndex,
+                                false);
+                        if (row == null || row.getIndexes() == null) {
+                            this.featMatrixTrans.setRow(null, rowIndex);
+                            return;
+                        }
+
+                        if (this.featMatrixTrans != this.featMatrix) {
+                            row = row.deepCopy();
+                        }
+                        if (this.featTransforms != null) {
+                            for (MLFeatureTransform transform : this.featTransforms) {
+                                transform.applyInference(row);
+                            }
+                        }
+                        if (row.getIndexes() == null) {
+                            this.featMatrixTrans.setRow(null, rowIndex);
+                        } else {
+                            this.featMatrixTrans.setRow(row, rowIndex);
+                        }
+                    });
+        }
+        this.appendRowStart = -1;
+    }
+
     public void finishSerialize() {
         // NOTE: must call this after serialization
         if (this.featMatrix == null) {
@@ -199,21 +274,32 @@ public class MLSparseFeature implements Serializable {
     }
 
 
-    private synchronized Integer getCatIndex(final String cat) {
-        Integer index = this.catToIndex.get(cat);
-        if (index == null) {
-            if (this.inInfMode.get() == false) {
-                index = this.curCatIndex.incrementAndGet();
+    private int getCatIndex(final String cat, final long catKey) {
+        // returns -1 for unseen categories in inference mode
+        int index = this.cats.getIndex(cat);
+        if (index < 0) {
+            if (this.inInfMode.get() == true && this.appendRowStart < 0) {
+                return -1;
+            }
+            index = this.cats.add(cat);
+        }
 
-                this.catToIndex.put(cat, index);
-                this.indexToCat.put(index, cat);
+        Map<Integer, Long> firstSeen = this.catFirstSeen;
+        if (firstSeen != null) {
+            Long seen = firstSeen.get(index);
+            if (seen == null || catKey < seen) {
+                firstSeen.merge(index, catKey, Math::min);
             }
         }
         return index;
     }
 
-    public Map<String, Integer> getCatToIndex() {
-        return this.catToIndex;
+    private static long getCatKey(final int rowIndex, final int pos) {
+        return (((long) rowIndex) << 32) | pos;
+    }
+
+    public String getCat(final int index) {
+        return this.cats.get(index);
     }
 
     public MLSparseVector getFeatInf(final float value) {
@@ -235,10 +321,10 @@ public class MLSparseFeature implements Serializable {
                     "feature is not in inference mode, call finalizeFeature()");
         }
 
-        if (this.indexToCat.size() > 0
-                && dense.getLength() != this.indexToCat.size()) {
+        if (this.cats.size() > 0
+                && dense.getLength() != this.cats.size()) {
             throw new IllegalArgumentException(
-                    "dense.getLength() != this.indexToCat.size()");
+                    "dense.getLength() != this.cats.size()");
         }
 
         // map dense to sparse
@@ -259,10 +345,10 @@ public class MLSparseFeature implements Serializable {
                     "feature is not in inference mode, call finalizeFeature()");
         }
 
-        if (this.indexToCat.size() > 0
-                && sparse.getLength() != this.indexToCat.size()) {
+        if (this.cats.size() > 0
+                && sparse.getLength() != this.cats.size()) {
             throw new IllegalArgumentException(
-                    "dense.getLength() != this.indexToCat.size()");
+                    "dense.getLength() != this.cats.size()");
         }
 
         // apply feature transforms
@@ -334,7 +420,8 @@ public class MLSparseFeature implements Serializable {
 
     public String[] getFeatNames(final String prefix,
                                  final boolean transformed) {
-        if (this.indexToCat.size() == 0) {
+        int nCats = this.cats.size();
+        if (nCats == 0) {
             // numerical feature
             String[] featNames = new String[]{prefix};
             if (transformed == true) {
@@ -345,18 +432,11 @@ public class MLSparseFeature implements Serializable {
             }
             return featNames;
         }
-        int[] keys = new int[this.indexToCat.size()];
-        int cur = 0;
-        for (int key : this.indexToCat.keySet()) {
-            keys[cur] = key;
-            cur++;
-        }
-        Arrays.sort(keys);
 
         // get feature name in the format 'prefix_[cat name]'
-        String[] featNames = new String[keys.length];
-        for (int i = 0; i < keys.length; i++) {
-            featNames[i] = prefix + "_" + this.indexToCat.get(keys[i]).trim()
+        String[] featNames = new String[nCats];
+        for (int i = 0; i < nCats; i++) {
+            featNames[i] = prefix + "_" + this.cats.get(i).trim()
                     .replaceAll("\\s+", "_");
         }
 
@@ -371,20 +451,25 @@ public class MLSparseFeature implements Serializable {
     }
 
     private MLSparseVector getFeatVector(final String cat) {
-        Integer index = this.getCatIndex(cat);
-        if (index == null) {
-            return new MLSparseVector(null, null, null, this.catToIndex.size());
+        int index = this.getCatIndex(cat, Long.MAX_VALUE);
+        if (index < 0) {
+            return new MLSparseVector(null, null, null, this.cats.size());
         } else {
             return new MLSparseVector(new int[]{index}, new float[]{1},
-                    null, this.catToIndex.size());
+                    null, this.cats.size());
         }
     }
 
     private MLSparseVector getFeatVector(final String[] cats) {
+        return this.getFeatVector(cats, Integer.MAX_VALUE);
+    }
+
+    private MLSparseVector getFeatVector(final String[] cats,
+                                         final int rowIndex) {
         TreeMap<Integer, MutableFloat> countMap = new TreeMap<Integer, MutableFloat>();
         for (int i = 0; i < cats.length; i++) {
-            Integer index = this.getCatIndex(cats[i]);
-            if (index == null) {
+            int index = this.getCatIndex(cats[i], getCatKey(rowIndex, i));
+            if (index < 0) {
                 continue;
             }
 
@@ -398,7 +483,7 @@ public class MLSparseFeature implements Serializable {
         }
 
         if (countMap.size() == 0) {
-            new MLSparseVector(null, null, null, this.catToIndex.size());
+            new MLSparseVector(null, null, null, this.cats.size());
         }
 
         int[] indexes = new int[countMap.size()];
@@ -410,15 +495,15 @@ public class MLSparseFeature implements Serializable {
             cur++;
         }
 
-        // NOTE catToIndex.size() can be wrong in non-inference
+        // NOTE cats.size() can be wrong in non-inference
         // mode since we don't know number of categories ahead of
         // time. This is corrected by finalizeFeature().
         return new MLSparseVector(indexes, values, null,
-                this.catToIndex.size());
+                this.cats.size());
     }
 
-    public Map<Integer, String> getIndexToCat() {
-        return this.indexToCat;
+    public int getNCats() {
+        return this.cats.size();
     }
 
     public MLSparseVector getRow(final int rowIndex,
@@ -469,4 +554,193 @@ public class MLSparseFeature implements Serializable {
             // feature is to be used after serialization.
         }
     }
+
+    public static MLSparseFeature readSnapshot(final MLSnapshotReader reader)
+            throws IOException {
+        MLSparseFeature feature = new MLSparseFeature();
+        feature.nRows = reader.readInt();
+        try {
+            feature.type = Class.forName(reader.readString())
+                    .asSubclass(MLSparseMatrix.class);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        feature.inInfMode = new AtomicBoolean(reader.readBoolean());
+        String[] cats = reader.readStringArray();
+        feature.cats = new MLStringDictionary(cats.length);
+        for (String cat : cats) {
+            feature.cats.add(cat);
+        }
+
+        feature.textTransforms = (MLTextTransform[]) reader.readObject();
+        feature.featTransforms = (MLFeatureTransform[]) reader.readObject();
+
+        feature.featMatrix = reader.readMatrix();
+        if (reader.readBoolean() == true) {
+            // transformed matrix is shared with the original
+            feature.featMatrixTrans = feature.featMatrix;
+        } else {
+            feature.featMatrixTrans = reader.readMatrix();
+        }
+        return feature;
+    }
+
+    public synchronized void setCategories(final String[] cats) {
+        // bulk register categories that are already dictionary encoded,
+        // cats[i] gets index i
+        if (this.cats.size() > 0) {
+            throw new IllegalStateException(
+                    "categories can only be set on empty feature");
+        }
+        for (int i = 0; i < cats.length; i++) {
+            if (this.cats.add(cats[i]) != i) {
+                throw new IllegalArgumentException(
+                        "duplicate category " + cats[i]);
+            }
+            if (this.catFirstSeen != null) {
+                // keep given order ahead of anything added later
+                this.catFirstSeen.put(i, (long) (i - cats.length));
+            }
+        }
+    }
+
+    private void sortCategories(final int catStart, final int rowStart) {
+        // only categories with index >= catStart are re-ordered, these can
+        // only appear in rows >= rowStart
+        int nCats = this.cats.size();
+        if (nCats == 0) {
+            return;
+        }
+
+        // order indexes by first appearance
+        Integer[] order = new Integer[nCats - catStart];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = catStart + i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(
+                this.catFirstSeen.getOrDefault(a, Long.MAX_VALUE),
+                this.catFirstSeen.getOrDefault(b, Long.MAX_VALUE)));
+
+        int[] remap = new int[nCats];
+        boolean identity = true;
+        for (int i = 0; i < catStart; i++) {
+            remap[i] = i;
+        }
+        for (int i = 0; i < order.length; i++) {
+            remap[order[i]] = catStart + i;
+            if (order[i] != catStart + i) {
+                identity = false;
+            }
+        }
+        if (identity == false) {
+            // re-insert categories in their new index order
+            MLStringDictionary catsSorted = new MLStringDictionary(nCats);
+            for (int i = 0; i < catStart; i++) {
+                catsSorted.add(this.cats.get(i));
+            }
+            for (int i = 0; i < order.length; i++) {
+                catsSorted.add(this.cats.get(order[i]));
+            }
+            this.cats = catsSorted;
+        }
+
+        // remap and re-sort rows, row length is set to the final number of
+        // categories since it depends on when the row was added
+        final boolean remapRows = identity == false;
+        IntStream.range(0, this.featMatrix.getNRows()).parallel()
+                .forEach(rowIndex -> {
+                    MLSparseVector row = this.featMatrix.getRow(rowIndex,
+                            false);
+                    if (row == null || row.getIndexes() == null) {
+                        return;
+                    }
+                    if (rowIndex < rowStart
+                            && this.featMatrixTrans == this.featMatrix) {
+                        // existing rows were transformed in place
+                        return;
+                    }
+
+                    row.setLength(nCats);
+                    if (remapRows == false || rowIndex < rowStart) {
+                        return;
+                    }
+
+                    int[] indexes = row.getIndexes();
+                    float[] values = row.getValues();
+                    long[] dates = row.getDates();
+                    for (int i = 0; i < indexes.length; i++) {
+                        indexes[i] = remap[indexes[i]];
+                    }
+
+                    // rows are short so insertion sort is enough
+                    for (int i = 1; i < indexes.length; i++) {
+                        int index = indexes[i];
+                        float value = values[i];
+                        long date = dates != null ? dates[i] : 0;
+                        int j = i - 1;
+                        while (j >= 0 && indexes[j] > index) {
+                            indexes[j + 1] = indexes[j];
+                            values[j + 1] = values[j];
+                            if (dates != null) {
+                                dates[j + 1] = dates[j];
+                            }
+                            j--;
+                        }
+                        indexes[j + 1] = index;
+                        values[j + 1] = value;
+                        if (dates != null) {
+                            dates[j + 1] = date;
+                        }
+                    }
+                    if (dates != null) {
+                        // dates are decoded copies so set them back
+                        row.setDates(dates);
+                    }
+                    this.featMatrix.setRow(row, rowIndex);
+                });
+    }
+
+    public void startAppend(final int nRowsNew) {
+        // grow this feature to nRowsNew rows, new rows are added with
+        // addRow() and new categories get indexes after all existing ones
+        if (this.inInfMode.get() == false) {
+            throw new IllegalStateException(
+                    "feature must be finalized before append");
+        }
+        if (nRowsNew < this.nRows) {
+            throw new IllegalArgumentException(
+                    "nRowsNew must be >= " + this.nRows);
+        }
+
+        int nRowsToAdd = nRowsNew - this.nRows;
+        this.featMatrix.addRows(nRowsToAdd);
+        if (this.featMatrixTrans != this.featMatrix) {
+            this.featMatrixTrans.addRows(nRowsToAdd);
+        }
+        this.appendRowStart = this.nRows;
+        this.nRows = nRowsNew;
+
+        if (this.sharedCats == false) {
+            this.appendCatStart = this.cats.size();
+            this.catFirstSeen = new ConcurrentHashMap<Integer, Long>();
+        }
+    }
+
+    public void writeSnapshot(final MLSnapshotWriter writer)
+            throws IOException {
+        writer.writeInt(this.nRows);
+        writer.writeString(this.type.getName());
+        writer.writeBoolean(this.inInfMode.get());
+        writer.writeStringArray(this.cats.toArray());
+
+        writer.writeObject(this.textTransforms);
+        writer.writeObject(this.featTransforms);
+
+        writer.writeMatrix(this.featMatrix);
+        boolean sharedTrans = this.featMatrixTrans == this.featMatrix;
+        writer.writeBoolean(sharedTrans);
+        if (sharedTrans == false) {
+            writer.writeMatrix(this.featMatrixTrans);
+        }
+    }
 }
@@ -2,15 +2,24 @@ package common;
 
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Map;
 import java.util.stream.IntStream;
 
 public interface MLSparseMatrix extends Serializable {
 
+	/**
+	 * Called once for every non zero of a row in column index order.
+	 */
+	@FunctionalInterface
+	public interface NonZeroVisitor {
+
+		public void visit(final int index, final float value);
+	}
+
+	public abstract void addRows(final int nRowsToAdd);
+
 	public abstract void applyColNorm(final MLDenseVector colNorm);
 
-	public abstract void applyColSelector(
-			final Map<Integer, Integer> selectedColMap,
+	public abstract void applyColSelector(final int[] selectedColMap,
 			final int nColsSelected);
 
 	public abstract void applyRowNorm(final MLDenseVector rowNorm);
@@ -56,8 +65,6 @@ public interface MLSparseMatrix extends Serializable {
 
 	public abstract MLDenseVector multRow(final MLSparseVector vector);
 
-	public abstract Map<Integer, Integer> selectCols(final int nnzCutOff);
-
 	public abstract void setNCols(int nCols);
 
 	public abstract void setRow(final MLSparseVector row, final int rowIndex);
@@ -66,6 +73,72 @@ public interface MLSparseMatrix extends Serializable {
 
 	public abstract MLSparseMatrix transpose();
 
+	public default int copyRow(final int rowIndex, final int[] indexes,
+			final float[] values, final int offset) {
+		// copy row into caller buffers starting at offset and return row
+		// nnz, either buffer can be null, buffers must have room for
+		// getRowLength() entries
+		MLSparseVector row = this.getRow(rowIndex);
+		if (row == null || row.getIndexes() == null) {
+			return 0;
+		}
+		int rowNNZ = row.getIndexes().length;
+		if (indexes != null) {
+			System.arraycopy(row.getIndexes(), 0, indexes, offset, rowNNZ);
+		}
+		if (values != null) {
+			System.arraycopy(row.getValues(), 0, values, offset, rowNNZ);
+		}
+		return rowNNZ;
+	}
+
+	public default MLColStats getColStats(final boolean computeNNZ,
+			final boolean computeSum, final int normP) {
+		// several column statistics in one parallel pass
+		return MLColStats.compute(this, computeNNZ, computeSum, normP);
+	}
+
+	public default void forEachNonZero(final int rowIndex,
+			final NonZeroVisitor visitor) {
+		// visit row without null checks, implementations override this to
+		// read straight from their backing arrays
+		MLSparseVector row = this.getRow(rowIndex);
+		if (row == null || row.getIndexes() == null) {
+			return;
+		}
+		int[] indexes = row.getIndexes();
+		float[] values = row.getValues();
+		for (int i = 0; i < indexes.length; i++) {
+			visitor.visit(indexes[i], values[i]);
+		}
+	}
+
+	public default int[] selectCols(final int nnzCutOff) {
+		// map from old to new column index for columns with more than
+		// nnzCutOff non zeros, -1 if column is removed
+		MLDenseVector colNNZ = this.getColNNZ();
+		int[] selectedColMap = new int[this.getNCols()];
+		int newIndex = 0;
+		for (int colIndex = 0; colIndex < selectedColMap.length; colIndex++) {
+			if (colNNZ.getValue(colIndex) > nnzCutOff) {
+				selectedColMap[colIndex] = newIndex;
+				newIndex++;
+			} else {
+				selectedColMap[colIndex] = -1;
+			}
+		}
+		return selectedColMap;
+	}
+
+	public default int getRowLength(final int rowIndex) {
+		// row nnz, 0 for missing rows
+		MLSparseVector row = this.getRow(rowIndex);
+		if (row == null || row.getIndexes() == null) {
+			return 0;
+		}
+		return row.getIndexes().length;
+	}
+
 	public static MLSparseMatrix concatHorizontal(
 			final MLSparseMatrix... matrices) {
 		int nRows = matrices[0].getNRows();
@@ -156,4 +229,43 @@ public interface MLSparseMatrix extends Serializable {
 
 		return new MLSparseMatrixAOO(concatRows, nCols);
 	}
+
+	public static MLSparseMatrix multTopK(final MLSparseMatrix left,
+			final MLSparseMatrix right, final int topK) {
+		// sparse left x right product, rows are accumulated with a per
+		// thread sparse accumulator and only topK largest values are kept
+		// in each row if topK > 0
+		if (left.getNCols() != right.getNRows()) {
+			throw new IllegalArgumentException(
+					"left.getNCols() != right.getNRows()");
+		}
+
+		final int nCols = right.getNCols();
+		MLConcurrentUtils.Async<MLSparseAccumulator> accumulators;
+		accumulators = new MLConcurrentUtils.Async<>(
+				() -> new MLSparseAccumulator(nCols), null);
+		MLSparseVector[] resultRows = new MLSparseVector[left.getNRows()];
+		IntStream.range(0, left.getNRows()).parallel().forEach(i -> {
+			MLSparseVector row = left.getRow(i);
+			if (row == null) {
+				return;
+			}
+
+			MLSparseAccumulator accumulator = accumulators.get();
+			int[] indexes = row.getIndexes();
+			float[] values = row.getValues();
+			for (int j = 0; j < indexes.length; j++) {
+				float scale = values[j];
+				right.forEachNonZero(indexes[j], (index, value) -> accumulator
+						.add(index, scale * value));
+			}
+
+			MLSparseVector resultRow = accumulator.toSparse(nCols, topK);
+			if (resultRow.getIndexes() != null) {
+				resultRows[i] = resultRow;
+			}
+		});
+
+		return new MLSparseMatrixAOO(resultRows, nCols);
+	}
 }
@@ -7,12 +7,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.Arrays;
 import java.util.stream.IntStream;
 
 import com.google.common.util.concurrent.AtomicDoubleArray;
@@ -33,6 +28,12 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 		this.nCols = nColsP;
 	}
 
+	@Override
+	public void addRows(final int nRowsToAdd) {
+		// new rows are appended at the end as nulls, existing rows are kept
+		this.rows = Arrays.copyOf(this.rows, this.rows.length + nRowsToAdd);
+	}
+
 	@Override
 	public void applyColNorm(final MLDenseVector colNorm) {
 		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
@@ -45,22 +46,13 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 	}
 
 	@Override
-	public void applyColSelector(final Map<Integer, Integer> selectedColMap,
+	public void applyColSelector(final int[] selectedColMap,
 			final int nColsSelected) {
-		if (this.nCols == nColsSelected) {
-			boolean noChanges = true;
-			for (Map.Entry<Integer, Integer> entry : selectedColMap
-					.entrySet()) {
-				if (entry.getValue() != entry.getKey()) {
-					noChanges = false;
-					break;
-				}
-			}
-
-			if (noChanges == true) {
-				// nothing to do
-				return;
-			}
+		if (this.nCols == nColsSelected
+				&& MLSparseVector.isIdentity(selectedColMap,
+						this.nCols) == true) {
+			// nothing to do
+			return;
 		}
 
 		// apply column selector in place to this matrix
@@ -75,54 +67,15 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 				return;
 			}
 
-			int[] indexes = row.getIndexes();
-			float[] values = row.getValues();
-			long[] dates = row.getDates();
-
-			// apply column selector in place to this vector
-			List<MLMatrixElement> reindexElms = new ArrayList<MLMatrixElement>(
-					row.getIndexes().length);
-			for (int i = 0; i < indexes.length; i++) {
-				Integer newIndex = selectedColMap.get(indexes[i]);
-				if (newIndex != null) {
-					if (dates != null) {
-						reindexElms.add(new MLMatrixElement(-1, newIndex,
-								values[i], dates[i]));
-					} else {
-						reindexElms.add(new MLMatrixElement(-1, newIndex,
-								values[i], -1));
-					}
-				}
-			}
-
-			if (reindexElms.size() == 0) {
+			// rows can be shared with other matrices so they are replaced
+			// rather than changed
+			MLSparseVector selected = row.selectIndexes(selectedColMap,
+					nColsSelected);
+			if (selected.getIndexes() == null) {
 				this.rows[rowIndex] = null;
-				return;
-			}
-
-			Collections.sort(reindexElms,
-					new MLMatrixElement.ColIndexComparator(false));
-			int[] prunedIndexes = new int[reindexElms.size()];
-			float[] prunedValues = new float[reindexElms.size()];
-			long[] prunedDates = null;
-			if (dates != null) {
-				prunedDates = new long[reindexElms.size()];
-			}
-
-			int cur = 0;
-			for (MLMatrixElement element : reindexElms) {
-
-				prunedIndexes[cur] = element.getColIndex();
-				prunedValues[cur] = element.getValue();
-				if (dates != null) {
-					prunedDates[cur] = element.getDate();
-				}
-				cur++;
+			} else {
+				this.rows[rowIndex] = selected;
 			}
-
-			this.rows[rowIndex] = new MLSparseVector(prunedIndexes,
-					prunedValues, prunedDates, nColsSelected);
-
 		});
 
 		// update matrix nCols
@@ -191,72 +144,18 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 
 	@Override
 	public MLDenseVector getColNNZ() {
-		float[] colNNZ = new float[this.getNCols()];
-		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
-			MLSparseVector row = this.rows[rowIndex];
-			if (row == null) {
-				return;
-			}
-			int[] indexes = row.getIndexes();
-			for (int j = 0; j < indexes.length; j++) {
-				synchronized (colNNZ) {
-					colNNZ[indexes[j]] += 1;
-				}
-			}
-		});
-		return new MLDenseVector(colNNZ);
+		return this.getColStats(true, false, 0).getNNZ();
 	}
 
 	@Override
 	public MLDenseVector getColNorm(final int p) {
 		// compute L^p norm
-		final int nCol = this.getNCols();
-		final float[] colNorm = new float[nCol];
-		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
-			MLSparseVector row = this.rows[rowIndex];
-			if (row == null) {
-				return;
-			}
-
-			float[] values = row.getValues();
-			int[] indexes = row.getIndexes();
-			synchronized (colNorm) {
-				for (int i = 0; i < values.length; i++) {
-					if (p == 1) {
-						colNorm[indexes[i]] += Math.abs(values[i]);
-					} else {
-						colNorm[indexes[i]] += Math.pow(values[i], p);
-					}
-				}
-			}
-		});
-
-		if (p != 1) {
-			for (int i = 0; i < nCol; i++) {
-				// take p'th root
-				colNorm[i] = (float) Math.pow(colNorm[i], 1.0 / p);
-			}
-		}
-		return new MLDenseVector(colNorm);
+		return this.getColStats(false, false, p).getNorm();
 	}
 
 	@Override
 	public MLDenseVector getColSum() {
-		float[] colSum = new float[this.getNCols()];
-		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
-			MLSparseVector row = this.rows[rowIndex];
-			if (row == null) {
-				return;
-			}
-			int[] indexes = row.getIndexes();
-			float[] values = row.getValues();
-			for (int i = 0; i < indexes.length; i++) {
-				synchronized (colSum) {
-					colSum[indexes[i]] += values[i];
-				}
-			}
-		});
-		return new MLDenseVector(colSum);
+		return this.getColStats(false, true, 0).getSum();
 	}
 
 	@Override
@@ -345,7 +244,8 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 	public boolean hasDates() {
 		for (MLSparseVector row : this.rows) {
 			if (row != null) {
-				if (row.getDates() != null && row.getDates().length > 0) {
+				if (row.hasDates() == true
+						&& row.getDateArray().getLength() > 0) {
 					return true;
 
 				} else {
@@ -407,7 +307,7 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 					this.rows[rowIndex] = new MLSparseVector(
 							mergeRow.getIndexes().clone(),
 							mergeRow.getValues().clone(),
-							mergeRow.getDates().clone(), this.getNCols());
+							mergeRow.getDates(), this.getNCols());
 				} else {
 					this.rows[rowIndex] = new MLSparseVector(
 							mergeRow.getIndexes().clone(),
@@ -424,43 +324,7 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 
 	@Override
 	public MLSparseMatrix mult(final MLSparseMatrix another) {
-		if (this.getNCols() != another.getNRows()) {
-			throw new IllegalArgumentException(
-					"this.getNCols() != another.getNRows()");
-		}
-		MLSparseVector[] resultRows = new MLSparseVector[this.getNRows()];
-		IntStream.range(0, this.getNRows()).parallel().forEach(i -> {
-			MLSparseVector row = this.rows[i];
-			if (row == null) {
-				return;
-			}
-
-			float[] resultRow = new float[another.getNCols()];
-			int[] indexes = row.getIndexes();
-			float[] values = row.getValues();
-			for (int j = 0; j < indexes.length; j++) {
-				int index = indexes[j];
-				float value = values[j];
-
-				MLSparseVector rowAnother = another.getRow(index);
-				if (rowAnother == null) {
-					continue;
-				}
-
-				int[] indexesAnother = rowAnother.getIndexes();
-				float[] valuesAnother = rowAnother.getValues();
-				for (int k = 0; k < indexesAnother.length; k++) {
-					resultRow[indexesAnother[k]] += value * valuesAnother[k];
-				}
-			}
-			MLSparseVector resultRowSparse = MLSparseVector
-					.fromDense(new MLDenseVector(resultRow));
-			if (resultRowSparse.getIndexes() != null) {
-				resultRows[i] = resultRowSparse;
-			}
-		});
-
-		return new MLSparseMatrixAOO(resultRows, another.getNCols());
+		return MLSparseMatrix.multTopK(this, another, 0);
 	}
 
 	@Override
@@ -581,23 +445,6 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 		return new MLDenseVector(result);
 	}
 
-	@Override
-	public Map<Integer, Integer> selectCols(int nnzCutOff) {
-		Map<Integer, Integer> selectedColMap = new HashMap<Integer, Integer>(
-				this.nCols);
-
-		MLDenseVector colNNZ = this.getColNNZ();
-		int newIndex = 0;
-		for (int colIndex = 0; colIndex < this.nCols; colIndex++) {
-			if (colNNZ.getValue(colIndex) > nnzCutOff) {
-				selectedColMap.put(colIndex, newIndex);
-				newIndex++;
-			}
-		}
-
-		return selectedColMap;
-	}
-
 	@Override
 	public void setNCols(int nCols) {
 		this.nCols = nCols;
@@ -676,134 +523,95 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 
 	@Override
 	public MLSparseMatrix transpose() {
-		/**
-		 * convert to csr
-		 */
-		final int nnz = (int) this.getNNZ();
-		final int nRows = this.getNRows();
-		final int[] pntrB = new int[nRows];
-		final int[] pntrE = new int[nRows];
-		final int[] jaP = new int[nnz];
-		final float[] aP = new float[nnz];
-		final long[] datesP;
-		final boolean hasDates = this.hasDates();
-		if (hasDates) {
-			datesP = new long[nnz];
-		} else {
-			datesP = null;
+		// transpose directly into rows, offsets are kept per transposed row
+		// so total nnz is not limited to int
+		int nRows = this.getNRows();
+		int nRowsT = this.nCols;
+		long[] rowPtr = new long[nRows + 1];
+		for (int i = 0; i < nRows; i++) {
+			MLSparseVector row = this.rows[i];
+			rowPtr[i + 1] = rowPtr[i]
+					+ (row == null ? 0 : row.getIndexes().length);
 		}
-		{
-			// namespace just for csr creation
-			int cur = 0;
-			int rowNNZ, rowi;
-			MLSparseVector raw;
-			int[] ind;
-			float[] val;
-			long[] dates;
-
-			for (rowi = 0; rowi < this.getNRows(); rowi++) {
-				raw = this.getRow(rowi);
-				if (raw == null) {
+		long nnz = rowPtr[nRows];
+		boolean hasDates = this.hasDates();
+
+		// split rows into chunks with roughly equal nnz, each chunk keeps
+		// its own column histogram
+		int[] chunkStart = MLSparseMatrixBuilder.getTransposeChunks(nRows,
+				nnz, rowIndex -> rowPtr[rowIndex]);
+		int nChunks = chunkStart.length - 1;
+
+		// count nnz in each column per chunk
+		int[][] chunkCounts = new int[nChunks][];
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			int[] counts = new int[nRowsT];
+			for (int i = chunkStart[c]; i < chunkStart[c + 1]; i++) {
+				MLSparseVector row = this.rows[i];
+				if (row == null) {
 					continue;
 				}
-				ind = raw.getIndexes();
-				rowNNZ = ind.length;
-				val = raw.getValues();
-				dates = raw.getDates();
-				pntrB[rowi] = cur;
-				System.arraycopy(ind, 0, jaP, cur, rowNNZ);
-				System.arraycopy(val, 0, aP, cur, rowNNZ);
-				if (hasDates) {
-					System.arraycopy(dates, 0, datesP, cur, rowNNZ);
+				for (int index : row.getIndexes()) {
+					counts[index]++;
 				}
-				cur += rowNNZ;
-				pntrE[rowi] = cur;
 			}
-		}
-		/**
-		 * perform transpose
-		 */
-		final int nnzT = nnz;
-		final int nRowsT = nCols;
-		final int nColsT = nRows;
-		final int[] rowIndexT = new int[nRowsT + 1];
-		final int[] jaPT = new int[nnzT];
-		final float[] aPT = new float[nnzT];
-
-		final long[] datesPT;
-		if (hasDates) {
-			datesPT = new long[nnzT];
-		} else {
-			datesPT = null;
-		}
-
-		// count nnz in each row
-		for (int i = 0; i < nnzT; i++) {
-			rowIndexT[jaP[i]]++;
-		}
+			chunkCounts[c] = counts;
+		});
 
-		// Fill starting point of the previous row to begin tally
-		int r, j;
-		rowIndexT[nRowsT] = nnzT - rowIndexT[nRowsT - 1];
-		for (r = nRowsT - 1; r > 0; r--) {
-			rowIndexT[r] = rowIndexT[r + 1] - rowIndexT[r - 1];
-		}
-		rowIndexT[0] = 0;
-
-		// assign the new columns and values
-		// synchronously tally
-		// this is the place to insert extra values like dates
-		for (int c = 0, i = 0; c < nColsT; c++) {
-			for (; i < pntrE[c]; i++) {
-				r = jaP[i];
-				j = rowIndexT[r + 1]++;
-				jaPT[j] = c;
-				aPT[j] = aP[i];
-				if (hasDates) {
-					datesPT[j] = datesP[i];
+		// allocate transposed rows and turn chunk counts into write
+		// offsets within each transposed row, dates are collected
+		// separately and encoded once each row is complete
+		MLSparseVector[] rowsT = new MLSparseVector[nRowsT];
+		long[][] datesT = new long[hasDates == true ? nRowsT : 0][];
+		IntStream.range(0, nRowsT).parallel().forEach(colIndex -> {
+			int offset = 0;
+			for (int c = 0; c < nChunks; c++) {
+				int count = chunkCounts[c][colIndex];
+				chunkCounts[c][colIndex] = offset;
+				offset += count;
+			}
+			if (offset > 0) {
+				rowsT[colIndex] = new MLSparseVector(new int[offset],
+						new float[offset], null, nRows);
+				if (hasDates == true) {
+					datesT[colIndex] = new long[offset];
 				}
 			}
-		}
-		// CSR3 -> NIST
-		int[] pntrBT = new int[nRowsT];
-		int[] pntrET = new int[nRowsT];
-		int lastActivePtrE = 0;
-		for (int i = 0; i < nRowsT; i++) {
-			if (lastActivePtrE == rowIndexT[i + 1]) {
-				continue;
-			}
-			pntrET[i] = rowIndexT[i + 1];
-			pntrBT[i] = lastActivePtrE;
-			lastActivePtrE = rowIndexT[i + 1];
-		}
+		});
 
-		/**
-		 * consolidate csr (NIST) back to mlsparse
-		 */
-		final MLSparseVector[] rows = new MLSparseVector[nRowsT];
-		IntStream.range(0, nRowsT).parallel().forEach(i -> {
-			int rownnz = pntrET[i] - pntrBT[i];
-			if (rownnz == 0) {
-				return;
-			}
-			int[] rowColInds = new int[rownnz];
-			float[] rowVals = new float[rownnz];
-			long[] rowDates = null;
-			if (datesPT != null) {
-				rowDates = new long[rownnz];
-			}
-			for (int jj = 0, k = pntrBT[i]; jj < rownnz; jj++, k++) {
-				rowColInds[jj] = jaPT[k];
-				rowVals[jj] = aPT[k];
-				if (datesPT != null) {
-					rowDates[jj] = datesPT[k];
+		// scatter each chunk in parallel, chunks are ordered by row so
+		// transposed rows come out sorted
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			int[] cur = chunkCounts[c];
+			for (int rowIndex = chunkStart[c]; rowIndex < chunkStart[c
+					+ 1]; rowIndex++) {
+				MLSparseVector row = this.rows[rowIndex];
+				if (row == null) {
+					continue;
+				}
+				int[] indexes = row.getIndexes();
+				float[] values = row.getValues();
+				boolean rowHasDates = hasDates == true && row.hasDates();
+				for (int i = 0; i < indexes.length; i++) {
+					MLSparseVector rowT = rowsT[indexes[i]];
+					int j = cur[indexes[i]]++;
+					rowT.getIndexes()[j] = rowIndex;
+					rowT.getValues()[j] = values[i];
+					if (rowHasDates == true) {
+						datesT[indexes[i]][j] = row.getDate(i);
+					}
 				}
 			}
-			MLSparseVector rowVec = new MLSparseVector(rowColInds, rowVals,
-					rowDates, nColsT);
-			rows[i] = rowVec;
 		});
-		return new MLSparseMatrixAOO(rows, nColsT);
+		if (hasDates == true) {
+			IntStream.range(0, nRowsT).parallel().forEach(colIndex -> {
+				if (rowsT[colIndex] != null) {
+					rowsT[colIndex].setDates(datesT[colIndex]);
+				}
+			});
+		}
+
+		return new MLSparseMatrixAOO(rowsT, nRows);
 	}
 
 	public static MLSparseMatrix loadFromCSV(final String inFile,
@@ -817,7 +625,9 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 		MLTimer timer = new MLTimer("loadFromCSV");
 		try (BufferedReader reader = new BufferedReader(
 				new FileReader(inFile))) {
-			Map<Integer, MLMatrixElement>[] rowMaps = new Map[nUsers];
+			// duplicate interactions are summed and keep the latest date
+			MLSparseMatrixBuilder builder = new MLSparseMatrixBuilder(nUsers,
+					nItems, csvIndexes[DATE_INDEX] != null, true);
 
 			String line = null;
 			timer.tic();
@@ -836,26 +646,7 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 				if (csvIndexes[DATE_INDEX] != null) {
 					date = Long.parseLong(split[csvIndexes[DATE_INDEX]]);
 				}
-
-				if (rowMaps[userIndex] == null) {
-					rowMaps[userIndex] = new TreeMap<Integer, MLMatrixElement>();
-				}
-
-				Map<Integer, MLMatrixElement> userItemMap = rowMaps[userIndex];
-				MLMatrixElement cur = userItemMap.get(itemIndex);
-				if (cur == null) {
-					userItemMap.put(itemIndex, new MLMatrixElement(userIndex,
-							itemIndex, interaction, date));
-				} else {
-					if (csvIndexes[DATE_INDEX] != null
-							&& date > cur.getDate()) {
-						// store latest date
-						cur.setDate(date);
-					}
-					// increment interaction count
-					float value = cur.getValue() + interaction;
-					cur.setValue(value);
-				}
+				builder.add(userIndex, itemIndex, interaction, date);
 
 				count++;
 				if (count % 5_000_000 == 0) {
@@ -863,34 +654,7 @@ public class MLSparseMatrixAOO implements MLSparseMatrix {
 				}
 			}
 
-			MLSparseVector[] rows = new MLSparseVector[nUsers];
-			IntStream.range(0, nUsers).parallel().forEach(userIndex -> {
-				Map<Integer, MLMatrixElement> userItemMap = rowMaps[userIndex];
-				if (userItemMap == null) {
-					return;
-				}
-
-				int[] indexes = new int[userItemMap.size()];
-				float[] values = new float[userItemMap.size()];
-				long[] dates = null;
-				if (csvIndexes[DATE_INDEX] != null) {
-					dates = new long[userItemMap.size()];
-				}
-				int index = 0;
-				for (Map.Entry<Integer, MLMatrixElement> entry : userItemMap
-						.entrySet()) {
-					indexes[index] = entry.getValue().getColIndex();
-					values[index] = entry.getValue().getValue();
-					if (csvIndexes[DATE_INDEX] != null) {
-						dates[index] = entry.getValue().getDate();
-					}
-					index++;
-				}
-				rows[userIndex] = new MLSparseVector(indexes, values, dates,
-						nItems);
-			});
-
-			return new MLSparseMatrixAOO(rows, nItems);
+			return builder.build();
 		}
 	}
 
@@ -0,0 +1,327 @@
+package common;
+
+import java.util.Arrays;
+import java.util.function.IntToLongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Builds sparse matrices from (row, col, value, date) triples kept in
+ * primitive buffers. Duplicate (row, col) entries are merged by summing
+ * their values, rows are sorted by column index in parallel when the
+ * matrix is built.
+ */
+public class MLSparseMatrixBuilder {
+
+	private static final int INIT_CAPACITY = 1 << 10;
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+	// rows up to this length are sorted with insertion sort
+	private static final int INSERTION_SORT_MAX = 16;
+	// transpose chunks are at least this big so small matrices don't pay
+	// for a histogram per core
+	private static final int MIN_TRANSPOSE_CHUNK_NNZ = 1 << 16;
+
+	private int nRows;
+	private int nCols;
+	private boolean keepLatestDate;
+	private int nnz;
+	private int[] rowIndexes;
+	private int[] colIndexes;
+	private float[] values;
+	// null if triples have no dates
+	private long[] dates;
+
+	public MLSparseMatrixBuilder(final int nRowsP, final int nColsP,
+			final boolean withDates, final boolean keepLatestDateP) {
+		// when duplicates are merged the latest date is kept if
+		// keepLatestDateP is true and the earliest date otherwise
+		this.nRows = nRowsP;
+		this.nCols = nColsP;
+		this.keepLatestDate = keepLatestDateP;
+		this.nnz = 0;
+		this.rowIndexes = new int[INIT_CAPACITY];
+		this.colIndexes = new int[INIT_CAPACITY];
+		this.values = new float[INIT_CAPACITY];
+		if (withDates == true) {
+			this.dates = new long[INIT_CAPACITY];
+		}
+	}
+
+	public void add(final int rowIndex, final int colIndex, final float value) {
+		this.add(rowIndex, colIndex, value, 0);
+	}
+
+	public void add(final int rowIndex, final int colIndex, final float value,
+			final long date) {
+		// NOTE: not thread safe
+		if (rowIndex < 0 || rowIndex >= this.nRows) {
+			throw new IllegalArgumentException(
+					"rowIndex " + rowIndex + " out of range " + this.nRows);
+		}
+		if (colIndex < 0 || colIndex >= this.nCols) {
+			throw new IllegalArgumentException(
+					"colIndex " + colIndex + " out of range " + this.nCols);
+		}
+
+		if (this.nnz == this.rowIndexes.length) {
+			this.grow();
+		}
+		this.rowIndexes[this.nnz] = rowIndex;
+		this.colIndexes[this.nnz] = colIndex;
+		this.values[this.nnz] = value;
+		if (this.dates != null) {
+			this.dates[this.nnz] = date;
+		}
+		this.nnz++;
+	}
+
+	public MLSparseMatrixAOO build() {
+		return this.buildCSR().toAOO();
+	}
+
+	public MLSparseMatrixCSR buildCSR() {
+		// counting sort triples by row, order within each row is kept so
+		// duplicates are merged in the order they were added
+		int[] rowStart = new int[this.nRows + 1];
+		for (int i = 0; i < this.nnz; i++) {
+			rowStart[this.rowIndexes[i] + 1]++;
+		}
+		for (int i = 0; i < this.nRows; i++) {
+			rowStart[i + 1] += rowStart[i];
+		}
+
+		int[] rowEnd = Arrays.copyOf(rowStart, this.nRows);
+		int[] colsByRow = new int[this.nnz];
+		float[] valuesByRow = new float[this.nnz];
+		long[] datesByRow = null;
+		if (this.dates != null) {
+			datesByRow = new long[this.nnz];
+		}
+		for (int i = 0; i < this.nnz; i++) {
+			int j = rowEnd[this.rowIndexes[i]]++;
+			colsByRow[j] = this.colIndexes[i];
+			valuesByRow[j] = this.values[i];
+			if (datesByRow != null) {
+				datesByRow[j] = this.dates[i];
+			}
+		}
+
+		// sort each row and count unique columns
+		final long[] datesByRowF = datesByRow;
+		int[] rowPtr = new int[this.nRows + 1];
+		IntStream.range(0, this.nRows).parallel().forEach(rowIndex -> {
+			int from = rowStart[rowIndex];
+			int to = rowStart[rowIndex + 1];
+			if (from == to) {
+				return;
+			}
+			sortRow(colsByRow, valuesByRow, datesByRowF, from, to);
+			int nUnique = 1;
+			for (int i = from + 1; i < to; i++) {
+				if (colsByRow[i] != colsByRow[i - 1]) {
+					nUnique++;
+				}
+			}
+			rowPtr[rowIndex + 1] = nUnique;
+		});
+		for (int i = 0; i < this.nRows; i++) {
+			rowPtr[i + 1] += rowPtr[i];
+		}
+		if (rowPtr[this.nRows] == this.nnz) {
+			// no duplicates so sorted buffers can be used directly
+			return new MLSparseMatrixCSR(rowPtr, colsByRow, valuesByRow,
+					datesByRow, this.nCols);
+		}
+
+		// merge duplicates
+		int nUnique = rowPtr[this.nRows];
+		int[] colIndexesCSR = new int[nUnique];
+		float[] valuesCSR = new float[nUnique];
+		long[] datesCSR = null;
+		if (datesByRow != null) {
+			datesCSR = new long[nUnique];
+		}
+		final long[] datesCSRF = datesCSR;
+		IntStream.range(0, this.nRows).parallel().forEach(rowIndex -> {
+			int cur = rowPtr[rowIndex] - 1;
+			for (int i = rowStart[rowIndex]; i < rowStart[rowIndex
+					+ 1]; i++) {
+				if (cur >= rowPtr[rowIndex]
+						&& colsByRow[i] == colIndexesCSR[cur]) {
+					valuesCSR[cur] += valuesByRow[i];
+					if (datesCSRF != null) {
+						datesCSRF[cur] = mergeDates(datesCSRF[cur],
+								datesByRowF[i], this.keepLatestDate);
+					}
+					continue;
+				}
+				cur++;
+				colIndexesCSR[cur] = colsByRow[i];
+				valuesCSR[cur] = valuesByRow[i];
+				if (datesCSRF != null) {
+					datesCSRF[cur] = datesByRowF[i];
+				}
+			}
+		});
+		return new MLSparseMatrixCSR(rowPtr, colIndexesCSR, valuesCSR,
+				datesCSR, this.nCols);
+	}
+
+	public static MLSparseVector buildRow(final int[] indexes,
+			final float[] values, final long[] dates, final int from,
+			final int to, final int length, final boolean keepLatestDate) {
+		// sorts [from, to) by index in place and merges duplicate indexes,
+		// dates can be null
+		int n = to - from;
+		if (n == 0) {
+			return new MLSparseVector(null, null, null, length);
+		}
+
+		sortRow(indexes, values, dates, from, to);
+
+		// count unique indexes
+		int nUnique = 1;
+		for (int i = from + 1; i < to; i++) {
+			if (indexes[i] != indexes[i - 1]) {
+				nUnique++;
+			}
+		}
+
+		int[] rowIndexes = new int[nUnique];
+		float[] rowValues = new float[nUnique];
+		long[] rowDates = null;
+		if (dates != null) {
+			rowDates = new long[nUnique];
+		}
+		int cur = -1;
+		for (int i = from; i < to; i++) {
+			if (cur >= 0 && indexes[i] == rowIndexes[cur]) {
+				rowValues[cur] += values[i];
+				if (dates != null) {
+					rowDates[cur] = mergeDates(rowDates[cur], dates[i],
+							keepLatestDate);
+				}
+				continue;
+			}
+			cur++;
+			rowIndexes[cur] = indexes[i];
+			rowValues[cur] = values[i];
+			if (dates != null) {
+				rowDates[cur] = dates[i];
+			}
+		}
+		return new MLSparseVector(rowIndexes, rowValues, rowDates, length);
+	}
+
+	public int getNNZ() {
+		return this.nnz;
+	}
+
+	static int[] getTransposeChunks(final int nRows, final long nnz,
+			final IntToLongFunction rowPtr) {
+		// split rows into chunks with roughly equal nnz for a parallel
+		// transpose, rowPtr(i) is the nnz before row i, returns the first
+		// row of each chunk followed by nRows
+		int nChunks = (int) Math.max(1,
+				Math.min(Runtime.getRuntime().availableProcessors(),
+						nnz / MIN_TRANSPOSE_CHUNK_NNZ));
+		int[] chunkStart = new int[nChunks + 1];
+		for (int c = 1; c < nChunks; c++) {
+			// first row that starts at or after the target nnz
+			long target = nnz * c / nChunks;
+			int low = chunkStart[c - 1];
+			int high = nRows;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (rowPtr.applyAsLong(mid) < target) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			chunkStart[c] = low;
+		}
+		chunkStart[nChunks] = nRows;
+		return chunkStart;
+	}
+
+	private void grow() {
+		if (this.nnz >= MAX_CAPACITY) {
+			throw new IllegalStateException("builder is full");
+		}
+		int capacity = (int) Math.min(MAX_CAPACITY,
+				Math.max(INIT_CAPACITY, 2L * this.rowIndexes.length));
+		this.rowIndexes = Arrays.copyOf(this.rowIndexes, capacity);
+		this.colIndexes = Arrays.copyOf(this.colIndexes, capacity);
+		this.values = Arrays.copyOf(this.values, capacity);
+		if (this.dates != null) {
+			this.dates = Arrays.copyOf(this.dates, capacity);
+		}
+	}
+
+	private static long mergeDates(final long date1, final long date2,
+			final boolean keepLatestDate) {
+		if (keepLatestDate == true) {
+			return Math.max(date1, date2);
+		} else {
+			return Math.min(date1, date2);
+		}
+	}
+
+	static void sortRow(final int[] indexes, final float[] values,
+			final long[] dates, final int from, final int to) {
+		// stable sort of [from, to) by index, dates can be null
+		int n = to - from;
+		int sorted = from + 1;
+		while (sorted < to && indexes[sorted - 1] <= indexes[sorted]) {
+			sorted++;
+		}
+		if (sorted >= to) {
+			// already in order, common for column selectors
+			return;
+		}
+		if (n <= INSERTION_SORT_MAX) {
+			// stable insertion sort for short rows
+			for (int i = from + 1; i < to; i++) {
+				int index = indexes[i];
+				float value = values[i];
+				long date = dates != null ? dates[i] : 0;
+				int j = i - 1;
+				while (j >= from && indexes[j] > index) {
+					indexes[j + 1] = indexes[j];
+					values[j + 1] = values[j];
+					if (dates != null) {
+						dates[j + 1] = dates[j];
+					}
+					j--;
+				}
+				indexes[j + 1] = index;
+				values[j + 1] = value;
+				if (dates != null) {
+					dates[j + 1] = date;
+				}
+			}
+		} else {
+			// sort (index, position) keys so order of duplicates is kept
+			long[] keys = new long[n];
+			for (int i = 0; i < n; i++) {
+				keys[i] = (((long) indexes[from + i]) << 32) | i;
+			}
+			Arrays.sort(keys);
+
+			float[] valuesCopy = Arrays.copyOfRange(values, from, to);
+			long[] datesCopy = null;
+			if (dates != null) {
+				datesCopy = Arrays.copyOfRange(dates, from, to);
+			}
+			for (int i = 0; i < n; i++) {
+				int pos = (int) keys[i];
+				indexes[from + i] = (int) (keys[i] >>> 32);
+				values[from + i] = valuesCopy[pos];
+				if (dates != null) {
+					dates[from + i] = datesCopy[pos];
+				}
+			}
+		}
+	}
+
+}
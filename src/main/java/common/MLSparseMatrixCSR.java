@@ -0,0 +1,644 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import com.google.common.util.concurrent.AtomicDoubleArray;
+
+/**
+ * Compressed sparse row matrix. All rows share a single set of column
+ * index, value and date arrays, row i is stored in [rowPtr[i],
+ * rowPtr[i + 1]) and is sorted by column index.
+ * <p>
+ * NOTE: getRow() returns a copy of the row so changes to it are not
+ * reflected in this matrix, use setRow() or the in place transforms
+ * instead. setRow() can't replace non empty rows of a matrix with dates
+ * since the shared date array is immutable. Arrays are int indexed so nnz is limited to MAX_NNZ, see
+ * {@link #fromTranspose} for a fallback.
+ */
+public class MLSparseMatrixCSR implements MLSparseMatrix {
+
+	private static final long serialVersionUID = 2981565317265232127L;
+	public static final long MAX_NNZ = Integer.MAX_VALUE - 8;
+
+	private int[] rowPtr;
+	private int[] colIndexes;
+	private float[] values;
+	// dates are kept in compact form, null if matrix has no dates
+	private MLDateArray dates;
+	private int nCols;
+
+	public MLSparseMatrixCSR(final int[] rowPtrP, final int[] colIndexesP,
+			final float[] valuesP, final long[] datesP, final int nColsP) {
+		this.rowPtr = rowPtrP;
+		this.colIndexes = colIndexesP;
+		this.values = valuesP;
+		this.dates = MLDateArray.encode(datesP);
+		this.nCols = nColsP;
+	}
+
+	@Override
+	public void addRows(final int nRowsToAdd) {
+		// new rows are appended at the end as empty rows
+		int nRows = this.getNRows();
+		this.rowPtr = Arrays.copyOf(this.rowPtr, nRows + nRowsToAdd + 1);
+		Arrays.fill(this.rowPtr, nRows + 1, this.rowPtr.length,
+				this.rowPtr[nRows]);
+	}
+
+	@Override
+	public void applyColNorm(final MLDenseVector colNorm) {
+		float[] normValues = colNorm.getValues();
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				if (normValues[this.colIndexes[i]] > 1e-10f) {
+					this.values[i] /= normValues[this.colIndexes[i]];
+				}
+			}
+		});
+	}
+
+	@Override
+	public void applyColSelector(final int[] selectedColMap,
+			final int nColsSelected) {
+		if (this.nCols == nColsSelected
+				&& MLSparseVector.isIdentity(selectedColMap,
+						this.nCols) == true) {
+			// nothing to do
+			return;
+		}
+
+		int[] colMap = MLSparseVector.padSelector(selectedColMap, this.nCols);
+
+		// count selected columns in each row
+		int nRows = this.getNRows();
+		int[] rowPtrSelected = new int[nRows + 1];
+		IntStream.range(0, nRows).parallel().forEach(rowIndex -> {
+			int count = 0;
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				if (colMap[this.colIndexes[i]] >= 0) {
+					count++;
+				}
+			}
+			rowPtrSelected[rowIndex + 1] = count;
+		});
+		for (int i = 0; i < nRows; i++) {
+			rowPtrSelected[i + 1] += rowPtrSelected[i];
+		}
+
+		int nnzSelected = rowPtrSelected[nRows];
+		int[] colIndexesSelected = new int[nnzSelected];
+		float[] valuesSelected = new float[nnzSelected];
+		long[] datesSelected = null;
+		if (this.dates != null) {
+			datesSelected = new long[nnzSelected];
+		}
+		final long[] datesSelectedF = datesSelected;
+		IntStream.range(0, nRows).parallel().forEach(rowIndex -> {
+			int cur = rowPtrSelected[rowIndex];
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				int newIndex = colMap[this.colIndexes[i]];
+				if (newIndex < 0) {
+					continue;
+				}
+				colIndexesSelected[cur] = newIndex;
+				valuesSelected[cur] = this.values[i];
+				if (datesSelectedF != null) {
+					datesSelectedF[cur] = this.dates.get(i);
+				}
+				cur++;
+			}
+
+			// new indexes don't have to preserve column order
+			MLSparseMatrixBuilder.sortRow(colIndexesSelected,
+					valuesSelected, datesSelectedF, rowPtrSelected[rowIndex],
+					cur);
+		});
+
+		this.rowPtr = rowPtrSelected;
+		this.colIndexes = colIndexesSelected;
+		this.values = valuesSelected;
+		this.dates = MLDateArray.encode(datesSelected);
+
+		// update matrix nCols
+		this.setNCols(nColsSelected);
+	}
+
+	@Override
+	public void applyRowNorm(final MLDenseVector rowNorm) {
+		float[] normValues = rowNorm.getValues();
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			if (normValues[rowIndex] <= 1e-5f) {
+				return;
+			}
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				this.values[i] /= normValues[rowIndex];
+			}
+		});
+	}
+
+	@Override
+	public void binarizeValues() {
+		Arrays.fill(this.values, 0, this.rowPtr[this.getNRows()], 1f);
+	}
+
+	@Override
+	public int copyRow(final int rowIndex, final int[] indexes,
+			final float[] values, final int offset) {
+		int start = this.rowPtr[rowIndex];
+		int rowNNZ = this.rowPtr[rowIndex + 1] - start;
+		if (indexes != null) {
+			System.arraycopy(this.colIndexes, start, indexes, offset, rowNNZ);
+		}
+		if (values != null) {
+			System.arraycopy(this.values, start, values, offset, rowNNZ);
+		}
+		return rowNNZ;
+	}
+
+	@Override
+	public MLSparseMatrix deepCopy() {
+		// date arrays are immutable so they are shared with the copy
+		MLSparseMatrixCSR copy = new MLSparseMatrixCSR(this.rowPtr.clone(),
+				this.colIndexes.clone(), this.values.clone(), null,
+				this.nCols);
+		copy.dates = this.dates;
+		return copy;
+	}
+
+	@Override
+	public void forEachNonZero(final int rowIndex,
+			final NonZeroVisitor visitor) {
+		for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+				+ 1]; i++) {
+			visitor.visit(this.colIndexes[i], this.values[i]);
+		}
+	}
+
+	public static MLSparseMatrixCSR fromMatrix(final MLSparseMatrix matrix) {
+		// copy any sparse matrix into csr format
+		int nRows = matrix.getNRows();
+		int[] rowPtr = new int[nRows + 1];
+		IntStream.range(0, nRows).parallel().forEach(rowIndex -> {
+			MLSparseVector row = matrix.getRow(rowIndex);
+			if (row != null) {
+				rowPtr[rowIndex + 1] = row.getIndexes().length;
+			}
+		});
+		for (int i = 0; i < nRows; i++) {
+			if (rowPtr[i] > MAX_NNZ - rowPtr[i + 1]) {
+				throw new IllegalArgumentException(
+						"nnz doesn't fit into csr arrays");
+			}
+			rowPtr[i + 1] += rowPtr[i];
+		}
+
+		int nnz = rowPtr[nRows];
+		int[] colIndexes = new int[nnz];
+		float[] values = new float[nnz];
+		long[] dates = null;
+		if (matrix.hasDates() == true) {
+			dates = new long[nnz];
+		}
+		final long[] datesF = dates;
+		IntStream.range(0, nRows).parallel().forEach(rowIndex -> {
+			MLSparseVector row = matrix.getRow(rowIndex);
+			if (row == null) {
+				return;
+			}
+			int start = rowPtr[rowIndex];
+			int rowNNZ = row.getIndexes().length;
+			System.arraycopy(row.getIndexes(), 0, colIndexes, start, rowNNZ);
+			System.arraycopy(row.getValues(), 0, values, start, rowNNZ);
+			if (datesF != null && row.hasDates() == true) {
+				row.getDateArray().copyTo(0, datesF, start, rowNNZ);
+			}
+		});
+
+		return new MLSparseMatrixCSR(rowPtr, colIndexes, values, dates,
+				matrix.getNCols());
+	}
+
+	public static MLSparseMatrix fromTranspose(final MLSparseMatrix matrix) {
+		// transpose any sparse matrix into csr format, matrices with more
+		// nnz than csr arrays can hold are transposed into AOO rows instead
+		if (matrix instanceof MLSparseMatrixCSR) {
+			return ((MLSparseMatrixCSR) matrix).transpose();
+		}
+		if (matrix.getNNZ() > MAX_NNZ) {
+			MLSparseMatrixAOO aoo;
+			if (matrix instanceof MLSparseMatrixAOO) {
+				aoo = (MLSparseMatrixAOO) matrix;
+			} else {
+				MLSparseVector[] rows = new MLSparseVector[matrix.getNRows()];
+				IntStream.range(0, rows.length).parallel()
+						.forEach(rowIndex -> {
+							rows[rowIndex] = matrix.getRow(rowIndex);
+						});
+				aoo = new MLSparseMatrixAOO(rows, matrix.getNCols());
+			}
+			return aoo.transpose();
+		}
+		return fromMatrix(matrix).transpose();
+	}
+
+	@Override
+	public MLDenseVector getColNNZ() {
+		return this.getColStats(true, false, 0).getNNZ();
+	}
+
+	@Override
+	public MLDenseVector getColNorm(final int p) {
+		// compute L^p norm
+		return this.getColStats(false, false, p).getNorm();
+	}
+
+	@Override
+	public MLDenseVector getColSum() {
+		return this.getColStats(false, true, 0).getSum();
+	}
+
+	public MLDateArray getDateArray() {
+		return this.dates;
+	}
+
+	@Override
+	public int getNCols() {
+		return this.nCols;
+	}
+
+	@Override
+	public long getNNZ() {
+		return this.rowPtr[this.getNRows()];
+	}
+
+	@Override
+	public int getNRows() {
+		return this.rowPtr.length - 1;
+	}
+
+	@Override
+	public MLSparseVector getRow(final int rowIndex) {
+		int start = this.rowPtr[rowIndex];
+		int end = this.rowPtr[rowIndex + 1];
+		if (start == end) {
+			return null;
+		}
+
+		MLSparseVector row = new MLSparseVector(
+				Arrays.copyOfRange(this.colIndexes, start, end),
+				Arrays.copyOfRange(this.values, start, end), null,
+				this.nCols);
+		if (this.dates != null) {
+			row.setDateArray(this.dates.slice(start, end));
+		}
+		return row;
+	}
+
+	@Override
+	public MLSparseVector getRow(final int rowIndex, boolean returnEmpty) {
+		MLSparseVector row = this.getRow(rowIndex);
+		if (row == null && returnEmpty == true) {
+			// return empty row instead of null
+			row = new MLSparseVector(new int[] {}, new float[] {}, null,
+					this.getNCols());
+		}
+		return row;
+	}
+
+	public int getRowEnd(final int rowIndex) {
+		return this.rowPtr[rowIndex + 1];
+	}
+
+	@Override
+	public int getRowLength(final int rowIndex) {
+		return this.rowPtr[rowIndex + 1] - this.rowPtr[rowIndex];
+	}
+
+	@Override
+	public MLDenseVector getRowNNZ() {
+		float[] rowNNZ = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			rowNNZ[rowIndex] = this.rowPtr[rowIndex + 1]
+					- this.rowPtr[rowIndex];
+		});
+		return new MLDenseVector(rowNNZ);
+	}
+
+	@Override
+	public MLDenseVector getRowNorm(final int p) {
+		final float[] rowNorm = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float norm = 0f;
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				if (p == 1) {
+					norm += Math.abs(this.values[i]);
+				} else {
+					norm += Math.pow(this.values[i], p);
+				}
+			}
+			if (p != 1) {
+				norm = (float) Math.pow(norm, 1.0 / p);
+			}
+			rowNorm[rowIndex] = norm;
+		});
+		return new MLDenseVector(rowNorm);
+	}
+
+	public int getRowStart(final int rowIndex) {
+		return this.rowPtr[rowIndex];
+	}
+
+	@Override
+	public MLDenseVector getRowSum() {
+		float[] rowSum = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				rowSum[rowIndex] += this.values[i];
+			}
+		});
+		return new MLDenseVector(rowSum);
+	}
+
+	public float[] getValues() {
+		return this.values;
+	}
+
+	@Override
+	public boolean hasDates() {
+		return this.dates != null;
+	}
+
+	@Override
+	public void inferAndSetNCols() {
+		// infer number of columns if it wasn't known during constructor
+		int nColsNew = 0;
+		for (int rowIndex = 0; rowIndex < this.getNRows(); rowIndex++) {
+			int end = this.rowPtr[rowIndex + 1];
+			if (end > this.rowPtr[rowIndex]
+					&& this.colIndexes[end - 1] + 1 > nColsNew) {
+				// nCols is 1 + largest col index
+				nColsNew = this.colIndexes[end - 1] + 1;
+			}
+		}
+
+		this.setNCols(nColsNew);
+	}
+
+	@Override
+	public MLSparseMatrix mult(final MLSparseMatrix another) {
+		return MLSparseMatrix.multTopK(this, another, 0);
+	}
+
+	@Override
+	public MLDenseVector multCol(final MLDenseVector vector) {
+
+		// multiply 1 x nRows dense vector with this matrix
+		if (this.getNRows() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNRows() != vector.getLength()");
+		}
+
+		AtomicDoubleArray result = new AtomicDoubleArray(this.nCols);
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float val = vector.getValue(rowIndex);
+			if (val == 0) {
+				return;
+			}
+
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				result.addAndGet(this.colIndexes[i], val * this.values[i]);
+			}
+		});
+		float[] temp = new float[this.nCols];
+		for (int i = 0; i < temp.length; i++) {
+			temp[i] = (float) result.get(i);
+		}
+
+		return new MLDenseVector(temp);
+	}
+
+	@Override
+	public MLDenseVector multCol(final MLSparseVector vector) {
+
+		// multiply 1 x nRows sparse vector with this matrix
+		if (this.getNRows() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNRows() != vector.getLength()");
+		}
+
+		AtomicDoubleArray result = new AtomicDoubleArray(this.nCols);
+		int[] vectorIndexes = vector.getIndexes();
+		float[] vectorValues = vector.getValues();
+		IntStream.range(0, vectorIndexes.length).parallel().forEach(j -> {
+			float val = vectorValues[j];
+			if (val == 0) {
+				return;
+			}
+
+			int rowIndex = vectorIndexes[j];
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				result.addAndGet(this.colIndexes[i], val * this.values[i]);
+			}
+		});
+
+		float[] temp = new float[this.nCols];
+		for (int i = 0; i < temp.length; i++) {
+			temp[i] = (float) result.get(i);
+		}
+
+		return new MLDenseVector(temp);
+	}
+
+	@Override
+	public MLDenseVector multRow(final MLDenseVector vector) {
+
+		// multiply this matrix with nCols x 1 dense vector
+		if (this.getNCols() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNCols() != vector.getLength()");
+		}
+
+		float[] vectorValues = vector.getValues();
+		float[] result = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float product = 0f;
+			for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+					+ 1]; i++) {
+				if (vectorValues[this.colIndexes[i]] != 0) {
+					product += this.values[i]
+							* vectorValues[this.colIndexes[i]];
+				}
+			}
+			result[rowIndex] = product;
+		});
+
+		return new MLDenseVector(result);
+	}
+
+	@Override
+	public MLDenseVector multRow(final MLSparseVector vector) {
+
+		// multiply this matrix with nCols x 1 sparse vector
+		if (this.getNCols() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNCols() != vector.getLength()");
+		}
+
+		int[] vectorIndexes = vector.getIndexes();
+		float[] vectorValues = vector.getValues();
+		float[] result = new float[this.getNRows()];
+		if (vectorIndexes == null || vectorIndexes.length == 0) {
+			return new MLDenseVector(result);
+		}
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			result[rowIndex] = MLSparseVector.multiplySorted(
+					this.colIndexes, this.values, this.rowPtr[rowIndex],
+					this.rowPtr[rowIndex + 1], vectorIndexes, vectorValues,
+					0, vectorIndexes.length);
+		});
+
+		return new MLDenseVector(result);
+	}
+
+	@Override
+	public void setNCols(final int nColsP) {
+		this.nCols = nColsP;
+	}
+
+	@Override
+	public void setRow(final MLSparseVector row, final int rowIndex) {
+		// rows are packed so only rows with the same nnz can be replaced
+		int start = this.rowPtr[rowIndex];
+		int rowNNZ = this.rowPtr[rowIndex + 1] - start;
+		int[] indexes = row == null ? null : row.getIndexes();
+		int newNNZ = indexes == null ? 0 : indexes.length;
+		if (newNNZ != rowNNZ) {
+			throw new UnsupportedOperationException(
+					"csr row can only be replaced with the same nnz");
+		}
+		if (newNNZ == 0) {
+			return;
+		}
+
+		if (this.dates != null) {
+			// date array is immutable and encoding it again for every row
+			// would be O(nnz) per call
+			throw new UnsupportedOperationException(
+					"csr rows with dates can't be replaced");
+		}
+
+		System.arraycopy(indexes, 0, this.colIndexes, start, rowNNZ);
+		System.arraycopy(row.getValues(), 0, this.values, start, rowNNZ);
+	}
+
+	public MLSparseMatrixAOO toAOO() {
+		MLSparseVector[] rows = new MLSparseVector[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			rows[rowIndex] = this.getRow(rowIndex);
+		});
+		return new MLSparseMatrixAOO(rows, this.nCols);
+	}
+
+	@Override
+	public void toBinFile(final String outFile) throws Exception {
+
+		try (DataOutputStream writer = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(outFile)))) {
+			for (int rowIndex = 0; rowIndex < this.getNRows(); rowIndex++) {
+				for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+						+ 1]; i++) {
+					writer.writeInt(rowIndex);
+					writer.writeInt(this.colIndexes[i]);
+					writer.writeFloat(this.values[i]);
+
+					if (this.dates != null) {
+						writer.writeLong(this.dates.get(i));
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public MLSparseMatrixCSR transpose() {
+		int nRows = this.getNRows();
+		int nRowsT = this.nCols;
+		int nnz = this.rowPtr[nRows];
+
+		// split rows into chunks with roughly equal nnz, each chunk keeps
+		// its own column histogram
+		int[] chunkStart = MLSparseMatrixBuilder.getTransposeChunks(nRows,
+				nnz, rowIndex -> this.rowPtr[rowIndex]);
+		int nChunks = chunkStart.length - 1;
+
+		// count nnz in each column per chunk
+		int[][] chunkCounts = new int[nChunks][];
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			int[] counts = new int[nRowsT];
+			int end = this.rowPtr[chunkStart[c + 1]];
+			for (int i = this.rowPtr[chunkStart[c]]; i < end; i++) {
+				counts[this.colIndexes[i]]++;
+			}
+			chunkCounts[c] = counts;
+		});
+
+		// column totals and prefix sum give row pointers of the transpose
+		int[] rowPtrT = new int[nRowsT + 1];
+		IntStream.range(0, nRowsT).parallel().forEach(colIndex -> {
+			int total = 0;
+			for (int c = 0; c < nChunks; c++) {
+				total += chunkCounts[c][colIndex];
+			}
+			rowPtrT[colIndex + 1] = total;
+		});
+		for (int i = 0; i < nRowsT; i++) {
+			rowPtrT[i + 1] += rowPtrT[i];
+		}
+
+		// turn chunk counts into chunk write offsets, chunks are ordered by
+		// row so transposed rows come out sorted
+		IntStream.range(0, nRowsT).parallel().forEach(colIndex -> {
+			int offset = rowPtrT[colIndex];
+			for (int c = 0; c < nChunks; c++) {
+				int count = chunkCounts[c][colIndex];
+				chunkCounts[c][colIndex] = offset;
+				offset += count;
+			}
+		});
+
+		// scatter each chunk in parallel
+		int[] colIndexesT = new int[nnz];
+		float[] valuesT = new float[nnz];
+		long[] datesT = this.dates != null ? new long[nnz] : null;
+		IntStream.range(0, nChunks).parallel().forEach(c -> {
+			int[] cur = chunkCounts[c];
+			for (int rowIndex = chunkStart[c]; rowIndex < chunkStart[c
+					+ 1]; rowIndex++) {
+				for (int i = this.rowPtr[rowIndex]; i < this.rowPtr[rowIndex
+						+ 1]; i++) {
+					int j = cur[this.colIndexes[i]]++;
+					colIndexesT[j] = rowIndex;
+					valuesT[j] = this.values[i];
+					if (datesT != null) {
+						datesT[j] = this.dates.get(i);
+					}
+				}
+			}
+		});
+
+		return new MLSparseMatrixCSR(rowPtrT, colIndexesT, valuesT, datesT,
+				nRows);
+	}
+}
@@ -0,0 +1,726 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import com.google.common.util.concurrent.AtomicDoubleArray;
+
+/**
+ * Sparse matrix for scan only workloads. Sorted column indexes of each row
+ * are stored as varint encoded deltas and dates as zigzag varint encoded
+ * deltas, values are kept as plain floats so norms and sums over rows don't
+ * decode anything. Rows are read sequentially with {@link RowIterator},
+ * random access into a row is not supported.
+ * <p>
+ * NOTE: getRow() decodes the row into a new vector so changes to it are
+ * not reflected in this matrix, use setRow() instead.
+ */
+public class MLSparseMatrixCompressed implements MLSparseMatrix {
+
+	/**
+	 * Decodes one row at a time, iterators are not thread safe and are
+	 * meant to be reused across rows by a single thread.
+	 */
+	public static class RowIterator {
+
+		private MLSparseMatrixCompressed matrix;
+		private byte[] indexBytes;
+		private byte[] dateBytes;
+		private float[] values;
+		private int nnz;
+		private int cur;
+		private int indexPos;
+		private int datePos;
+		private int index;
+		private long date;
+
+		public RowIterator(final MLSparseMatrixCompressed matrixP) {
+			this.matrix = matrixP;
+		}
+
+		public long getDate() {
+			return this.date;
+		}
+
+		public int getIndex() {
+			return this.index;
+		}
+
+		public float getValue() {
+			return this.values[this.cur - 1];
+		}
+
+		public boolean hasNext() {
+			return this.cur < this.nnz;
+		}
+
+		public void next() {
+			// advance to next non zero, first index and date are stored
+			// as is and the rest as deltas
+			int delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = this.indexBytes[this.indexPos++];
+				delta |= (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			this.index = this.cur == 0 ? delta : this.index + delta;
+
+			if (this.dateBytes != null) {
+				long zigzag = 0;
+				shift = 0;
+				do {
+					b = this.dateBytes[this.datePos++];
+					zigzag |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while (b < 0);
+				long dateDelta = (zigzag >>> 1) ^ -(zigzag & 1);
+				this.date = this.cur == 0 ? dateDelta : this.date + dateDelta;
+			}
+			this.cur++;
+		}
+
+		public int reset(final int rowIndex) {
+			// start decoding rowIndex, returns row nnz
+			this.indexBytes = this.matrix.indexBytes[rowIndex];
+			this.dateBytes = this.matrix.dateBytes != null
+					? this.matrix.dateBytes[rowIndex]
+					: null;
+			this.values = this.matrix.values[rowIndex];
+			this.nnz = this.values == null ? 0 : this.values.length;
+			this.cur = 0;
+			this.indexPos = 0;
+			this.datePos = 0;
+			this.index = 0;
+			this.date = 0;
+			return this.nnz;
+		}
+	}
+
+	private static final long serialVersionUID = 3384307946412563817L;
+
+	// null for empty rows
+	private byte[][] indexBytes;
+	private float[][] values;
+	// null if matrix has no dates
+	private byte[][] dateBytes;
+	private int nCols;
+
+	public MLSparseMatrixCompressed(final int nRowsP, final int nColsP,
+			final boolean hasDatesP) {
+		this.indexBytes = new byte[nRowsP][];
+		this.values = new float[nRowsP][];
+		if (hasDatesP == true) {
+			this.dateBytes = new byte[nRowsP][];
+		}
+		this.nCols = nColsP;
+	}
+
+	@Override
+	public void addRows(final int nRowsToAdd) {
+		// new rows are appended at the end as empty rows
+		int nRowsNew = this.getNRows() + nRowsToAdd;
+		this.indexBytes = Arrays.copyOf(this.indexBytes, nRowsNew);
+		this.values = Arrays.copyOf(this.values, nRowsNew);
+		if (this.dateBytes != null) {
+			this.dateBytes = Arrays.copyOf(this.dateBytes, nRowsNew);
+		}
+	}
+
+	@Override
+	public void applyColNorm(final MLDenseVector colNorm) {
+		float[] normValues = colNorm.getValues();
+		MLConcurrentUtils.Async<RowIterator> iterators = this.newIterators();
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float[] rowValues = this.values[rowIndex];
+			RowIterator iterator = iterators.get();
+			iterator.reset(rowIndex);
+			for (int i = 0; iterator.hasNext() == true; i++) {
+				iterator.next();
+				if (normValues[iterator.getIndex()] > 1e-10f) {
+					rowValues[i] /= normValues[iterator.getIndex()];
+				}
+			}
+		});
+	}
+
+	@Override
+	public void applyColSelector(final int[] selectedColMap,
+			final int nColsSelected) {
+		int[] colMap = MLSparseVector.padSelector(selectedColMap, this.nCols);
+
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			MLSparseVector row = this.getRow(rowIndex);
+			if (row == null) {
+				return;
+			}
+			int[] indexes = row.getIndexes();
+			float[] rowValues = row.getValues();
+			long[] dates = row.getDates();
+			int nSelected = 0;
+			for (int i = 0; i < indexes.length; i++) {
+				int newIndex = colMap[indexes[i]];
+				if (newIndex < 0) {
+					continue;
+				}
+				indexes[nSelected] = newIndex;
+				rowValues[nSelected] = rowValues[i];
+				if (dates != null) {
+					dates[nSelected] = dates[i];
+				}
+				nSelected++;
+			}
+
+			// new indexes don't have to preserve column order
+			MLSparseMatrixBuilder.sortRow(indexes, rowValues, dates, 0,
+					nSelected);
+			this.setRow(indexes, rowValues, dates, nSelected, rowIndex);
+		});
+
+		// update matrix nCols
+		this.setNCols(nColsSelected);
+	}
+
+	@Override
+	public void applyRowNorm(final MLDenseVector rowNorm) {
+		float[] normValues = rowNorm.getValues();
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float[] rowValues = this.values[rowIndex];
+			if (rowValues == null || normValues[rowIndex] <= 1e-5f) {
+				return;
+			}
+			for (int i = 0; i < rowValues.length; i++) {
+				rowValues[i] /= normValues[rowIndex];
+			}
+		});
+	}
+
+	@Override
+	public void binarizeValues() {
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			if (this.values[rowIndex] != null) {
+				Arrays.fill(this.values[rowIndex], 1f);
+			}
+		});
+	}
+
+	@Override
+	public int copyRow(final int rowIndex, final int[] indexes,
+			final float[] values, final int offset) {
+		RowIterator iterator = new RowIterator(this);
+		int rowNNZ = iterator.reset(rowIndex);
+		for (int i = 0; i < rowNNZ; i++) {
+			iterator.next();
+			if (indexes != null) {
+				indexes[offset + i] = iterator.getIndex();
+			}
+			if (values != null) {
+				values[offset + i] = iterator.getValue();
+			}
+		}
+		return rowNNZ;
+	}
+
+	@Override
+	public MLSparseMatrix deepCopy() {
+		// encoded rows are replaced and never modified so they are shared
+		// with the copy
+		MLSparseMatrixCompressed copy = new MLSparseMatrixCompressed(
+				this.getNRows(), this.nCols, this.hasDates());
+		for (int i = 0; i < this.getNRows(); i++) {
+			copy.indexBytes[i] = this.indexBytes[i];
+			if (this.values[i] != null) {
+				copy.values[i] = this.values[i].clone();
+			}
+			if (this.dateBytes != null) {
+				copy.dateBytes[i] = this.dateBytes[i];
+			}
+		}
+		return copy;
+	}
+
+	private static byte[] encodeDates(final long[] dates, final int n) {
+		// zigzag encode date deltas so dates in any order stay short
+		int size = 0;
+		long prev = 0;
+		for (int i = 0; i < n; i++) {
+			long delta = dates[i] - prev;
+			size += varLongSize((delta << 1) ^ (delta >> 63));
+			prev = dates[i];
+		}
+
+		byte[] bytes = new byte[size];
+		int pos = 0;
+		prev = 0;
+		for (int i = 0; i < n; i++) {
+			long delta = dates[i] - prev;
+			long zigzag = (delta << 1) ^ (delta >> 63);
+			while ((zigzag & ~0x7FL) != 0) {
+				bytes[pos++] = (byte) ((zigzag & 0x7F) | 0x80);
+				zigzag >>>= 7;
+			}
+			bytes[pos++] = (byte) zigzag;
+			prev = dates[i];
+		}
+		return bytes;
+	}
+
+	private static byte[] encodeIndexes(final int[] indexes, final int n) {
+		// indexes are sorted so deltas are small and non negative
+		int size = 0;
+		int prev = 0;
+		for (int i = 0; i < n; i++) {
+			size += varLongSize((indexes[i] - prev) & 0xFFFFFFFFL);
+			prev = indexes[i];
+		}
+
+		byte[] bytes = new byte[size];
+		int pos = 0;
+		prev = 0;
+		for (int i = 0; i < n; i++) {
+			int delta = indexes[i] - prev;
+			while ((delta & ~0x7F) != 0) {
+				bytes[pos++] = (byte) ((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}
+			bytes[pos++] = (byte) delta;
+			prev = indexes[i];
+		}
+		return bytes;
+	}
+
+	@Override
+	public void forEachNonZero(final int rowIndex,
+			final NonZeroVisitor visitor) {
+		RowIterator iterator = new RowIterator(this);
+		iterator.reset(rowIndex);
+		while (iterator.hasNext() == true) {
+			iterator.next();
+			visitor.visit(iterator.getIndex(), iterator.getValue());
+		}
+	}
+
+	public static MLSparseMatrixCompressed fromMatrix(
+			final MLSparseMatrix matrix) {
+		// compress any sparse matrix, rows must be sorted by column index
+		MLSparseMatrixCompressed compressed = new MLSparseMatrixCompressed(
+				matrix.getNRows(), matrix.getNCols(), matrix.hasDates());
+		IntStream.range(0, matrix.getNRows()).parallel().forEach(rowIndex -> {
+			MLSparseVector row = matrix.getRow(rowIndex);
+			if (row == null || row.getIndexes() == null) {
+				return;
+			}
+			compressed.setRow(row.getIndexes(), row.getValues().clone(),
+					row.getDates(), row.getIndexes().length, rowIndex);
+		});
+		return compressed;
+	}
+
+	@Override
+	public MLDenseVector getColNNZ() {
+		return this.getColStats(true, false, 0).getNNZ();
+	}
+
+	@Override
+	public MLDenseVector getColNorm(final int p) {
+		// compute L^p norm
+		return this.getColStats(false, false, p).getNorm();
+	}
+
+	@Override
+	public MLDenseVector getColSum() {
+		return this.getColStats(false, true, 0).getSum();
+	}
+
+	public long getEncodedBytes() {
+		// bytes used by encoded indexes, values and dates
+		long nBytes = 0;
+		for (int i = 0; i < this.getNRows(); i++) {
+			if (this.values[i] == null) {
+				continue;
+			}
+			nBytes += this.indexBytes[i].length
+					+ (long) this.values[i].length * Float.BYTES;
+			if (this.dateBytes != null) {
+				nBytes += this.dateBytes[i].length;
+			}
+		}
+		return nBytes;
+	}
+
+	@Override
+	public int getNCols() {
+		return this.nCols;
+	}
+
+	@Override
+	public long getNNZ() {
+		long nnz = 0;
+		for (float[] rowValues : this.values) {
+			if (rowValues != null) {
+				nnz += rowValues.length;
+			}
+		}
+		return nnz;
+	}
+
+	@Override
+	public int getNRows() {
+		return this.values.length;
+	}
+
+	@Override
+	public MLSparseVector getRow(final int rowIndex) {
+		RowIterator iterator = new RowIterator(this);
+		int rowNNZ = iterator.reset(rowIndex);
+		if (rowNNZ == 0) {
+			return null;
+		}
+
+		int[] indexes = new int[rowNNZ];
+		long[] dates = null;
+		if (this.dateBytes != null) {
+			dates = new long[rowNNZ];
+		}
+		for (int i = 0; i < rowNNZ; i++) {
+			iterator.next();
+			indexes[i] = iterator.getIndex();
+			if (dates != null) {
+				dates[i] = iterator.getDate();
+			}
+		}
+		return new MLSparseVector(indexes, this.values[rowIndex].clone(),
+				dates, this.nCols);
+	}
+
+	@Override
+	public MLSparseVector getRow(final int rowIndex, boolean returnEmpty) {
+		MLSparseVector row = this.getRow(rowIndex);
+		if (row == null && returnEmpty == true) {
+			// return empty row instead of null
+			row = new MLSparseVector(new int[] {}, new float[] {}, null,
+					this.getNCols());
+		}
+		return row;
+	}
+
+	@Override
+	public int getRowLength(final int rowIndex) {
+		float[] rowValues = this.values[rowIndex];
+		return rowValues == null ? 0 : rowValues.length;
+	}
+
+	@Override
+	public MLDenseVector getRowNNZ() {
+		float[] rowNNZ = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			if (this.values[rowIndex] != null) {
+				rowNNZ[rowIndex] = this.values[rowIndex].length;
+			}
+		});
+		return new MLDenseVector(rowNNZ);
+	}
+
+	@Override
+	public MLDenseVector getRowNorm(final int p) {
+		final float[] rowNorm = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float[] rowValues = this.values[rowIndex];
+			if (rowValues == null) {
+				return;
+			}
+			float norm = 0f;
+			for (int i = 0; i < rowValues.length; i++) {
+				if (p == 1) {
+					norm += Math.abs(rowValues[i]);
+				} else {
+					norm += Math.pow(rowValues[i], p);
+				}
+			}
+			if (p != 1) {
+				norm = (float) Math.pow(norm, 1.0 / p);
+			}
+			rowNorm[rowIndex] = norm;
+		});
+		return new MLDenseVector(rowNorm);
+	}
+
+	@Override
+	public MLDenseVector getRowSum() {
+		float[] rowSum = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float[] rowValues = this.values[rowIndex];
+			if (rowValues == null) {
+				return;
+			}
+			for (int i = 0; i < rowValues.length; i++) {
+				rowSum[rowIndex] += rowValues[i];
+			}
+		});
+		return new MLDenseVector(rowSum);
+	}
+
+	@Override
+	public boolean hasDates() {
+		return this.dateBytes != null;
+	}
+
+	@Override
+	public void inferAndSetNCols() {
+		// infer number of columns if it wasn't known during constructor
+		int nColsNew = 0;
+		RowIterator iterator = new RowIterator(this);
+		for (int rowIndex = 0; rowIndex < this.getNRows(); rowIndex++) {
+			iterator.reset(rowIndex);
+			while (iterator.hasNext() == true) {
+				iterator.next();
+			}
+			if (this.values[rowIndex] != null
+					&& iterator.getIndex() + 1 > nColsNew) {
+				// nCols is 1 + largest col index
+				nColsNew = iterator.getIndex() + 1;
+			}
+		}
+
+		this.setNCols(nColsNew);
+	}
+
+	@Override
+	public MLSparseMatrix mult(final MLSparseMatrix another) {
+		return MLSparseMatrix.multTopK(this, another, 0);
+	}
+
+	@Override
+	public MLDenseVector multCol(final MLDenseVector vector) {
+
+		// multiply 1 x nRows dense vector with this matrix
+		if (this.getNRows() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNRows() != vector.getLength()");
+		}
+
+		AtomicDoubleArray result = new AtomicDoubleArray(this.nCols);
+		MLConcurrentUtils.Async<RowIterator> iterators = this.newIterators();
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float val = vector.getValue(rowIndex);
+			if (val == 0) {
+				return;
+			}
+
+			RowIterator iterator = iterators.get();
+			iterator.reset(rowIndex);
+			while (iterator.hasNext() == true) {
+				iterator.next();
+				result.addAndGet(iterator.getIndex(),
+						val * iterator.getValue());
+			}
+		});
+		float[] temp = new float[this.nCols];
+		for (int i = 0; i < temp.length; i++) {
+			temp[i] = (float) result.get(i);
+		}
+
+		return new MLDenseVector(temp);
+	}
+
+	@Override
+	public MLDenseVector multCol(final MLSparseVector vector) {
+
+		// multiply 1 x nRows sparse vector with this matrix
+		if (this.getNRows() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNRows() != vector.getLength()");
+		}
+
+		AtomicDoubleArray result = new AtomicDoubleArray(this.nCols);
+		int[] vectorIndexes = vector.getIndexes();
+		float[] vectorValues = vector.getValues();
+		MLConcurrentUtils.Async<RowIterator> iterators = this.newIterators();
+		IntStream.range(0, vectorIndexes.length).parallel().forEach(j -> {
+			float val = vectorValues[j];
+			if (val == 0) {
+				return;
+			}
+
+			RowIterator iterator = iterators.get();
+			iterator.reset(vectorIndexes[j]);
+			while (iterator.hasNext() == true) {
+				iterator.next();
+				result.addAndGet(iterator.getIndex(),
+						val * iterator.getValue());
+			}
+		});
+
+		float[] temp = new float[this.nCols];
+		for (int i = 0; i < temp.length; i++) {
+			temp[i] = (float) result.get(i);
+		}
+
+		return new MLDenseVector(temp);
+	}
+
+	@Override
+	public MLDenseVector multRow(final MLDenseVector vector) {
+
+		// multiply this matrix with nCols x 1 dense vector
+		if (this.getNCols() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNCols() != vector.getLength()");
+		}
+
+		float[] vectorValues = vector.getValues();
+		float[] result = new float[this.getNRows()];
+		MLConcurrentUtils.Async<RowIterator> iterators = this.newIterators();
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float product = 0f;
+			RowIterator iterator = iterators.get();
+			iterator.reset(rowIndex);
+			while (iterator.hasNext() == true) {
+				iterator.next();
+				if (vectorValues[iterator.getIndex()] != 0) {
+					product += iterator.getValue()
+							* vectorValues[iterator.getIndex()];
+				}
+			}
+			result[rowIndex] = product;
+		});
+
+		return new MLDenseVector(result);
+	}
+
+	@Override
+	public MLDenseVector multRow(final MLSparseVector vector) {
+
+		// multiply this matrix with nCols x 1 sparse vector
+		if (this.getNCols() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNCols() != vector.getLength()");
+		}
+
+		int[] vectorIndexes = vector.getIndexes();
+		float[] vectorValues = vector.getValues();
+		float[] result = new float[this.getNRows()];
+		if (vectorIndexes == null || vectorIndexes.length == 0) {
+			return new MLDenseVector(result);
+		}
+		MLConcurrentUtils.Async<RowIterator> iterators = this.newIterators();
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			// merge intersect of decoded row with sorted vector indexes
+			float product = 0f;
+			RowIterator iterator = iterators.get();
+			iterator.reset(rowIndex);
+			int j = 0;
+			while (iterator.hasNext() == true && j < vectorIndexes.length) {
+				iterator.next();
+				while (j < vectorIndexes.length
+						&& vectorIndexes[j] < iterator.getIndex()) {
+					j++;
+				}
+				if (j < vectorIndexes.length
+						&& vectorIndexes[j] == iterator.getIndex()) {
+					product += iterator.getValue() * vectorValues[j];
+					j++;
+				}
+			}
+			result[rowIndex] = product;
+		});
+
+		return new MLDenseVector(result);
+	}
+
+	private MLConcurrentUtils.Async<RowIterator> newIterators() {
+		return new MLConcurrentUtils.Async<>(() -> new RowIterator(this),
+				null);
+	}
+
+	@Override
+	public void setNCols(final int nColsP) {
+		this.nCols = nColsP;
+	}
+
+	private void setRow(final int[] indexes, final float[] rowValues,
+			final long[] dates, final int n, final int rowIndex) {
+		// encode first n entries of a row sorted by index, rowValues is
+		// kept by reference if it has exactly n entries
+		if (n == 0) {
+			this.indexBytes[rowIndex] = null;
+			this.values[rowIndex] = null;
+			if (this.dateBytes != null) {
+				this.dateBytes[rowIndex] = null;
+			}
+			return;
+		}
+
+		this.indexBytes[rowIndex] = encodeIndexes(indexes, n);
+		this.values[rowIndex] = rowValues.length == n ? rowValues
+				: Arrays.copyOf(rowValues, n);
+		if (this.dateBytes != null) {
+			if (dates != null) {
+				this.dateBytes[rowIndex] = encodeDates(dates, n);
+			} else {
+				this.dateBytes[rowIndex] = encodeDates(new long[n], n);
+			}
+		}
+	}
+
+	@Override
+	public void setRow(final MLSparseVector row, final int rowIndex) {
+		if (row == null || row.getIndexes() == null) {
+			this.setRow(null, null, null, 0, rowIndex);
+			return;
+		}
+		this.setRow(row.getIndexes(), row.getValues().clone(),
+				row.getDates(), row.getIndexes().length, rowIndex);
+	}
+
+	public MLSparseMatrixAOO toAOO() {
+		MLSparseVector[] rows = new MLSparseVector[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			rows[rowIndex] = this.getRow(rowIndex);
+		});
+		return new MLSparseMatrixAOO(rows, this.nCols);
+	}
+
+	@Override
+	public void toBinFile(final String outFile) throws Exception {
+
+		try (DataOutputStream writer = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(outFile)))) {
+			RowIterator iterator = new RowIterator(this);
+			for (int rowIndex = 0; rowIndex < this.getNRows(); rowIndex++) {
+				iterator.reset(rowIndex);
+				while (iterator.hasNext() == true) {
+					iterator.next();
+					writer.writeInt(rowIndex);
+					writer.writeInt(iterator.getIndex());
+					writer.writeFloat(iterator.getValue());
+
+					if (this.dateBytes != null) {
+						writer.writeLong(iterator.getDate());
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public MLSparseMatrix transpose() {
+		// transpose uncompressed and compress the result
+		return fromMatrix(this.toAOO().transpose());
+	}
+
+	private static int varLongSize(final long value) {
+		// number of 7 bit groups needed for unsigned value
+		int size = 1;
+		long rest = value >>> 7;
+		while (rest != 0) {
+			size++;
+			rest >>>= 7;
+		}
+		return size;
+	}
+}
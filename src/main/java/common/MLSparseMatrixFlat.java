@@ -1,8 +1,6 @@
 package common;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.stream.IntStream;
 
 import com.google.common.util.concurrent.AtomicDoubleArray;
@@ -30,6 +28,15 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
 		this.nCols = nColsP;
 	}
 
+	@Override
+	public void addRows(final int nRowsToAdd) {
+		// new rows are appended at the end as missing rows
+		int nRows = this.indexes.length;
+		this.indexes = Arrays.copyOf(this.indexes, nRows + nRowsToAdd);
+		Arrays.fill(this.indexes, nRows, this.indexes.length, MISSING_ROW);
+		this.values = Arrays.copyOf(this.values, nRows + nRowsToAdd);
+	}
+
 	@Override
 	public void applyColNorm(final MLDenseVector colNorm) {
 		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
@@ -45,32 +52,27 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
 	}
 
 	@Override
-	public void applyColSelector(final Map<Integer, Integer> selectedColMap,
+	public void applyColSelector(final int[] selectedColMap,
 			final int nColsSelected) {
-		if (this.nCols == nColsSelected) {
-			boolean noChanges = true;
-			for (Map.Entry<Integer, Integer> entry : selectedColMap
-					.entrySet()) {
-				if (entry.getValue() != entry.getKey()) {
-					noChanges = false;
-					break;
-				}
-			}
-
-			if (noChanges == true) {
-				// nothing to do
-				return;
-			}
+		if (this.nCols == nColsSelected
+				&& MLSparseVector.isIdentity(selectedColMap,
+						this.nCols) == true) {
+			// nothing to do
+			return;
 		}
 
 		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
-			Integer index = this.indexes[rowIndex];
+			int index = this.indexes[rowIndex];
 			if (index == MISSING_ROW) {
 				return;
 			}
 
-			index = selectedColMap.get(index);
-			if (index == null) {
+			if (index < selectedColMap.length) {
+				index = selectedColMap[index];
+			} else {
+				index = -1;
+			}
+			if (index < 0) {
 				// not in the map so remove this row
 				this.removeRow(rowIndex);
 
@@ -102,67 +104,49 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
 		Arrays.fill(this.values, 1f);
 	}
 
+	@Override
+	public int copyRow(final int rowIndex, final int[] indexes,
+			final float[] values, final int offset) {
+		if (this.indexes[rowIndex] == MISSING_ROW) {
+			return 0;
+		}
+		if (indexes != null) {
+			indexes[offset] = this.indexes[rowIndex];
+		}
+		if (values != null) {
+			values[offset] = this.values[rowIndex];
+		}
+		return 1;
+	}
+
 	@Override
 	public MLSparseMatrix deepCopy() {
 		return new MLSparseMatrixFlat(this.indexes.clone(), this.values.clone(),
 				this.nCols);
 	}
 
+	@Override
+	public void forEachNonZero(final int rowIndex,
+			final NonZeroVisitor visitor) {
+		if (this.indexes[rowIndex] != MISSING_ROW) {
+			visitor.visit(this.indexes[rowIndex], this.values[rowIndex]);
+		}
+	}
+
 	@Override
 	public MLDenseVector getColNNZ() {
-		float[] colNNZ = new float[this.getNCols()];
-		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
-			int colIndex = this.indexes[rowIndex];
-			if (colIndex == MISSING_ROW) {
-				return;
-			}
-			synchronized (colNNZ) {
-				colNNZ[colIndex] += 1;
-			}
-		});
-		return new MLDenseVector(colNNZ);
+		return this.getColStats(true, false, 0).getNNZ();
 	}
 
 	@Override
 	public MLDenseVector getColNorm(final int p) {
 		// compute L^p norm
-		final float[] colNorm = new float[this.getNCols()];
-		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
-			int colIndex = this.indexes[rowIndex];
-			if (colIndex == MISSING_ROW) {
-				return;
-			}
-			synchronized (colNorm) {
-				if (p == 1) {
-					colNorm[colIndex] += Math.abs(this.values[rowIndex]);
-				} else {
-					colNorm[colIndex] += Math.pow(this.values[rowIndex], p);
-				}
-			}
-		});
-
-		if (p != 1) {
-			for (int i = 0; i < this.getNCols(); i++) {
-				// take p'th root
-				colNorm[i] = (float) Math.pow(colNorm[i], 1.0 / p);
-			}
-		}
-		return new MLDenseVector(colNorm);
+		return this.getColStats(false, false, p).getNorm();
 	}
 
 	@Override
 	public MLDenseVector getColSum() {
-		float[] colSum = new float[this.getNCols()];
-		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
-			int colIndex = this.indexes[rowIndex];
-			if (colIndex == MISSING_ROW) {
-				return;
-			}
-			synchronized (colSum) {
-				colSum[colIndex] += this.values[rowIndex];
-			}
-		});
-		return new MLDenseVector(colSum);
+		return this.getColStats(false, true, 0).getSum();
 	}
 
 	@Override
@@ -213,6 +197,11 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
 		return row;
 	}
 
+	@Override
+	public int getRowLength(final int rowIndex) {
+		return this.indexes[rowIndex] == MISSING_ROW ? 0 : 1;
+	}
+
 	@Override
 	public MLDenseVector getRowNNZ() {
 		float[] rowNNZ = new float[this.getNRows()];
@@ -260,35 +249,7 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
 
 	@Override
 	public MLSparseMatrix mult(final MLSparseMatrix another) {
-		if (this.getNCols() != another.getNRows()) {
-			throw new IllegalArgumentException(
-					"this.getNCols() != another.getNRows()");
-		}
-		MLSparseVector[] resultRows = new MLSparseVector[this.getNRows()];
-		IntStream.range(0, this.getNRows()).parallel().forEach(i -> {
-			int index = this.indexes[i];
-			if (index == MISSING_ROW) {
-				return;
-			}
-			float value = this.values[i];
-			float[] resultRow = new float[another.getNCols()];
-			MLSparseVector rowAnother = another.getRow(index);
-			if (rowAnother != null) {
-
-				int[] indexesAnother = rowAnother.getIndexes();
-				float[] valuesAnother = rowAnother.getValues();
-				for (int k = 0; k < indexesAnother.length; k++) {
-					resultRow[indexesAnother[k]] += value * valuesAnother[k];
-				}
-			}
-			MLSparseVector resultRowSparse = MLSparseVector
-					.fromDense(new MLDenseVector(resultRow));
-			if (resultRowSparse.getIndexes() != null) {
-				resultRows[i] = resultRowSparse;
-			}
-		});
-
-		return new MLSparseMatrixAOO(resultRows, another.getNCols());
+		return MLSparseMatrix.multTopK(this, another, 0);
 	}
 
 	@Override
@@ -410,23 +371,6 @@ public class MLSparseMatrixFlat implements MLSparseMatrix {
 		this.indexes[rowIndex] = MISSING_ROW;
 	}
 
-	@Override
-	public Map<Integer, Integer> selectCols(final int nnzCutOff) {
-		Map<Integer, Integer> selectedColMap = new HashMap<Integer, Integer>(
-				this.nCols);
-
-		MLDenseVector colNNZ = this.getColNNZ();
-		int newIndex = 0;
-		for (int colIndex = 0; colIndex < this.nCols; colIndex++) {
-			if (colNNZ.getValue(colIndex) > nnzCutOff) {
-				selectedColMap.put(colIndex, newIndex);
-				newIndex++;
-			}
-		}
-
-		return selectedColMap;
-	}
-
 	@Override
 	public void setNCols(final int nColsP) {
 		this.nCols = nColsP;
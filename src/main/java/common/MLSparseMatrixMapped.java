@@ -0,0 +1,692 @@
+package common;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.IntStream;
+
+import com.google.common.util.concurrent.AtomicDoubleArray;
+
+/**
+ * Read only CSR matrix backed by a memory mapped file, data stays off heap
+ * in the page cache and can be shared by all processes that map the same
+ * file. Files are written with {@link #write(MLSparseMatrix, String)} and
+ * mapped with {@link #open(String)}, or read back onto the heap with
+ * {@link #load(String)}. Both write and load work on rows in parallel
+ * which makes the format a fast checkpoint for large matrices compared to
+ * the sequential triplet format of toBinFile().
+ * <p>
+ * NOTE: getRow() copies the row onto the heap, use getRow() with caller
+ * buffers or getRowStart()/getRowEnd() with getColIndex()/getValue() to
+ * read rows without allocating. All in place transforms throw
+ * UnsupportedOperationException.
+ */
+public class MLSparseMatrixMapped implements MLSparseMatrix {
+
+	private static final long serialVersionUID = -6202316452780441830L;
+	public static final int MAGIC = 0x4D4C534D;
+	// bump when the file layout changes
+	public static final int VERSION = 1;
+	// magic, version, nRows, nCols, hasDates, padding and nnz
+	private static final long HEADER_SIZE = 32;
+	// files are mapped in segments since a single mapping is limited to
+	// 2GB, all sections are 8 byte aligned so no value spans two segments
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+	private static final long SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private String file;
+	private int nRows;
+	private int nCols;
+	private long nnz;
+	private boolean hasDates;
+	private long colIndexesOffset;
+	private long valuesOffset;
+	private long datesOffset;
+	private transient MappedByteBuffer[] segments;
+
+	private MLSparseMatrixMapped(final String fileP) {
+		this.file = fileP;
+	}
+
+	@Override
+	public void addRows(final int nRowsToAdd) {
+		throw new UnsupportedOperationException("mapped matrix is read only");
+	}
+
+	private static long align(final long offset) {
+		return (offset + 7) & ~7L;
+	}
+
+	@Override
+	public void applyColNorm(final MLDenseVector colNorm) {
+		throw new UnsupportedOperationException("mapped matrix is read only");
+	}
+
+	@Override
+	public void applyColSelector(final int[] selectedColMap,
+			final int nColsSelected) {
+		throw new UnsupportedOperationException("mapped matrix is read only");
+	}
+
+	@Override
+	public void applyRowNorm(final MLDenseVector rowNorm) {
+		throw new UnsupportedOperationException("mapped matrix is read only");
+	}
+
+	@Override
+	public void binarizeValues() {
+		throw new UnsupportedOperationException("mapped matrix is read only");
+	}
+
+	@Override
+	public int copyRow(final int rowIndex, final int[] indexes,
+			final float[] values, final int offset) {
+		long start = this.getRowStart(rowIndex);
+		int rowNNZ = (int) (this.getRowEnd(rowIndex) - start);
+		for (int i = 0; i < rowNNZ; i++) {
+			if (indexes != null) {
+				indexes[offset + i] = this.getColIndex(start + i);
+			}
+			if (values != null) {
+				values[offset + i] = this.getValue(start + i);
+			}
+		}
+		return rowNNZ;
+	}
+
+	@Override
+	public MLSparseMatrix deepCopy() {
+		// copy is made on heap
+		return MLSparseMatrixCSR.fromMatrix(this);
+	}
+
+	@Override
+	public void forEachNonZero(final int rowIndex,
+			final NonZeroVisitor visitor) {
+		long end = this.getRowEnd(rowIndex);
+		for (long i = this.getRowStart(rowIndex); i < end; i++) {
+			visitor.visit(this.getColIndex(i), this.getValue(i));
+		}
+	}
+
+	@Override
+	public MLDenseVector getColNNZ() {
+		return this.getColStats(true, false, 0).getNNZ();
+	}
+
+	public int getColIndex(final long i) {
+		return this.getInt(this.colIndexesOffset + i * Integer.BYTES);
+	}
+
+	@Override
+	public MLDenseVector getColNorm(final int p) {
+		// compute L^p norm
+		return this.getColStats(false, false, p).getNorm();
+	}
+
+	@Override
+	public MLDenseVector getColSum() {
+		return this.getColStats(false, true, 0).getSum();
+	}
+
+	public long getDate(final long i) {
+		return this.getLong(this.datesOffset + i * Long.BYTES);
+	}
+
+	public String getFile() {
+		return this.file;
+	}
+
+	private int getInt(final long offset) {
+		return this.segments[(int) (offset >>> SEGMENT_SHIFT)]
+				.getInt((int) (offset & SEGMENT_MASK));
+	}
+
+	private ByteBuffer getView(final long offset, final int nBytes) {
+		// view positioned at offset, null if range spans two segments
+		MappedByteBuffer segment = this.segments[(int) (offset
+				>>> SEGMENT_SHIFT)];
+		int position = (int) (offset & SEGMENT_MASK);
+		if (position + (long) nBytes > segment.limit()) {
+			return null;
+		}
+		ByteBuffer view = segment.duplicate();
+		view.position(position);
+		return view;
+	}
+
+	private long getLong(final long offset) {
+		return this.segments[(int) (offset >>> SEGMENT_SHIFT)]
+				.getLong((int) (offset & SEGMENT_MASK));
+	}
+
+	@Override
+	public int getNCols() {
+		return this.nCols;
+	}
+
+	@Override
+	public long getNNZ() {
+		return this.nnz;
+	}
+
+	@Override
+	public int getNRows() {
+		return this.nRows;
+	}
+
+	@Override
+	public MLSparseVector getRow(final int rowIndex) {
+		int rowNNZ = this.getRowLength(rowIndex);
+		if (rowNNZ == 0) {
+			return null;
+		}
+
+		int[] indexes = new int[rowNNZ];
+		float[] values = new float[rowNNZ];
+		long[] dates = null;
+		if (this.hasDates == true) {
+			dates = new long[rowNNZ];
+		}
+		this.getRow(rowIndex, indexes, values, dates);
+		return new MLSparseVector(indexes, values, dates, this.nCols);
+	}
+
+	@Override
+	public MLSparseVector getRow(final int rowIndex, boolean returnEmpty) {
+		MLSparseVector row = this.getRow(rowIndex);
+		if (row == null && returnEmpty == true) {
+			// return empty row instead of null
+			row = new MLSparseVector(new int[] {}, new float[] {}, null,
+					this.getNCols());
+		}
+		return row;
+	}
+
+	public int getRow(final int rowIndex, final int[] indexes,
+			final float[] values, final long[] dates) {
+		// fill caller buffers with row and return row nnz, buffers must
+		// hold at least getRowLength() entries and dates can be null
+		long start = this.getRowStart(rowIndex);
+		int rowNNZ = (int) (this.getRowEnd(rowIndex) - start);
+		boolean readDates = dates != null && this.hasDates == true;
+
+		// bulk read each section unless it spans two segments
+		ByteBuffer view = this.getView(
+				this.colIndexesOffset + start * Integer.BYTES,
+				rowNNZ * Integer.BYTES);
+		if (view != null) {
+			view.asIntBuffer().get(indexes, 0, rowNNZ);
+		} else {
+			for (int i = 0; i < rowNNZ; i++) {
+				indexes[i] = this.getColIndex(start + i);
+			}
+		}
+		view = this.getView(this.valuesOffset + start * Float.BYTES,
+				rowNNZ * Float.BYTES);
+		if (view != null) {
+			view.asFloatBuffer().get(values, 0, rowNNZ);
+		} else {
+			for (int i = 0; i < rowNNZ; i++) {
+				values[i] = this.getValue(start + i);
+			}
+		}
+		if (readDates == true) {
+			view = this.getView(this.datesOffset + start * Long.BYTES,
+					rowNNZ * Long.BYTES);
+			if (view != null) {
+				view.asLongBuffer().get(dates, 0, rowNNZ);
+			} else {
+				for (int i = 0; i < rowNNZ; i++) {
+					dates[i] = this.getDate(start + i);
+				}
+			}
+		}
+		return rowNNZ;
+	}
+
+	public long getRowEnd(final int rowIndex) {
+		return this.getLong(HEADER_SIZE + (rowIndex + 1L) * Long.BYTES);
+	}
+
+	@Override
+	public int getRowLength(final int rowIndex) {
+		return (int) (this.getRowEnd(rowIndex) - this.getRowStart(rowIndex));
+	}
+
+	@Override
+	public MLDenseVector getRowNNZ() {
+		float[] rowNNZ = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			rowNNZ[rowIndex] = this.getRowLength(rowIndex);
+		});
+		return new MLDenseVector(rowNNZ);
+	}
+
+	@Override
+	public MLDenseVector getRowNorm(final int p) {
+		final float[] rowNorm = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float norm = 0f;
+			long end = this.getRowEnd(rowIndex);
+			for (long i = this.getRowStart(rowIndex); i < end; i++) {
+				if (p == 1) {
+					norm += Math.abs(this.getValue(i));
+				} else {
+					norm += Math.pow(this.getValue(i), p);
+				}
+			}
+			if (p != 1) {
+				norm = (float) Math.pow(norm, 1.0 / p);
+			}
+			rowNorm[rowIndex] = norm;
+		});
+		return new MLDenseVector(rowNorm);
+	}
+
+	public long getRowStart(final int rowIndex) {
+		return this.getLong(HEADER_SIZE + (long) rowIndex * Long.BYTES);
+	}
+
+	@Override
+	public MLDenseVector getRowSum() {
+		float[] rowSum = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			long end = this.getRowEnd(rowIndex);
+			for (long i = this.getRowStart(rowIndex); i < end; i++) {
+				rowSum[rowIndex] += this.getValue(i);
+			}
+		});
+		return new MLDenseVector(rowSum);
+	}
+
+	public float getValue(final long i) {
+		return Float.intBitsToFloat(
+				this.getInt(this.valuesOffset + i * Float.BYTES));
+	}
+
+	@Override
+	public boolean hasDates() {
+		return this.hasDates;
+	}
+
+	@Override
+	public void inferAndSetNCols() {
+		// infer number of columns if it wasn't known during constructor
+		int nColsNew = 0;
+		for (int rowIndex = 0; rowIndex < this.getNRows(); rowIndex++) {
+			long end = this.getRowEnd(rowIndex);
+			if (end > this.getRowStart(rowIndex)
+					&& this.getColIndex(end - 1) + 1 > nColsNew) {
+				// nCols is 1 + largest col index
+				nColsNew = this.getColIndex(end - 1) + 1;
+			}
+		}
+
+		this.setNCols(nColsNew);
+	}
+
+	private long getFileSize() {
+		// size implied by the header, offsets must be set
+		if (this.hasDates == true) {
+			return this.datesOffset + this.nnz * Long.BYTES;
+		}
+		return this.datesOffset;
+	}
+
+	private long map() throws IOException {
+		// returns size of the mapped file
+		try (FileChannel channel = FileChannel.open(Paths.get(this.file),
+				StandardOpenOption.READ)) {
+			// mapping stays valid after channel is closed
+			long fileSize = channel.size();
+			this.segments = map(channel, FileChannel.MapMode.READ_ONLY,
+					fileSize);
+			return fileSize;
+		}
+	}
+
+	private static MappedByteBuffer[] map(final FileChannel channel,
+			final FileChannel.MapMode mode, final long fileSize)
+			throws IOException {
+		int nSegments = (int) ((fileSize + SEGMENT_SIZE - 1)
+				>>> SEGMENT_SHIFT);
+		MappedByteBuffer[] segments = new MappedByteBuffer[nSegments];
+		for (int i = 0; i < nSegments; i++) {
+			long start = i * SEGMENT_SIZE;
+			segments[i] = channel.map(mode, start,
+					Math.min(SEGMENT_SIZE, fileSize - start));
+		}
+		return segments;
+	}
+
+	@Override
+	public MLSparseMatrix mult(final MLSparseMatrix another) {
+		return MLSparseMatrix.multTopK(this, another, 0);
+	}
+
+	@Override
+	public MLDenseVector multCol(final MLDenseVector vector) {
+
+		// multiply 1 x nRows dense vector with this matrix
+		if (this.getNRows() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNRows() != vector.getLength()");
+		}
+
+		AtomicDoubleArray result = new AtomicDoubleArray(this.nCols);
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float val = vector.getValue(rowIndex);
+			if (val == 0) {
+				return;
+			}
+
+			long end = this.getRowEnd(rowIndex);
+			for (long i = this.getRowStart(rowIndex); i < end; i++) {
+				result.addAndGet(this.getColIndex(i), val * this.getValue(i));
+			}
+		});
+		float[] temp = new float[this.nCols];
+		for (int i = 0; i < temp.length; i++) {
+			temp[i] = (float) result.get(i);
+		}
+
+		return new MLDenseVector(temp);
+	}
+
+	@Override
+	public MLDenseVector multCol(final MLSparseVector vector) {
+
+		// multiply 1 x nRows sparse vector with this matrix
+		if (this.getNRows() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNRows() != vector.getLength()");
+		}
+
+		AtomicDoubleArray result = new AtomicDoubleArray(this.nCols);
+		int[] vectorIndexes = vector.getIndexes();
+		float[] vectorValues = vector.getValues();
+		IntStream.range(0, vectorIndexes.length).parallel().forEach(j -> {
+			float val = vectorValues[j];
+			if (val == 0) {
+				return;
+			}
+
+			int rowIndex = vectorIndexes[j];
+			long end = this.getRowEnd(rowIndex);
+			for (long i = this.getRowStart(rowIndex); i < end; i++) {
+				result.addAndGet(this.getColIndex(i), val * this.getValue(i));
+			}
+		});
+
+		float[] temp = new float[this.nCols];
+		for (int i = 0; i < temp.length; i++) {
+			temp[i] = (float) result.get(i);
+		}
+
+		return new MLDenseVector(temp);
+	}
+
+	@Override
+	public MLDenseVector multRow(final MLDenseVector vector) {
+
+		// multiply this matrix with nCols x 1 dense vector
+		if (this.getNCols() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNCols() != vector.getLength()");
+		}
+
+		float[] vectorValues = vector.getValues();
+		float[] result = new float[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			float product = 0f;
+			long end = this.getRowEnd(rowIndex);
+			for (long i = this.getRowStart(rowIndex); i < end; i++) {
+				int colIndex = this.getColIndex(i);
+				if (vectorValues[colIndex] != 0) {
+					product += this.getValue(i) * vectorValues[colIndex];
+				}
+			}
+			result[rowIndex] = product;
+		});
+
+		return new MLDenseVector(result);
+	}
+
+	@Override
+	public MLDenseVector multRow(final MLSparseVector vector) {
+
+		// multiply this matrix with nCols x 1 sparse vector
+		if (this.getNCols() != vector.getLength()) {
+			throw new IllegalArgumentException(
+					"this.getNCols() != vector.getLength()");
+		}
+
+		int[] vectorIndexes = vector.getIndexes();
+		float[] vectorValues = vector.getValues();
+		float[] result = new float[this.getNRows()];
+		if (vectorIndexes == null || vectorIndexes.length == 0) {
+			return new MLDenseVector(result);
+		}
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			// merge intersect of two sorted index lists
+			float product = 0f;
+			long i = this.getRowStart(rowIndex);
+			long end = this.getRowEnd(rowIndex);
+			int j = 0;
+			while (i < end && j < vectorIndexes.length) {
+				int colIndex = this.getColIndex(i);
+				if (colIndex == vectorIndexes[j]) {
+					product += this.getValue(i) * vectorValues[j];
+					i++;
+					j++;
+				} else if (colIndex < vectorIndexes[j]) {
+					i++;
+				} else {
+					j++;
+				}
+			}
+			result[rowIndex] = product;
+		});
+
+		return new MLDenseVector(result);
+	}
+
+	public static MLSparseMatrixAOO load(final String inFile)
+			throws IOException {
+		// read file back onto heap, rows are rebuilt in parallel
+		return open(inFile).toAOO();
+	}
+
+	public static MLSparseMatrixMapped open(final String inFile)
+			throws IOException {
+		MLSparseMatrixMapped matrix = new MLSparseMatrixMapped(inFile);
+		long fileSize = matrix.map();
+		if (fileSize < HEADER_SIZE || matrix.getInt(0) != MAGIC) {
+			throw new IllegalStateException(
+					"not a mapped matrix file " + inFile);
+		}
+		int version = matrix.getInt(4);
+		if (version != VERSION) {
+			throw new IllegalStateException("unsupported mapped matrix version "
+					+ version + " in " + inFile + ", expected " + VERSION);
+		}
+		matrix.nRows = matrix.getInt(8);
+		matrix.nCols = matrix.getInt(12);
+		matrix.hasDates = matrix.getInt(16) != 0;
+		matrix.nnz = matrix.getLong(24);
+		matrix.setOffsets();
+		if (fileSize != matrix.getFileSize()) {
+			// truncated or partially written file
+			throw new IllegalStateException("mapped matrix file " + inFile
+					+ " has " + fileSize + " bytes, expected "
+					+ matrix.getFileSize());
+		}
+		return matrix;
+	}
+
+	private void putInt(final long offset, final int value) {
+		this.segments[(int) (offset >>> SEGMENT_SHIFT)]
+				.putInt((int) (offset & SEGMENT_MASK), value);
+	}
+
+	private void putLong(final long offset, final long value) {
+		this.segments[(int) (offset >>> SEGMENT_SHIFT)]
+				.putLong((int) (offset & SEGMENT_MASK), value);
+	}
+
+	private void readObject(final ObjectInputStream in)
+			throws IOException, ClassNotFoundException {
+		// only file location and header are serialized, file is mapped
+		// again on read
+		in.defaultReadObject();
+		this.map();
+	}
+
+	@Override
+	public void setNCols(final int nColsP) {
+		this.nCols = nColsP;
+	}
+
+	private void setOffsets() {
+		// sections are rowPtr, colIndexes, values and optional dates
+		this.colIndexesOffset = HEADER_SIZE
+				+ (this.nRows + 1L) * Long.BYTES;
+		this.valuesOffset = align(
+				this.colIndexesOffset + this.nnz * Integer.BYTES);
+		this.datesOffset = align(this.valuesOffset + this.nnz * Float.BYTES);
+	}
+
+	@Override
+	public void setRow(final MLSparseVector row, final int rowIndex) {
+		throw new UnsupportedOperationException("mapped matrix is read only");
+	}
+
+	public MLSparseMatrixAOO toAOO() {
+		MLSparseVector[] rows = new MLSparseVector[this.getNRows()];
+		IntStream.range(0, this.getNRows()).parallel().forEach(rowIndex -> {
+			rows[rowIndex] = this.getRow(rowIndex);
+		});
+		return new MLSparseMatrixAOO(rows, this.nCols);
+	}
+
+	@Override
+	public void toBinFile(final String outFile) throws Exception {
+
+		try (DataOutputStream writer = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(outFile)))) {
+			for (int rowIndex = 0; rowIndex < this.getNRows(); rowIndex++) {
+				long end = this.getRowEnd(rowIndex);
+				for (long i = this.getRowStart(rowIndex); i < end; i++) {
+					writer.writeInt(rowIndex);
+					writer.writeInt(this.getColIndex(i));
+					writer.writeFloat(this.getValue(i));
+
+					if (this.hasDates == true) {
+						writer.writeLong(this.getDate(i));
+					}
+				}
+			}
+		}
+	}
+
+	@Override
+	public MLSparseMatrix transpose() {
+		// transpose is made on heap
+		return MLSparseMatrixCSR.fromTranspose(this);
+	}
+
+	public static void write(final MLSparseMatrix matrix,
+			final String outFile) throws IOException {
+		// write matrix in the mapped CSR layout, rows are written in
+		// parallel straight into a read write mapping of a temporary file
+		// which then replaces outFile
+		int nRows = matrix.getNRows();
+		long[] rowPtr = new long[nRows + 1];
+		IntStream.range(0, nRows).parallel().forEach(rowIndex -> {
+			rowPtr[rowIndex + 1] = matrix.getRowLength(rowIndex);
+		});
+		for (int i = 0; i < nRows; i++) {
+			rowPtr[i + 1] += rowPtr[i];
+		}
+
+		MLSparseMatrixMapped layout = new MLSparseMatrixMapped(outFile);
+		layout.nRows = nRows;
+		layout.nCols = matrix.getNCols();
+		layout.hasDates = matrix.hasDates();
+		layout.nnz = rowPtr[nRows];
+		layout.setOffsets();
+		long fileSize = layout.getFileSize();
+
+		Path tmpFile = Paths.get(outFile + ".tmp");
+		try {
+			writeLayout(matrix, layout, rowPtr, tmpFile, fileSize);
+			Files.move(tmpFile, Paths.get(outFile),
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(tmpFile);
+			throw e;
+		}
+	}
+
+	private static void writeLayout(final MLSparseMatrix matrix,
+			final MLSparseMatrixMapped layout, final long[] rowPtr,
+			final Path outFile, final long fileSize) throws IOException {
+		int nRows = layout.nRows;
+		try (FileChannel channel = FileChannel.open(outFile,
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			// file is zero filled when mapped so padding is implicit
+			layout.segments = map(channel, FileChannel.MapMode.READ_WRITE,
+					fileSize);
+			layout.putInt(0, MAGIC);
+			layout.putInt(4, VERSION);
+			layout.putInt(8, layout.nRows);
+			layout.putInt(12, layout.nCols);
+			layout.putInt(16, layout.hasDates == true ? 1 : 0);
+			layout.putLong(24, layout.nnz);
+			layout.putLong(HEADER_SIZE, 0);
+
+			IntStream.range(0, nRows).parallel().forEach(rowIndex -> {
+				layout.putLong(HEADER_SIZE + (rowIndex + 1L) * Long.BYTES,
+						rowPtr[rowIndex + 1]);
+				MLSparseVector row = matrix.getRow(rowIndex);
+				if (row == null || row.getIndexes() == null) {
+					return;
+				}
+
+				int[] indexes = row.getIndexes();
+				float[] values = row.getValues();
+				boolean rowHasDates = layout.hasDates == true
+						&& row.hasDates() == true;
+				for (int i = 0; i < indexes.length; i++) {
+					long j = rowPtr[rowIndex] + i;
+					layout.putInt(layout.colIndexesOffset
+							+ j * Integer.BYTES, indexes[i]);
+					layout.putInt(layout.valuesOffset + j * Float.BYTES,
+							Float.floatToIntBits(values[i]));
+					if (rowHasDates == true) {
+						layout.putLong(layout.datesOffset + j * Long.BYTES,
+								row.getDate(i));
+					}
+				}
+			});
+
+			for (MappedByteBuffer segment : layout.segments) {
+				segment.force();
+			}
+		}
+	}
+}
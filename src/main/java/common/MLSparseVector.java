@@ -1,34 +1,36 @@
 package common;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 
 public class MLSparseVector implements Serializable {
 
-	private static final long serialVersionUID = -8319046980055965552L;
+	private static final long serialVersionUID = -2871609843418563127L;
+	// switch from merge to galloping search at this length ratio
+	private static final int GALLOP_RATIO = 8;
 	private int[] indexes;
 	private float[] values;
-	private long[] dates;
+	// dates are kept in compact form, null if vector has no dates
+	private MLDateArray dates;
 	private int length;
 
 	public MLSparseVector(final int[] indexesP, final float[] valuesP,
 			final long[] datesP, final int lengthP) {
 		this.indexes = indexesP;
 		this.values = valuesP;
-		this.dates = datesP;
+		this.dates = MLDateArray.encode(datesP);
 		this.length = lengthP;
 	}
 
 	public void applyDateThresh(final long dateThresh, final boolean greater) {
 		// count how many dates are over the threshold
 		int nPass = 0;
-		for (int i = 0; i < this.dates.length; i++) {
-			if ((greater == true && this.dates[i] > dateThresh)
-					|| (greater == false && this.dates[i] <= dateThresh)) {
+		for (int i = 0; i < this.dates.getLength(); i++) {
+			long date = this.dates.get(i);
+			if ((greater == true && date > dateThresh)
+					|| (greater == false && date <= dateThresh)) {
 				nPass++;
 			}
 		}
@@ -46,80 +48,31 @@ public class MLSparseVector implements Serializable {
 		long[] datesThresh = new long[nPass];
 
 		int curIndex = 0;
-		for (int j = 0; j < this.dates.length; j++) {
-			if ((greater == true && this.dates[j] > dateThresh)
-					|| (greater == false && this.dates[j] <= dateThresh)) {
+		for (int j = 0; j < this.dates.getLength(); j++) {
+			long date = this.dates.get(j);
+			if ((greater == true && date > dateThresh)
+					|| (greater == false && date <= dateThresh)) {
 				indexesThresh[curIndex] = this.indexes[j];
 				valuesThresh[curIndex] = this.values[j];
-				datesThresh[curIndex] = this.dates[j];
+				datesThresh[curIndex] = date;
 				curIndex++;
 			}
 		}
 
 		this.indexes = indexesThresh;
 		this.values = valuesThresh;
-		this.dates = datesThresh;
+		this.dates = MLDateArray.encode(datesThresh);
 	}
 
-	public void applyIndexSelector(final Map<Integer, Integer> selectedIndexMap,
+	public void applyIndexSelector(final int[] selectedIndexMap,
 			final int nColsSelected) {
-		if (nColsSelected == 0 || this.indexes == null) {
-			this.indexes = null;
-			this.values = null;
-			this.dates = null;
-			this.length = nColsSelected;
-			return;
-		}
-
 		// apply column selector in place to this vector
-		List<MLMatrixElement> reindexElms = new ArrayList<MLMatrixElement>(
-				this.indexes.length);
-		for (int i = 0; i < this.indexes.length; i++) {
-			Integer newIndex = selectedIndexMap.get(this.indexes[i]);
-			if (newIndex != null) {
-				if (this.dates != null) {
-					reindexElms.add(new MLMatrixElement(-1, newIndex,
-							this.values[i], this.dates[i]));
-				} else {
-					reindexElms.add(new MLMatrixElement(-1, newIndex,
-							this.values[i], -1));
-				}
-			}
-		}
-
-		if (reindexElms.size() == 0) {
-			// nothing selected
-			this.indexes = null;
-			this.values = null;
-			this.dates = null;
-			this.length = nColsSelected;
-			return;
-		}
-
-		Collections.sort(reindexElms,
-				new MLMatrixElement.ColIndexComparator(false));
-		int[] prunedIndexes = new int[reindexElms.size()];
-		float[] prunedValues = new float[reindexElms.size()];
-		long[] prunedDates = null;
-		if (this.dates != null) {
-			prunedDates = new long[reindexElms.size()];
-		}
-
-		int cur = 0;
-		for (MLMatrixElement element : reindexElms) {
-
-			prunedIndexes[cur] = element.getColIndex();
-			prunedValues[cur] = element.getValue();
-			if (this.dates != null) {
-				prunedDates[cur] = element.getDate();
-			}
-			cur++;
-		}
-
-		this.indexes = prunedIndexes;
-		this.values = prunedValues;
-		this.dates = prunedDates;
-		this.length = nColsSelected;
+		MLSparseVector selected = this.selectIndexes(selectedIndexMap,
+				nColsSelected);
+		this.indexes = selected.indexes;
+		this.values = selected.values;
+		this.dates = selected.dates;
+		this.length = selected.length;
 	}
 
 	public void applyNorm(final int p) {
@@ -144,13 +97,11 @@ public class MLSparseVector implements Serializable {
 	}
 
 	public MLSparseVector deepCopy() {
-		long[] datesClone = null;
-		if (this.dates != null) {
-			datesClone = this.dates.clone();
-		}
-
-		return new MLSparseVector(this.indexes.clone(), this.values.clone(),
-				datesClone, this.length);
+		// date arrays are immutable so they are shared with the copy
+		MLSparseVector copy = new MLSparseVector(this.indexes.clone(),
+				this.values.clone(), null, this.length);
+		copy.dates = this.dates;
+		return copy;
 	}
 
 	public void divide(final float constant) {
@@ -159,10 +110,23 @@ public class MLSparseVector implements Serializable {
 		}
 	}
 
-	public long[] getDates() {
+	public long getDate(final int i) {
+		return this.dates.get(i);
+	}
+
+	public MLDateArray getDateArray() {
 		return this.dates;
 	}
 
+	public long[] getDates() {
+		// NOTE: dates are decoded into a new array so changes to it are
+		// not reflected in this vector, use setDates() instead
+		if (this.dates == null) {
+			return null;
+		}
+		return this.dates.toArray();
+	}
+
 	public int[] getIndexes() {
 		return this.indexes;
 	}
@@ -191,46 +155,19 @@ public class MLSparseVector implements Serializable {
 		return this.values;
 	}
 
+	public boolean hasDates() {
+		return this.dates != null;
+	}
+
 	public int intersect(final MLSparseVector other) {
 		if (this.length != other.length) {
 			throw new IllegalArgumentException("length != length");
 		}
-
-		int maxIndex = this.indexes[this.indexes.length - 1];
-		if (other.getIndexes()[0] > maxIndex) {
-			// no overlap in indexes
+		if (this.indexes == null || other.indexes == null) {
 			return 0;
 		}
-
-		int intersect = 0;
-		int[] otherIndexes = other.getIndexes();
-
-		int cur = 0;
-		int curOther = 0;
-		while (true) {
-			if (cur >= this.length || curOther >= otherIndexes.length) {
-				break;
-			}
-
-			if (otherIndexes[curOther] > maxIndex) {
-				// indexes are sorted so can exit here
-				break;
-			}
-
-			if (this.indexes[cur] == otherIndexes[curOther]) {
-				intersect++;
-				cur++;
-				curOther++;
-
-			} else if (this.indexes[cur] > otherIndexes[curOther]) {
-				curOther++;
-
-			} else {
-				cur++;
-			}
-		}
-
-		return intersect;
+		return intersectSorted(this.indexes, 0, this.indexes.length,
+				other.indexes, 0, other.indexes.length);
 	}
 
 	public float max() {
@@ -257,7 +194,7 @@ public class MLSparseVector implements Serializable {
 				rowMap.put(vecToMerge.getIndexes()[i],
 						new MLMatrixElement(1, vecToMerge.getIndexes()[i],
 								vecToMerge.getValues()[i],
-								vecToMerge.getDates()[i]));
+								vecToMerge.getDate(i)));
 			} else {
 				rowMap.put(vecToMerge.getIndexes()[i],
 						new MLMatrixElement(1, vecToMerge.getIndexes()[i],
@@ -270,16 +207,17 @@ public class MLSparseVector implements Serializable {
 			if (element == null) {
 				if (hasDates == true) {
 					rowMap.put(this.indexes[i], new MLMatrixElement(1,
-							this.indexes[i], this.values[i], this.dates[i]));
+							this.indexes[i], this.values[i],
+							this.dates.get(i)));
 				} else {
 					rowMap.put(this.getIndexes()[i], new MLMatrixElement(1,
 							this.indexes[i], this.values[i], 0L));
 				}
 			} else {
 				if (hasDates == true) {
-					if (this.dates[i] > element.getDate()) {
+					if (this.dates.get(i) > element.getDate()) {
 						// store most recent date
-						element.setDate(this.dates[i]);
+						element.setDate(this.dates.get(i));
 					}
 				}
 				// sum up values
@@ -307,7 +245,7 @@ public class MLSparseVector implements Serializable {
 
 		this.indexes = indexesMerged;
 		this.values = valuesMerged;
-		this.dates = datesMerged;
+		this.dates = MLDateArray.encode(datesMerged);
 	}
 
 	public float min() {
@@ -324,47 +262,69 @@ public class MLSparseVector implements Serializable {
 		if (this.length != other.length) {
 			throw new IllegalArgumentException("length != length");
 		}
-
-		int maxIndex = this.indexes[this.indexes.length - 1];
-		if (other.getIndexes()[0] > maxIndex) {
-			// no overlap in indexes
+		if (this.indexes == null || other.indexes == null) {
 			return 0f;
 		}
+		return multiplySorted(this.indexes, this.values, 0,
+				this.indexes.length, other.indexes, other.values, 0,
+				other.indexes.length);
+	}
 
-		float product = 0f;
-		int[] otherIndexes = other.getIndexes();
-		float[] otherValues = other.getValues();
+	public MLSparseVector selectIndexes(final int[] selectedIndexMap,
+			final int nColsSelected) {
+		// returns new vector with column selector applied, this vector is
+		// not changed
+		if (nColsSelected == 0 || this.indexes == null) {
+			return new MLSparseVector(null, null, null, nColsSelected);
+		}
 
-		int cur = 0;
-		int curOther = 0;
-		while (true) {
-			if (cur >= this.length || curOther >= otherIndexes.length) {
-				break;
+		// indexes outside of the map are removed
+		int[] prunedIndexes = new int[this.indexes.length];
+		float[] prunedValues = new float[this.indexes.length];
+		long[] prunedDates = null;
+		if (this.dates != null) {
+			prunedDates = new long[this.indexes.length];
+		}
+		int nSelected = 0;
+		for (int i = 0; i < this.indexes.length; i++) {
+			if (this.indexes[i] >= selectedIndexMap.length) {
+				continue;
 			}
-
-			if (otherIndexes[curOther] > maxIndex) {
-				// indexes are sorted so can exit here
-				break;
+			int newIndex = selectedIndexMap[this.indexes[i]];
+			if (newIndex < 0) {
+				continue;
 			}
+			prunedIndexes[nSelected] = newIndex;
+			prunedValues[nSelected] = this.values[i];
+			if (prunedDates != null) {
+				prunedDates[nSelected] = this.dates.get(i);
+			}
+			nSelected++;
+		}
 
-			if (this.indexes[cur] == otherIndexes[curOther]) {
-				product += this.values[cur] * otherValues[curOther];
-				cur++;
-				curOther++;
-
-			} else if (this.indexes[cur] > otherIndexes[curOther]) {
-				curOther++;
+		if (nSelected == 0) {
+			// nothing selected
+			return new MLSparseVector(null, null, null, nColsSelected);
+		}
 
-			} else {
-				cur++;
-			}
+		// new indexes don't have to preserve column order
+		MLSparseMatrixBuilder.sortRow(prunedIndexes, prunedValues,
+				prunedDates, 0, nSelected);
+		MLSparseVector selected = new MLSparseVector(
+				Arrays.copyOf(prunedIndexes, nSelected),
+				Arrays.copyOf(prunedValues, nSelected), null, nColsSelected);
+		if (prunedDates != null) {
+			selected.dates = MLDateArray.encode(prunedDates, 0, nSelected);
 		}
+		return selected;
+	}
 
-		return product;
+	public void setDateArray(final MLDateArray dates) {
+		this.dates = dates;
 	}
 
 	public void setDates(long[] dates) {
-		this.dates = dates;
+		this.dates = MLDateArray.encode(dates);
 	}
 
 	public void setIndexes(int[] indexes) {
@@ -433,7 +393,7 @@ public class MLSparseVector implements Serializable {
 				nnz += vector.getIndexes().length;
 			}
 			length += vectors[i].getLength();
-			if (vector.getIndexes() != null && vector.getDates() == null) {
+			if (vector.getIndexes() != null && vector.hasDates() == false) {
 				// all vectors must have dates to concat
 				copyDates = false;
 			}
@@ -451,12 +411,11 @@ public class MLSparseVector implements Serializable {
 			int[] vecInds = vector.getIndexes();
 			if (vecInds != null) {
 				float[] vecVals = vector.getValues();
-				long[] vecDates = vector.getDates();
 				for (int j = 0; j < vecInds.length; j++) {
 					indexes[cur] = offset + vecInds[j];
 					values[cur] = vecVals[j];
 					if (copyDates == true) {
-						dates[cur] = vecDates[j];
+						dates[cur] = vector.getDate(j);
 					}
 					cur++;
 				}
@@ -466,6 +425,160 @@ public class MLSparseVector implements Serializable {
 		return new MLSparseVector(indexes, values, dates, length);
 	}
 
+	private static int gallop(final int[] indexes, final int from,
+			final int to, final int key) {
+		// first position in [from, to) with index >= key, steps grow
+		// exponentially and the last step is binary searched
+		int low = from;
+		int high = from;
+		int step = 1;
+		while (high < to && indexes[high] < key) {
+			low = high + 1;
+			high += step;
+			step <<= 1;
+		}
+		high = Math.min(high, to);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (indexes[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private static int gallopIntersect(final int[] shortIndexes,
+			final int shortFrom, final int shortTo, final int[] longIndexes,
+			final int longFrom, final int longTo) {
+		int intersect = 0;
+		int cur = longFrom;
+		for (int i = shortFrom; i < shortTo; i++) {
+			cur = gallop(longIndexes, cur, longTo, shortIndexes[i]);
+			if (cur >= longTo) {
+				break;
+			}
+			if (longIndexes[cur] == shortIndexes[i]) {
+				intersect++;
+				cur++;
+			}
+		}
+		return intersect;
+	}
+
+	private static float gallopMultiply(final int[] shortIndexes,
+			final float[] shortValues, final int shortFrom,
+			final int shortTo, final int[] longIndexes,
+			final float[] longValues, final int longFrom, final int longTo) {
+		float product = 0f;
+		int cur = longFrom;
+		for (int i = shortFrom; i < shortTo; i++) {
+			cur = gallop(longIndexes, cur, longTo, shortIndexes[i]);
+			if (cur >= longTo) {
+				break;
+			}
+			if (longIndexes[cur] == shortIndexes[i]) {
+				product += shortValues[i] * longValues[cur];
+				cur++;
+			}
+		}
+		return product;
+	}
+
+	public static boolean isIdentity(final int[] selectedIndexMap,
+			final int length) {
+		// true if selector keeps the first length indexes unchanged
+		if (selectedIndexMap.length < length) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (selectedIndexMap[i] != i) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static int intersectSorted(final int[] indexes1, final int from1,
+			final int to1, final int[] indexes2, final int from2,
+			final int to2) {
+		// number of common indexes in two sorted index ranges, galloping
+		// search is used when one range is much longer than the other
+		int n1 = to1 - from1;
+		int n2 = to2 - from2;
+		if (n1 <= 0 || n2 <= 0 || indexes1[to1 - 1] < indexes2[from2]
+				|| indexes2[to2 - 1] < indexes1[from1]) {
+			// no overlap in indexes
+			return 0;
+		}
+		if (n1 >= (long) GALLOP_RATIO * n2) {
+			return gallopIntersect(indexes2, from2, to2, indexes1, from1,
+					to1);
+		} else if (n2 >= (long) GALLOP_RATIO * n1) {
+			return gallopIntersect(indexes1, from1, to1, indexes2, from2,
+					to2);
+		}
+
+		int intersect = 0;
+		int cur1 = from1;
+		int cur2 = from2;
+		while (cur1 < to1 && cur2 < to2) {
+			if (indexes1[cur1] == indexes2[cur2]) {
+				intersect++;
+				cur1++;
+				cur2++;
+
+			} else if (indexes1[cur1] > indexes2[cur2]) {
+				cur2++;
+
+			} else {
+				cur1++;
+			}
+		}
+		return intersect;
+	}
+
+	public static float multiplySorted(final int[] indexes1,
+			final float[] values1, final int from1, final int to1,
+			final int[] indexes2, final float[] values2, final int from2,
+			final int to2) {
+		// dot product of two sorted index ranges, products are summed in
+		// index order so galloping and merge give identical results
+		int n1 = to1 - from1;
+		int n2 = to2 - from2;
+		if (n1 <= 0 || n2 <= 0 || indexes1[to1 - 1] < indexes2[from2]
+				|| indexes2[to2 - 1] < indexes1[from1]) {
+			// no overlap in indexes
+			return 0f;
+		}
+		if (n1 >= (long) GALLOP_RATIO * n2) {
+			return gallopMultiply(indexes2, values2, from2, to2, indexes1,
+					values1, from1, to1);
+		} else if (n2 >= (long) GALLOP_RATIO * n1) {
+			return gallopMultiply(indexes1, values1, from1, to1, indexes2,
+					values2, from2, to2);
+		}
+
+		float product = 0f;
+		int cur1 = from1;
+		int cur2 = from2;
+		while (cur1 < to1 && cur2 < to2) {
+			if (indexes1[cur1] == indexes2[cur2]) {
+				product += values1[cur1] * values2[cur2];
+				cur1++;
+				cur2++;
+
+			} else if (indexes1[cur1] > indexes2[cur2]) {
+				cur2++;
+
+			} else {
+				cur1++;
+			}
+		}
+		return product;
+	}
+
 	public static MLSparseVector fromDense(final MLDenseVector dense) {
 		float[] denseVals = dense.getValues();
 
@@ -492,6 +605,19 @@ public class MLSparseVector implements Serializable {
 		return new MLSparseVector(indexes, values, null, denseVals.length);
 	}
 
+	public static int[] padSelector(final int[] selectedIndexMap,
+			final int length) {
+		// selector with exactly length entries, missing entries are -1
+		if (selectedIndexMap.length == length) {
+			return selectedIndexMap;
+		}
+		int[] padded = Arrays.copyOf(selectedIndexMap, length);
+		for (int i = selectedIndexMap.length; i < length; i++) {
+			padded[i] = -1;
+		}
+		return padded;
+	}
+
 	public static MLSparseVector mean(MLSparseVector... input) {
 		int n = input.length;
 
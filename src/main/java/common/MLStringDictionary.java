@@ -0,0 +1,286 @@
+package common;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact string to index dictionary. Strings are stored back to back as
+ * UTF-8 bytes in a single pool and looked up through an open addressing
+ * table of indexes, so there are no per entry objects. Indexes are assigned
+ * in insertion order starting from 0. null is a valid value and gets its
+ * own index like any other string.
+ * <p>
+ * Lookups take no locks and don't allocate, strings are hashed with
+ * String.hashCode() and compared against the pool char by char. Adding a
+ * new string is synchronized, arrays are replaced through the volatile
+ * state when they grow and a new string is published through the volatile
+ * size. A lookup reads size then state and only trusts indexes below size.
+ */
+public class MLStringDictionary implements Serializable {
+
+	private static final long serialVersionUID = -3790203485927417726L;
+	private static final int INIT_CAPACITY = 1 << 10;
+	private static final int EMPTY = -1;
+	private static final int MAX_POOL_SIZE = Integer.MAX_VALUE - 8;
+
+	private volatile int size;
+	private volatile State state;
+	// index of null, it is not stored in the table
+	private int nullIndex;
+
+	private static class State implements Serializable {
+
+		private static final long serialVersionUID = 5093825187204981744L;
+		// string i is stored in pool[offsets[i], offsets[i + 1])
+		private final byte[] pool;
+		private final int[] offsets;
+		private final int[] hashes;
+		// linear probing table of string indexes, length is a power of 2
+		private final int[] table;
+
+		private State(final byte[] poolP, final int[] offsetsP,
+				final int[] hashesP, final int[] tableP) {
+			this.pool = poolP;
+			this.offsets = offsetsP;
+			this.hashes = hashesP;
+			this.table = tableP;
+		}
+	}
+
+	public MLStringDictionary() {
+		this(INIT_CAPACITY);
+	}
+
+	public MLStringDictionary(final int capacityP) {
+		int capacity = Math.max(INIT_CAPACITY, capacityP);
+		int[] table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+		Arrays.fill(table, EMPTY);
+		this.state = new State(new byte[capacity * 16],
+				new int[capacity + 1], new int[capacity], table);
+		this.nullIndex = EMPTY;
+		this.size = 0;
+	}
+
+	public int add(final String value) {
+		// returns index of value, value is added if not present
+		int index = this.getIndex(value);
+		if (index != EMPTY) {
+			return index;
+		}
+		return this.addSync(value);
+	}
+
+	private synchronized int addSync(final String value) {
+		// another thread could have added value in between
+		int index = this.size;
+		State cur = this.state;
+		int[] offsets = cur.offsets;
+		int[] hashes = cur.hashes;
+		if (index == hashes.length) {
+			int capacity = Math.max(INIT_CAPACITY, hashes.length * 2);
+			offsets = Arrays.copyOf(offsets, capacity + 1);
+			hashes = Arrays.copyOf(hashes, capacity);
+		}
+		int start = offsets[index];
+
+		if (value == null) {
+			if (this.nullIndex != EMPTY) {
+				return this.nullIndex;
+			}
+			offsets[index + 1] = start;
+			this.nullIndex = index;
+			this.state = new State(cur.pool, offsets, hashes, cur.table);
+			this.size = index + 1;
+			return index;
+		}
+
+		int hash = hash(value);
+		int slot = findSlot(cur, value, hash, index);
+		if (cur.table[slot] != EMPTY) {
+			return cur.table[slot];
+		}
+
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		byte[] pool = cur.pool;
+		if ((long) start + bytes.length > MAX_POOL_SIZE) {
+			throw new IllegalStateException("dictionary pool is full");
+		}
+		if (start + bytes.length > pool.length) {
+			long capacity = Math.max((long) pool.length * 2,
+					(long) start + bytes.length);
+			pool = Arrays.copyOf(pool, (int) Math.min(capacity, MAX_POOL_SIZE));
+		}
+		System.arraycopy(bytes, 0, pool, start, bytes.length);
+		offsets[index + 1] = start + bytes.length;
+		hashes[index] = hash;
+
+		int[] table = cur.table;
+		if ((index + 1) * 2 > table.length) {
+			table = this.rehash(hashes, table.length * 2, index + 1);
+		} else {
+			table[slot] = index;
+		}
+		if (pool != cur.pool || offsets != cur.offsets
+				|| table != cur.table) {
+			this.state = new State(pool, offsets, hashes, table);
+		}
+		// publish after all writes for index are done
+		this.size = index + 1;
+		return index;
+	}
+
+	private static boolean equals(final State cur, final int index,
+			final String value) {
+		// compare UTF-8 bytes in the pool with value without encoding it,
+		// unpaired surrogates are encoded as '?' same as String.getBytes()
+		byte[] pool = cur.pool;
+		int pos = cur.offsets[index];
+		int end = cur.offsets[index + 1];
+		int length = value.length();
+		for (int i = 0; i < length; i++) {
+			int c = value.charAt(i);
+			if (c < 0x80) {
+				if (pos >= end || pool[pos++] != c) {
+					return false;
+				}
+				continue;
+			}
+			if (Character.isSurrogate((char) c) == true) {
+				char next = i + 1 < length ? value.charAt(i + 1) : 0;
+				if (Character.isHighSurrogate((char) c) == true
+						&& Character.isLowSurrogate(next) == true) {
+					c = Character.toCodePoint((char) c, next);
+					i++;
+				} else {
+					c = '?';
+				}
+			}
+
+			int nBytes;
+			if (c < 0x80) {
+				nBytes = 1;
+			} else if (c < 0x800) {
+				nBytes = 2;
+			} else if (c < 0x10000) {
+				nBytes = 3;
+			} else {
+				nBytes = 4;
+			}
+			if (end - pos < nBytes) {
+				return false;
+			}
+			if (nBytes == 1) {
+				if (pool[pos++] != c) {
+					return false;
+				}
+				continue;
+			}
+			// leading byte then 6 bits per continuation byte
+			int lead = nBytes == 2 ? 0xc0 : (nBytes == 3 ? 0xe0 : 0xf0);
+			int shift = 6 * (nBytes - 1);
+			if (pool[pos++] != (byte) (lead | (c >> shift))) {
+				return false;
+			}
+			for (shift -= 6; shift >= 0; shift -= 6) {
+				if (pool[pos++] != (byte) (0x80 | ((c >> shift) & 0x3f))) {
+					return false;
+				}
+			}
+		}
+		return pos == end;
+	}
+
+	private static int findSlot(final State cur, final String value,
+			final int hash, final int nVisible) {
+		// slot holding value or the empty slot where it would be inserted,
+		// indexes >= nVisible may not be fully written and are skipped
+		int[] table = cur.table;
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		while (table[slot] != EMPTY) {
+			int index = table[slot];
+			if (index < nVisible && cur.hashes[index] == hash
+					&& equals(cur, index, value) == true) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	public String get(final int index) {
+		int nVisible = this.size;
+		if (index < 0 || index >= nVisible || index == this.nullIndex) {
+			return null;
+		}
+		State cur = this.state;
+		int start = cur.offsets[index];
+		return new String(cur.pool, start, cur.offsets[index + 1] - start,
+				StandardCharsets.UTF_8);
+	}
+
+	public int getIndex(final String value) {
+		// returns index of value or -1 if not present
+		int nVisible = this.size;
+		if (value == null) {
+			int index = this.nullIndex;
+			return index < nVisible ? index : EMPTY;
+		}
+		State cur = this.state;
+		int index = cur.table[findSlot(cur, value, hash(value), nVisible)];
+		return index < nVisible ? index : EMPTY;
+	}
+
+	private static int hash(final String value) {
+		// String caches its hash code so this doesn't touch the chars
+		int hash = value.hashCode();
+		// spread bits since table index uses the low bits
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		return hash;
+	}
+
+	private int[] rehash(final int[] hashes, final int tableLength,
+			final int nIndexes) {
+		// new table is filled before it is published
+		int[] tableNew = new int[tableLength];
+		Arrays.fill(tableNew, EMPTY);
+		int mask = tableNew.length - 1;
+		for (int index = 0; index < nIndexes; index++) {
+			if (index == this.nullIndex) {
+				continue;
+			}
+			int slot = hashes[index] & mask;
+			while (tableNew[slot] != EMPTY) {
+				slot = (slot + 1) & mask;
+			}
+			tableNew[slot] = index;
+		}
+		return tableNew;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public synchronized String[] toArray() {
+		String[] values = new String[this.size];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = this.get(i);
+		}
+		return values;
+	}
+
+	public synchronized void trim() {
+		// release unused capacity once no more strings are added
+		State cur = this.state;
+		int nIndexes = this.size;
+		this.state = new State(
+				Arrays.copyOf(cur.pool, cur.offsets[nIndexes]),
+				Arrays.copyOf(cur.offsets, nIndexes + 1),
+				Arrays.copyOf(cur.hashes, nIndexes), cur.table);
+	}
+
+}
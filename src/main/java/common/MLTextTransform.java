@@ -3,10 +3,11 @@ package common;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringReader;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.LowerCaseFilter;
@@ -103,32 +104,75 @@ public abstract class MLTextTransform implements Serializable {
 	public static class LuceneAnalyzerTextTransform extends MLTextTransform {
 
 		private static final long serialVersionUID = 1843607513745972795L;
+		// tokenized output is cached for up to this many distinct inputs
+		private static final int MAX_CACHE_SIZE = 1 << 20;
+
 		private Analyzer analyzer;
+		private boolean useCache;
+		private transient volatile Map<String, String[]> cache;
 
 		public LuceneAnalyzerTextTransform(final Analyzer analyzerP) {
+			this(analyzerP, false);
+		}
+
+		public LuceneAnalyzerTextTransform(final Analyzer analyzerP,
+				final boolean useCacheP) {
+			// only cache inputs that repeat a lot, the cache lives until
+			// clearCache() is called
 			this.analyzer = analyzerP;
+			this.useCache = useCacheP;
 		}
 
 		@Override
 		public void apply(final MLTextInput input) {
-			try {
-				List<String> tokens = passThroughAnalyzer(input.text,
-						this.analyzer);
-				String[] tokenized = new String[tokens.size()];
-				int cur = 0;
-				for (String token : tokens) {
-					tokenized[cur] = token;
-					cur++;
+			// NOTE: cached arrays are shared between inputs and must not be
+			// modified
+			Map<String, String[]> tokenCache = null;
+			String[] tokenized = null;
+			if (this.useCache == true) {
+				tokenCache = this.getCache();
+				tokenized = tokenCache.get(input.text);
+			}
+			if (tokenized == null) {
+				try {
+					List<String> tokens = passThroughAnalyzer(input.text,
+							this.analyzer);
+					tokenized = tokens.toArray(new String[tokens.size()]);
+
+				} catch (Exception e) {
+					throw new RuntimeException(e.getMessage());
+				}
+				if (tokenCache != null
+						&& tokenCache.size() < MAX_CACHE_SIZE) {
+					tokenCache.put(input.text, tokenized);
 				}
-				input.setTokenized(tokenized);
+			}
+			input.setTokenized(tokenized);
+		}
 
-			} catch (Exception e) {
-				throw new RuntimeException(e.getMessage());
+		@Override
+		public void clearCache() {
+			this.cache = null;
+		}
+
+		private Map<String, String[]> getCache() {
+			// cache is not serialized so it's created lazily
+			Map<String, String[]> tokenCache = this.cache;
+			if (tokenCache == null) {
+				synchronized (this) {
+					tokenCache = this.cache;
+					if (tokenCache == null) {
+						tokenCache = new ConcurrentHashMap<String, String[]>();
+						this.cache = tokenCache;
+					}
+				}
 			}
+			return tokenCache;
 		}
 
 		public static List<String> passThroughAnalyzer(final String input,
 				final Analyzer analyzer) throws IOException {
+			// analyzer reuses its token stream components per thread
 			TokenStream tokenStream = null;
 			try {
 				tokenStream = analyzer.tokenStream(null,
@@ -136,7 +180,7 @@ public abstract class MLTextTransform implements Serializable {
 				CharTermAttribute termAtt = tokenStream
 						.addAttribute(CharTermAttribute.class);
 				tokenStream.reset();
-				List<String> tokens = new LinkedList<String>();
+				List<String> tokens = new ArrayList<String>();
 				while (tokenStream.incrementToken()) {
 					String term = termAtt.toString().trim();
 					if (term.length() > 0) {
@@ -179,4 +223,8 @@ public abstract class MLTextTransform implements Serializable {
 	private static final long serialVersionUID = 3800020927323228525L;
 
 	public abstract void apply(final MLTextInput input);
+
+	public void clearCache() {
+		// release data kept between apply() calls
+	}
 }
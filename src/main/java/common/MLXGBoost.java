@@ -18,6 +18,9 @@ import common.MLConcurrentUtils.Async;
 
 public class MLXGBoost {
 
+	// largest java array that can be allocated
+	private static final int MAX_DMATRIX_NNZ = Integer.MAX_VALUE - 8;
+
 	public static class MLXGBoostFeature {
 
 		public static class ScoreComparator
@@ -128,7 +131,14 @@ public class MLXGBoost {
 	public static DMatrix toDMatrix(final MLSparseMatrix matrix)
 			throws XGBoostError {
 
-		final int nnz = (int) matrix.getNNZ();
+		// DMatrix takes int indexed arrays so nnz must fit into an int,
+		// larger matrices have to be split into row batches
+		final long nnzLong = matrix.getNNZ();
+		if (nnzLong > MAX_DMATRIX_NNZ) {
+			throw new IllegalArgumentException("nnz " + nnzLong
+					+ " is too large for a single DMatrix");
+		}
+		final int nnz = (int) nnzLong;
 		final int nRows = matrix.getNRows();
 		final int nCols = matrix.getNCols();
 
@@ -4,7 +4,7 @@ import java.io.Serializable;
 
 public class Data implements Serializable {
 	private static final long serialVersionUID = -7664221183075239249L;
-	public Song[] songs;
-	public Playlist[] playlists;
+	public SongTable songs;
+	public PlaylistStore playlists;
 	public int[] testIndexes;
 }
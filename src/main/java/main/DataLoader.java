@@ -8,108 +8,463 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
+import common.MLJsonStreamReader;
+import common.MLStringDictionary;
 import common.MLTimer;
 
 public class DataLoader {
 
+	public static class DataLoaderParams {
+		// parse slice files concurrently, resulting song and playlist
+		// indexes are identical to the sequential load
+		public boolean parallel = false;
+		// number of slice files parsed concurrently before merging
+		public int parallelBatchSize = 64;
+		// read playlists straight from the character stream instead of
+		// building a json DOM for each slice
+		public boolean streaming = false;
+	}
+
+	private static class Slice {
+		private PlaylistStore playlists = new PlaylistStore();
+		private SongTable songs = new SongTable();
+		private int nParsedSongs;
+	}
+
 	public static Data load(final String trainPath, final String testFileName)
 			throws IOException {
+		return load(trainPath, testFileName, new DataLoaderParams());
+	}
+
+	public static Data load(final String trainPath, final String testFileName,
+			final DataLoaderParams params) throws IOException {
 
 		File folder = new File(trainPath);
 		File[] listOfFiles = folder.listFiles();
 		Arrays.sort(listOfFiles);
-		File testFile = new File(testFileName);
 
-		Map<String, Integer> songIdToIndex = new HashMap<String, Integer>();
+		// test file is always parsed last
+		File[] files = Arrays.copyOf(listOfFiles, listOfFiles.length + 1);
+		files[listOfFiles.length] = new File(testFileName);
 
-		AtomicInteger uniquePlaylistCounter = new AtomicInteger(0);
-		AtomicInteger uniqueSongCounter = new AtomicInteger(0);
-		AtomicInteger parsedSongCounter = new AtomicInteger(0);
+		PlaylistStore playlists = new PlaylistStore();
+		SongTable songs = new SongTable();
+		int nTrainPlaylists;
+		if (params.parallel == true) {
+			nTrainPlaylists = loadParallel(files, params, songs, playlists);
+		} else {
+			nTrainPlaylists = loadSequential(files, params, songs, playlists);
+		}
+		System.out.printf(
+				"FINISHED PARSING: playlists[%d] unique songs[%d] total songs[%d]",
+				playlists.getNPlaylists(), songs.getNSongs(),
+				playlists.getNTracks());
+		Data data = new Data();
+
+		playlists.trim();
+		data.playlists = playlists;
+
+		data.testIndexes = IntStream
+				.range(nTrainPlaylists, playlists.getNPlaylists()).toArray();
+
+		songs.trim();
+		data.songs = songs;
+
+		return data;
+
+	}
+
+	public static String[] getInputFiles(final String trainPath,
+			final String testFileName) {
+		// describe inputs in the order they are parsed by load()
+		File[] listOfFiles = new File(trainPath).listFiles();
+		Arrays.sort(listOfFiles);
+		File[] files = Arrays.copyOf(listOfFiles, listOfFiles.length + 1);
+		files[listOfFiles.length] = new File(testFileName);
+		return describeFiles(files);
+	}
+
+	public static String[] getInputFiles(final String deltaPath) {
+		// describe inputs in the order they are parsed by loadDelta()
+		File[] files = new File(deltaPath).listFiles();
+		Arrays.sort(files);
+		return describeFiles(files);
+	}
 
-		List<Playlist> playlists = new ArrayList<Playlist>();
-		List<Song> songs = new ArrayList<Song>();
-		List<Integer> testIndexes = new ArrayList<Integer>();
+	private static String[] describeFiles(final File[] files) {
+		// path, size and modification time so changed inputs can be
+		// detected without reading them
+		String[] described = new String[files.length];
+		for (int i = 0; i < files.length; i++) {
+			described[i] = files[i].getPath() + "|" + files[i].length() + "|"
+					+ files[i].lastModified();
+		}
+		return described;
+	}
+
+	public static Data loadDelta(final String deltaPath,
+			final String[] existingSongIds, final DataLoaderParams params)
+			throws IOException {
+		// load new slices to be appended to already parsed data, songs
+		// that exist in existingSongIds keep their index and new songs are
+		// indexed after them in order of first appearance
+		File folder = new File(deltaPath);
+		File[] files = folder.listFiles();
+		Arrays.sort(files);
+
+		PlaylistStore playlists = new PlaylistStore();
+		SongTable songs = new SongTable();
+		if (params.parallel == true) {
+			loadParallel(files, params, songs, playlists);
+		} else {
+			loadSequential(files, params, songs, playlists);
+		}
+
+		MLStringDictionary existingToIndex = new MLStringDictionary(
+				existingSongIds.length);
+		for (int i = 0; i < existingSongIds.length; i++) {
+			existingToIndex.add(existingSongIds[i]);
+		}
+
+		// only songs not seen before are kept in the delta song table
+		SongTable newSongs = new SongTable();
+		int[] localToGlobal = new int[songs.getNSongs()];
+		for (int j = 0; j < localToGlobal.length; j++) {
+			int songIndex = existingToIndex.getIndex(songs.getTrackUri(j));
+			if (songIndex < 0) {
+				songIndex = existingSongIds.length
+						+ newSongs.addSong(songs, j);
+			}
+			localToGlobal[j] = songIndex;
+		}
+		PlaylistStore newPlaylists = new PlaylistStore();
+		newPlaylists.append(playlists, localToGlobal);
+		System.out.printf(
+				"FINISHED PARSING DELTA: playlists[%d] new songs[%d] total songs[%d]",
+				newPlaylists.getNPlaylists(), newSongs.getNSongs(),
+				newPlaylists.getNTracks());
+
+		Data data = new Data();
+		newPlaylists.trim();
+		data.playlists = newPlaylists;
+		data.testIndexes = new int[0];
+		newSongs.trim();
+		data.songs = newSongs;
+		return data;
+	}
+
+	private static int loadSequential(final File[] files,
+			final DataLoaderParams params, final SongTable songs,
+			final PlaylistStore playlists) throws IOException {
 		MLTimer timer = new MLTimer("load");
 		timer.tic();
 
-		for (int f = 0; f <= listOfFiles.length; f++) {
-			File file;
-			if (f >= listOfFiles.length) {
-				timer.toc("test file " + testFileName);
-				file = testFile;
-			} else {
-				file = listOfFiles[f];
+		int nTrainPlaylists = 0;
+		int parsedSongCounter = 0;
+		for (int f = 0; f < files.length; f++) {
+			if (f == files.length - 1) {
+				timer.toc("test file " + files[f].getName());
+				nTrainPlaylists = playlists.getNPlaylists();
 			}
 
-			try (BufferedReader reader = new BufferedReader(
-					new FileReader(file))) {
-				JSONObject obj = (JSONObject) JSONValue.parse(reader);
-				JSONArray list = (JSONArray) obj.get("playlists");
-				for (int l = 0; l < list.size(); l++) {
-					uniquePlaylistCounter.incrementAndGet();
-					if (f >= listOfFiles.length) {
-						testIndexes.add(uniquePlaylistCounter.get() - 1);
-					}
+			parsedSongCounter += parseFile(files[f], params.streaming, songs,
+					playlists);
 
-					Object data = list.get(l);
-					Playlist playlist = new Playlist((JSONObject) data);
-
-					Object tracksObj = ((JSONObject) data).get("tracks");
-					if (tracksObj != null && tracksObj instanceof JSONArray) {
-						JSONArray tracksArray = (JSONArray) tracksObj;
-						Track[] tracks = new Track[tracksArray.size()];
-						for (int i = 0; i < tracksArray.size(); i++) {
-							JSONObject songObj = (JSONObject) tracksArray
-									.get(i);
-							Song song = new Song(songObj);
-							Integer songIndex = songIdToIndex
-									.get(song.get_track_uri());
-							if (songIndex == null) {
-								songIndex = uniqueSongCounter.getAndIncrement();
-								songIdToIndex.put(song.get_track_uri(),
-										songIndex);
-								songs.add(song);
-							}
-							tracks[i] = new Track(songIndex,
-									songObj.getAsNumber("pos").intValue());
-							parsedSongCounter.incrementAndGet();
-						}
-						playlist.setTracks(tracks);
+			if ((f + 1) % 10 == 0) {
+				timer.tocLoop(String.format(
+						"playlists[%d] unique songs[%d] total songs[%d]",
+						playlists.getNPlaylists(), songs.getNSongs(),
+						parsedSongCounter), parsedSongCounter);
+			}
+		}
+		return nTrainPlaylists;
+	}
+
+	private static int loadParallel(final File[] files,
+			final DataLoaderParams params, final SongTable songs,
+			final PlaylistStore playlists) {
+		MLTimer timer = new MLTimer("loadParallel");
+		timer.tic();
+
+		int nTrainPlaylists = 0;
+		AtomicInteger parsedSongCounter = new AtomicInteger(0);
+		for (int batchStart = 0; batchStart < files.length; batchStart += params.parallelBatchSize) {
+			int batchEnd = Math.min(batchStart + params.parallelBatchSize,
+					files.length);
+
+			// parse each file with its own local song dictionary
+			Slice[] slices = new Slice[batchEnd - batchStart];
+			final int offset = batchStart;
+			IntStream.range(0, slices.length).parallel().forEach(i -> {
+				Slice slice = new Slice();
+				try {
+					slice.nParsedSongs = parseFile(files[offset + i],
+							params.streaming, slice.songs, slice.playlists);
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				slices[i] = slice;
+				parsedSongCounter.addAndGet(slice.nParsedSongs);
+			});
+
+			// merge in file order, new songs are added in the order they
+			// first appear in each file so global song indexes match the
+			// sequential load
+			for (int i = 0; i < slices.length; i++) {
+				if (offset + i == files.length - 1) {
+					nTrainPlaylists = playlists.getNPlaylists();
+				}
+
+				Slice slice = slices[i];
+				int[] localToGlobal = new int[slice.songs.getNSongs()];
+				for (int j = 0; j < localToGlobal.length; j++) {
+					int songIndex = songs
+							.getSongIndex(slice.songs.getTrackUri(j));
+					if (songIndex < 0) {
+						songIndex = songs.addSong(slice.songs, j);
 					}
-					playlists.add(playlist);
+					localToGlobal[j] = songIndex;
 				}
 
-				if ((f + 1) % 10 == 0) {
-					timer.tocLoop(String.format(
-							"playlists[%d] unique songs[%d] total songs[%d]",
-							playlists.size(), songs.size(),
-							parsedSongCounter.get()), parsedSongCounter.get());
+				playlists.append(slice.playlists, localToGlobal);
+				slices[i] = null;
+			}
+
+			timer.tocLoop(String.format(
+					"files[%d] playlists[%d] unique songs[%d] total songs[%d]",
+					batchEnd, playlists.getNPlaylists(), songs.getNSongs(),
+					parsedSongCounter.get()), parsedSongCounter.get());
+		}
+		return nTrainPlaylists;
+	}
+
+	private static int parseFile(final File file, final boolean streaming,
+			final SongTable songs, final PlaylistStore playlists)
+			throws IOException {
+		if (streaming == true) {
+			return parseFileStreaming(file, songs, playlists);
+		}
+
+		int parsedSongCounter = 0;
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader(file))) {
+			JSONObject obj = (JSONObject) JSONValue.parse(reader);
+			JSONArray list = (JSONArray) obj.get("playlists");
+			for (int l = 0; l < list.size(); l++) {
+				JSONObject data = (JSONObject) list.get(l);
+				int playlistIndex = playlists.addPlaylist();
+				playlists.setPid(playlistIndex, data.getAsString("pid"));
+				playlists.setName(playlistIndex, data.getAsString("name"));
+				if (data.containsKey("collaborative") == true) {
+					playlists.setCollaborative(playlistIndex,
+							data.getAsString("collaborative").toLowerCase()
+									.equals("true"));
+				}
+				if (data.containsKey("modified_at") == true) {
+					playlists.setModifiedAt(playlistIndex,
+							data.getAsNumber("modified_at").longValue());
+				}
+				if (data.containsKey("num_albums") == true) {
+					playlists.setNumAlbums(playlistIndex,
+							data.getAsNumber("num_albums").intValue());
+				}
+				if (data.containsKey("num_tracks") == true) {
+					playlists.setNumTracks(playlistIndex,
+							data.getAsNumber("num_tracks").intValue());
+				}
+				if (data.containsKey("num_followers") == true) {
+					playlists.setNumFollowers(playlistIndex,
+							data.getAsNumber("num_followers").intValue());
+				}
+				if (data.containsKey("num_edits") == true) {
+					playlists.setNumEdits(playlistIndex,
+							data.getAsNumber("num_edits").intValue());
+				}
+				if (data.containsKey("duration_ms") == true) {
+					playlists.setDurationMs(playlistIndex,
+							data.getAsNumber("duration_ms").intValue());
+				}
+				if (data.containsKey("num_artists") == true) {
+					playlists.setNumArtists(playlistIndex,
+							data.getAsNumber("num_artists").intValue());
+				}
+
+				Object tracksObj = data.get("tracks");
+				if (tracksObj != null && tracksObj instanceof JSONArray) {
+					JSONArray tracksArray = (JSONArray) tracksObj;
+					for (int i = 0; i < tracksArray.size(); i++) {
+						JSONObject songObj = (JSONObject) tracksArray.get(i);
+						String trackUri = songObj.getAsString("track_uri");
+						int songIndex = songs.getSongIndex(trackUri);
+						if (songIndex < 0) {
+							songIndex = songs.addSong(trackUri,
+									songObj.getAsString("track_name"),
+									songObj.getAsString("artist_uri"),
+									songObj.getAsString("artist_name"),
+									songObj.getAsString("album_uri"),
+									songObj.getAsString("album_name"),
+									songObj.getAsNumber("duration_ms")
+											.intValue());
+						}
+						playlists.addTrack(songIndex,
+								songObj.getAsNumber("pos").intValue());
+						parsedSongCounter++;
+					}
 				}
 			}
 		}
+		return parsedSongCounter;
+	}
 
-		System.out.printf(
-				"FINISHED PARSING: playlists[%d] unique songs[%d] total songs[%d]",
-				playlists.size(), songs.size(), parsedSongCounter.get());
-		Data data = new Data();
+	private static int parseFileStreaming(final File file,
+			final SongTable songs, final PlaylistStore playlists)
+			throws IOException {
+		int parsedSongCounter = 0;
+		try (MLJsonStreamReader reader = new MLJsonStreamReader(
+				new BufferedReader(new FileReader(file)))) {
+			reader.beginObject();
+			while (reader.hasNext() == true) {
+				if (reader.nextName().equals("playlists") == false) {
+					reader.skipValue();
+					continue;
+				}
 
-		data.playlists = new Playlist[playlists.size()];
-		playlists.toArray(data.playlists);
+				reader.beginArray();
+				while (reader.hasNext() == true) {
+					int playlistIndex = playlists.addPlaylist();
 
-		data.testIndexes = testIndexes.stream().mapToInt(i -> i).toArray();
+					reader.beginObject();
+					while (reader.hasNext() == true) {
+						String key = reader.nextName();
+						if (reader.peek() == MLJsonStreamReader.Token.NULL) {
+							reader.nextNull();
+							continue;
+						}
+						switch (key) {
+							case "pid":
+								playlists.setPid(playlistIndex,
+										reader.nextString());
+								break;
+							case "name":
+								playlists.setName(playlistIndex,
+										reader.nextString());
+								break;
+							case "collaborative":
+								playlists.setCollaborative(playlistIndex,
+										reader.nextString().toLowerCase()
+												.equals("true"));
+								break;
+							case "modified_at":
+								playlists.setModifiedAt(playlistIndex,
+										reader.nextLong());
+								break;
+							case "num_albums":
+								playlists.setNumAlbums(playlistIndex,
+										reader.nextInt());
+								break;
+							case "num_tracks":
+								playlists.setNumTracks(playlistIndex,
+										reader.nextInt());
+								break;
+							case "num_followers":
+								playlists.setNumFollowers(playlistIndex,
+										reader.nextInt());
+								break;
+							case "num_edits":
+								playlists.setNumEdits(playlistIndex,
+										reader.nextInt());
+								break;
+							case "duration_ms":
+								playlists.setDurationMs(playlistIndex,
+										reader.nextInt());
+								break;
+							case "num_artists":
+								playlists.setNumArtists(playlistIndex,
+										reader.nextInt());
+								break;
+							case "tracks":
+								if (reader
+										.peek() != MLJsonStreamReader.Token.BEGIN_ARRAY) {
+									reader.skipValue();
+									break;
+								}
+								reader.beginArray();
+								while (reader.hasNext() == true) {
+									parseTrack(reader, songs, playlists);
+									parsedSongCounter++;
+								}
+								reader.endArray();
+								break;
+							default:
+								reader.skipValue();
+								break;
+						}
+					}
+					reader.endObject();
+				}
+				reader.endArray();
+			}
+			reader.endObject();
+		}
+		return parsedSongCounter;
+	}
 
-		data.songs = new Song[songs.size()];
-		songs.toArray(data.songs);
+	private static void parseTrack(final MLJsonStreamReader reader,
+			final SongTable songs, final PlaylistStore playlists)
+			throws IOException {
+		String artistName = null;
+		String trackUri = null;
+		String artistUri = null;
+		String trackName = null;
+		String albumUri = null;
+		String albumName = null;
+		int durationMs = 0;
+		int pos = 0;
 
-		return data;
+		reader.beginObject();
+		while (reader.hasNext() == true) {
+			switch (reader.nextName()) {
+				case "artist_name":
+					artistName = reader.nextString();
+					break;
+				case "track_uri":
+					trackUri = reader.nextString();
+					break;
+				case "artist_uri":
+					artistUri = reader.nextString();
+					break;
+				case "track_name":
+					trackName = reader.nextString();
+					break;
+				case "album_uri":
+					albumUri = reader.nextString();
+					break;
+				case "album_name":
+					albumName = reader.nextString();
+					break;
+				case "duration_ms":
+					durationMs = reader.nextInt();
+					break;
+				case "pos":
+					pos = reader.nextInt();
+					break;
+				default:
+					reader.skipValue();
+					break;
+			}
+		}
+		reader.endObject();
 
+		int songIndex = songs.getSongIndex(trackUri);
+		if (songIndex < 0) {
+			songIndex = songs.addSong(trackUri, trackName, artistUri,
+					artistName, albumUri, albumName, durationMs);
+		}
+		playlists.addTrack(songIndex, pos);
 	}
 
 }
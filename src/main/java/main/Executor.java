@@ -4,11 +4,13 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.Arrays;
 
 import common.ALS;
 import common.ALS.ALSParams;
 import common.MLTimer;
 import common.SplitterCF;
+import main.DataLoader.DataLoaderParams;
 import main.XGBModel.XGBModelParams;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
@@ -16,14 +18,14 @@ import okhttp3.Response;
 
 public class Executor {
 
-	private static void downloadCreativeData(Data dataLoaded, String outFile,
+	private static void downloadCreativeData(String[] songIds, String outFile,
 			String authToken) throws IOException {
 		// Please provide your own key here
 		final String AUTH_TOKEN = "Bearer " + authToken;
 
 		try (BufferedWriter bw = new BufferedWriter(new FileWriter(outFile))) {
 
-			int nSongs = dataLoaded.songs.length;
+			int nSongs = songIds.length;
 			int batchSize = Math.floorDiv(nSongs, 100);
 			OkHttpClient client = new OkHttpClient();
 
@@ -44,12 +46,10 @@ public class Executor {
 				int firstTime = 1;
 				for (int i = batchStart; i < batchEnd; i++) {
 					if (firstTime == 1) {
-						url = url + dataLoaded.songs[i].get_track_uri()
-								.split(":")[2];
+						url = url + songIds[i].split(":")[2];
 						firstTime = 0;
 					} else {
-						url = url + "%2C" + dataLoaded.songs[i].get_track_uri()
-								.split(":")[2];
+						url = url + "%2C" + songIds[i].split(":")[2];
 					}
 
 				}
@@ -130,6 +130,8 @@ public class Executor {
 			String testFile = "/media/mvolkovs/external4TB/Data/recsys2018/data/test/challenge_set.json";
 			String pythonScriptPath = "/home/mvolkovs/projects/vl6_recsys2018/script/svd_py.py";
 			String cachePath = "/media/mvolkovs/external4TB/Data/recsys2018/models/svd/";
+			// new slices to append to the parsed data snapshot, null if none
+			String deltaPath = null;
 
 			MLTimer timer = new MLTimer("main");
 			timer.tic();
@@ -138,24 +140,71 @@ public class Executor {
 			xgbParams.doCreative = false;
 			xgbParams.xgbModel = cachePath + "xgb.model";
 
-			// load data
-			Data data = DataLoader.load(trainPath, testFile);
-			timer.toc("data loaded");
+			// load parsed data from snapshot if it was parsed from the same
+			// input files, with or without the delta appended
+			ParsedData dataParsed;
+			String snapshotFile = cachePath + "parsed_data.snapshot";
+			String[] inputFiles = DataLoader.getInputFiles(trainPath,
+					testFile);
+			String[] inputFilesDelta = inputFiles;
+			if (deltaPath != null) {
+				String[] deltaFiles = DataLoader.getInputFiles(deltaPath);
+				inputFilesDelta = Arrays.copyOf(inputFiles,
+						inputFiles.length + deltaFiles.length);
+				System.arraycopy(deltaFiles, 0, inputFilesDelta,
+						inputFiles.length, deltaFiles.length);
+			}
+			String[] snapshotInputFiles = ParsedDataSnapshot
+					.readInputFiles(snapshotFile);
+			if (Arrays.equals(snapshotInputFiles, inputFiles) == true
+					|| Arrays.equals(snapshotInputFiles,
+							inputFilesDelta) == true) {
+				dataParsed = ParsedDataSnapshot.read(snapshotFile);
+				timer.toc("data parsed from snapshot");
+
+				if (Arrays.equals(dataParsed.inputFiles,
+						inputFilesDelta) == false) {
+					DataLoaderParams loaderParams = new DataLoaderParams();
+					loaderParams.parallel = true;
+					loaderParams.streaming = true;
+					Data delta = DataLoader.loadDelta(deltaPath,
+							dataParsed.songIds, loaderParams);
+					new ParsedDataLoader(dataParsed).append(delta);
+					dataParsed.inputFiles = inputFilesDelta;
+					timer.toc("delta appended");
+
+					ParsedDataSnapshot.write(dataParsed, snapshotFile);
+				}
 
-			// download creative track features if not there
-			if (xgbParams.doCreative == true
-					&& new File(creativeTrackFile).exists() == false) {
-				downloadCreativeData(data, creativeTrackFile, authToken);
+			} else {
+				// load data
+				DataLoaderParams loaderParams = new DataLoaderParams();
+				loaderParams.parallel = true;
+				loaderParams.streaming = true;
+				Data data = DataLoader.load(trainPath, testFile,
+						loaderParams);
+				timer.toc("data loaded");
+
+				ParsedDataLoader loader = new ParsedDataLoader(data);
+				loader.loadPlaylists();
+				loader.loadSongs();
+				dataParsed = loader.dataParsed;
+				dataParsed.inputFiles = inputFiles;
+				timer.toc("data parsed");
+
+				ParsedDataSnapshot.write(dataParsed, snapshotFile);
 			}
 
-			ParsedDataLoader loader = new ParsedDataLoader(data);
-			loader.loadPlaylists();
-			loader.loadSongs();
 			if (xgbParams.doCreative == true) {
-				loader.loadSongExtraInfo(creativeTrackFile);
+				// download creative track features if not there
+				if (new File(creativeTrackFile).exists() == false) {
+					downloadCreativeData(dataParsed.songIds, creativeTrackFile,
+							authToken);
+				}
+				new ParsedDataLoader(dataParsed)
+						.loadSongExtraInfo(creativeTrackFile);
+				timer.toc("creative parsed");
 			}
-			ParsedData dataParsed = loader.dataParsed;
-			timer.toc("data parsed");
 
 			// generate split
 			SplitterCF split = RecSysSplitter.getSplitMatching(dataParsed);
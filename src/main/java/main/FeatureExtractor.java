@@ -63,6 +63,7 @@ public class FeatureExtractor {
 
 	private Map<SongFeature, MLSparseFeature> songFeatsMap;
 	private Map<SongExtraInfoFeature, MLSparseFeature> songExtraInfoFeatMap;
+	private SongAudioFeatures songAudio;
 	private Map<SongDerivedFeature, MLSparseFeature> songDerivedFeatMap;
 
 	private MLSparseMatrix R;
@@ -76,6 +77,10 @@ public class FeatureExtractor {
 	private MLSparseMatrix songFeatsDerived;
 	private MLSparseMatrix songExtraInfoFeats;
 
+	private int[] songArtists;
+	private int[] songAlbums;
+	private float[] songDurations;
+
 	private float[] songStats;
 	private float[] artistStats;
 	private float[] albumStats;
@@ -86,17 +91,20 @@ public class FeatureExtractor {
 			final Map<PlaylistFeature, MLSparseFeature> playlistFeatsMapP,
 			final Map<SongFeature, MLSparseFeature> songFeatsMapP,
 			final Map<SongExtraInfoFeature, MLSparseFeature> songExtraInfoFeatMapP,
-			final MLSparseMatrix RP, final MLSparseMatrix RtP,
+			final SongAudioFeatures songAudioP, final MLSparseMatrix RP,
+			final MLSparseMatrix RtP,
 			final Latents latentsP, final MLTimer timerP) throws Exception {
 		this.playlistFeatMap = playlistFeatsMapP;
 		this.songFeatsMap = songFeatsMapP;
 		this.songExtraInfoFeatMap = songExtraInfoFeatMapP;
+		this.songAudio = songAudioP;
 		this.R = RP;
 		this.Rt = RtP;
 		this.latents = latentsP;
 		this.timer = timerP;
 
 		// pre-compute all caches
+		this.computeSongCache();
 		this.computePopularityCache();
 		this.computePlaylistDerivedFeats();
 		this.computeSongDerivedFeats();
@@ -266,13 +274,13 @@ public class FeatureExtractor {
 
 		// sanity check
 		System.out.println(this.playlistDerivedFeatMap
-				.get(PlaylistDerivedFeature.SONG_ARTISTS).getCatToIndex().size()
+				.get(PlaylistDerivedFeature.SONG_ARTISTS).getNCats()
 				+ " " + this.songFeatsMap.get(SongFeature.ARTIST_ID)
-						.getCatToIndex().size());
+						.getNCats());
 		System.out.println(this.playlistDerivedFeatMap
-				.get(PlaylistDerivedFeature.SONG_ALBUMS).getCatToIndex().size()
+				.get(PlaylistDerivedFeature.SONG_ALBUMS).getNCats()
 				+ " " + this.songFeatsMap.get(SongFeature.ALBUM_ID)
-						.getCatToIndex().size());
+						.getNCats());
 
 		for (PlaylistDerivedFeature featureName : PlaylistDerivedFeature
 				.values()) {
@@ -289,8 +297,8 @@ public class FeatureExtractor {
 
 		MLSparseFeature artist = this.songFeatsMap.get(SongFeature.ARTIST_ID);
 		MLSparseFeature album = this.songFeatsMap.get(SongFeature.ALBUM_ID);
-		this.artistStats = new float[artist.getCatToIndex().size()];
-		this.albumStats = new float[album.getCatToIndex().size()];
+		this.artistStats = new float[artist.getNCats()];
+		this.albumStats = new float[album.getNCats()];
 
 		IntStream.range(0, this.R.getNRows()).parallel().forEach(i -> {
 			MLSparseVector row = this.R.getRow(i);
@@ -332,6 +340,26 @@ public class FeatureExtractor {
 		});
 	}
 
+	private void computeSongCache() {
+		// flatten single valued song features into arrays for fast lookup
+		MLSparseMatrix artist = this.songFeatsMap.get(SongFeature.ARTIST_ID)
+				.getFeatMatrix();
+		MLSparseMatrix album = this.songFeatsMap.get(SongFeature.ALBUM_ID)
+				.getFeatMatrix();
+		MLSparseMatrix duration = this.songFeatsMap.get(SongFeature.DURATION)
+				.getFeatMatrix();
+
+		int nSongs = artist.getNRows();
+		this.songArtists = new int[nSongs];
+		this.songAlbums = new int[nSongs];
+		this.songDurations = new float[nSongs];
+		IntStream.range(0, nSongs).parallel().forEach(i -> {
+			this.songArtists[i] = artist.getRow(i).getIndexes()[0];
+			this.songAlbums[i] = album.getRow(i).getIndexes()[0];
+			this.songDurations[i] = duration.getRow(i).getValues()[0];
+		});
+	}
+
 	private void computeSongDerivedFeats() throws Exception {
 
 		this.songDerivedFeatMap = new HashMap<SongDerivedFeature, MLSparseFeature>();
@@ -344,8 +372,8 @@ public class FeatureExtractor {
 		final int N_PLAYLISTS_TO_USE = 1_000;
 		AtomicInteger counter = new AtomicInteger(0);
 		IntStream.range(0, this.Rt.getNRows()).parallel().forEach(songIndex -> {
-			MLSparseVector song = this.Rt.getRow(songIndex);
-			if (song == null) {
+			int nPlaylists = this.Rt.getRowLength(songIndex);
+			if (nPlaylists == 0) {
 				return;
 			}
 
@@ -354,7 +382,9 @@ public class FeatureExtractor {
 				timer.tocLoop("computeSongDerivedFeats", count);
 			}
 
-			int[] playlistIndexes = song.getIndexes();
+			// copy since indexes are shuffled below
+			int[] playlistIndexes = new int[nPlaylists];
+			this.Rt.copyRow(songIndex, playlistIndexes, null, 0);
 
 			if (playlistIndexes.length > N_PLAYLISTS_TO_USE) {
 				MLRandomUtils.shuffle(playlistIndexes, new Random(songIndex));
@@ -530,8 +560,9 @@ public class FeatureExtractor {
 
 		// similarity between targetPlaylist and playlists where targetSong
 		// appears
-		MLSparseVector song = this.Rt.getRow(targetSongIndex, true);
-		int[] playlistIndexes = song.getIndexes().clone();
+		int[] playlistIndexes = new int[this.Rt
+				.getRowLength(targetSongIndex)];
+		this.Rt.copyRow(targetSongIndex, playlistIndexes, null, 0);
 
 		final int N_PLAYLISTS_TO_USE = 1_000;
 
@@ -584,90 +615,30 @@ public class FeatureExtractor {
 		MLSparseVector playlist = this.R.getRow(targetPlaylistIndex);
 		int[] songIndexes = playlist.getIndexes();
 
-		float[] simSong = new float[12];
+		// audio features are read straight from the dense store
+		SongExtraInfoFeature[] audioFeatures = SongExtraInfoFeature.values();
+		float[] simSong = new float[audioFeatures.length];
 		for (int songIndex : songIndexes) {
+			for (int i = 0; i < audioFeatures.length; i++) {
+				SongExtraInfoFeature feature = audioFeatures[i];
+				if (this.songAudio.hasValue(feature, targetSongIndex) == false
+						|| this.songAudio.hasValue(feature,
+								songIndex) == false) {
+					continue;
+				}
 
-			simSong[0] += diffValue(
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.acousticness)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.acousticness)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[1] += diffValue(
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.danceability)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.danceability)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[2] += diffValue(
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.energy)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.energy)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[3] += diffValue(
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.instrumentalness)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.instrumentalness)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[4] += equalsIndex(
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.key)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.key)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[5] += diffValue(
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.liveness)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.liveness)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[6] += diffValue(
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.loudness)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.loudness)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[7] += diffValue(
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.mode)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.mode)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[8] += diffValue(
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.speechiness)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.speechiness)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[9] += diffValue(
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.tempo)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.tempo)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[10] += diffValue(
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.time_signature)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap
-							.get(SongExtraInfoFeature.time_signature)
-							.getFeatMatrix().getRow(songIndex));
-
-			simSong[11] += diffValue(
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.valence)
-							.getFeatMatrix().getRow(targetSongIndex),
-					this.songExtraInfoFeatMap.get(SongExtraInfoFeature.valence)
-							.getFeatMatrix().getRow(songIndex));
+				float targetValue = this.songAudio.getValue(feature,
+						targetSongIndex);
+				float value = this.songAudio.getValue(feature, songIndex);
+				if (feature.equals(SongExtraInfoFeature.key) == true) {
+					// categorical
+					if ((int) targetValue == (int) value) {
+						simSong[i] += 1f;
+					}
+				} else {
+					simSong[i] += targetValue - value;
+				}
+			}
 		}
 
 		if (songIndexes.length > 1) {
@@ -683,30 +654,27 @@ public class FeatureExtractor {
 	}
 
 	private int getSongAlbum(int songIndex) {
-		return this.songFeatsMap.get(SongFeature.ALBUM_ID).getFeatMatrix()
-				.getRow(songIndex).getIndexes()[0];
+		return this.songAlbums[songIndex];
 	}
 
 	private String getSongAlbumString(int songIndex) {
 		int albumIndex = this.getSongAlbum(songIndex);
-		return this.songFeatsMap.get(SongFeature.ALBUM_ID).getIndexToCat()
-				.get(albumIndex);
+		return this.songFeatsMap.get(SongFeature.ALBUM_ID)
+				.getCat(albumIndex);
 	}
 
 	private int getSongArtist(int songIndex) {
-		return this.songFeatsMap.get(SongFeature.ARTIST_ID).getFeatMatrix()
-				.getRow(songIndex).getIndexes()[0];
+		return this.songArtists[songIndex];
 	}
 
 	private String getSongArtistString(int songIndex) {
 		int artistIndex = this.getSongArtist(songIndex);
-		return this.songFeatsMap.get(SongFeature.ARTIST_ID).getIndexToCat()
-				.get(artistIndex);
+		return this.songFeatsMap.get(SongFeature.ARTIST_ID)
+				.getCat(artistIndex);
 	}
 
 	private float getSongDuration(int songIndex) {
-		return this.songFeatsMap.get(SongFeature.DURATION).getFeatMatrix()
-				.getRow(songIndex).getValues()[0];
+		return this.songDurations[songIndex];
 	}
 
 	private MLSparseVector getSongFeaturesV1(final int targetPlaylistIndex,
@@ -745,29 +713,6 @@ public class FeatureExtractor {
 		return MLSparseVector.concat(temp);
 	}
 
-	private static float equalsIndex(final MLSparseVector vector1,
-			final MLSparseVector vector2) {
-		if (vector1 == null || vector2 == null) {
-			return 0f;
-		}
-
-		if (vector1.getIndexes()[0] == vector2.getIndexes()[0]) {
-			return 1f;
-
-		} else {
-			return 0f;
-		}
-	}
-
-	private static float diffValue(final MLSparseVector vector1,
-			final MLSparseVector vector2) {
-		if (vector1 == null || vector2 == null) {
-			return 0f;
-		}
-
-		return vector1.getValues()[0] - vector2.getValues()[0];
-	}
-
 	private static float equalsIndex(final Integer index1,
 			final Integer index2) {
 		if (index1 == null || index2 == null) {
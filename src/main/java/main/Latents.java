@@ -67,7 +67,7 @@ public class Latents {
 		this.name = MLDenseMatrix.fromFile(
 				dataPath + "/models/latent_name/name_" + rankName + ".bin",
 				data.playlistFeatures.get(PlaylistFeature.NAME_REGEXED)
-						.getCatToIndex().size(),
+						.getNCats(),
 				rankName);
 
 		int rankArtist = 200;
@@ -84,8 +84,7 @@ public class Latents {
 		this.artist = MLDenseMatrix.fromFile(
 				dataPath + "/models/latent_artist/artist_" + rankArtist
 						+ ".bin",
-				data.songFeatures.get(SongFeature.ARTIST_ID).getCatToIndex()
-						.size(),
+				data.songFeatures.get(SongFeature.ARTIST_ID).getNCats(),
 				rankArtist);
 
 		int rankAlbum = 200;
@@ -97,8 +96,7 @@ public class Latents {
 				data.interactions.getNCols(), rankAlbum);
 		this.album = MLDenseMatrix.fromFile(
 				dataPath + "/models/latent_album/album_" + rankAlbum + ".bin",
-				data.songFeatures.get(SongFeature.ALBUM_ID).getCatToIndex()
-						.size(),
+				data.songFeatures.get(SongFeature.ALBUM_ID).getNCats(),
 				rankAlbum);
 
 	}
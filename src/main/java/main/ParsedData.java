@@ -41,6 +41,8 @@ public class ParsedData implements Serializable {
 
 	private static final long serialVersionUID = 736424464160763130L;
 
+	// input files this data was parsed from, see DataLoader.getInputFiles
+	public String[] inputFiles;
 	public String[] songIds;
 	public String[] playlistIds;
 	public int[] testIndexes;
@@ -48,6 +50,7 @@ public class ParsedData implements Serializable {
 	public Map<PlaylistFeature, MLSparseFeature> playlistFeatures;
 	public Map<SongFeature, MLSparseFeature> songFeatures;
 	public Map<SongExtraInfoFeature, MLSparseFeature> songExtraInfoFeatures;
+	public SongAudioFeatures songAudioFeatures;
 	public MLSparseMatrix interactions;
 
 }
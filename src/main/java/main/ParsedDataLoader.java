@@ -1,29 +1,30 @@
 package main;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 import common.MLFeatureTransform;
-import common.MLMatrixElement;
 import common.MLSparseFeature;
+import common.MLSparseMatrix;
 import common.MLSparseMatrixAOO;
+import common.MLSparseMatrixBuilder;
+import common.MLSparseMatrixFlat;
 import common.MLSparseVector;
 import common.MLTextTransform;
 import common.MLTimer;
 import main.ParsedData.PlaylistFeature;
 import main.ParsedData.SongExtraInfoFeature;
 import main.ParsedData.SongFeature;
-import net.minidev.json.JSONArray;
-import net.minidev.json.JSONObject;
-import net.minidev.json.parser.JSONParser;
 
 public class ParsedDataLoader {
 
+	private static final Pattern PUNCT = Pattern.compile("\\p{Punct}");
+	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
 	private Data dataLoaded;
 	public ParsedData dataParsed;
 
@@ -36,12 +37,286 @@ public class ParsedDataLoader {
 		this.dataParsed = dataParsedP;
 	}
 
+	private void addPlaylistFeatures(final PlaylistStore playlists,
+			final int index, final int rowIndex) {
+		String playlistName = playlists.getName(index);
+		for (PlaylistFeature featureName : PlaylistFeature.values()) {
+			switch (featureName) {
+				case NAME_ORIGINAL: {
+					if (playlistName != null) {
+						this.dataParsed.playlistFeatures.get(featureName)
+								.addRow(rowIndex, playlistName);
+					}
+					break;
+				}
+
+				case NAME_REGEXED: {
+					if (playlistName != null) {
+						String name = playlistName.toLowerCase();
+						name = PUNCT.matcher(name).replaceAll(" ");
+						name = WHITESPACE.matcher(name).replaceAll(" ").trim();
+						this.dataParsed.playlistFeatures.get(featureName)
+								.addRow(rowIndex, name);
+					}
+					break;
+				}
+
+				case NAME_TOKENIZED: {
+					if (playlistName != null) {
+						// convert emojis to string
+						String name = playlistName;
+						this.dataParsed.playlistFeatures.get(featureName)
+								.addRow(rowIndex, name);
+					}
+					break;
+				}
+
+				case N_TRACKS: {
+					if (playlists
+							.getNumTracks(index) != PlaylistStore.MISSING) {
+						this.dataParsed.playlistFeatures.get(featureName)
+								.addRow(rowIndex, new MLSparseVector(
+										new int[] { 0 },
+										new float[] {
+												playlists.getNumTracks(index) },
+										null, 1));
+					}
+					break;
+				}
+
+				// case IS_COLLABORATIVE: {
+				// int collab = 0;
+				// if (playlist.get_collaborative() == true) {
+				// collab = 1;
+				// }
+				// this.dataParsed.playlistFeatures.get(featureName)
+				// .addRow(rowIndex, new MLSparseVector(new int[] { 0 },
+				// new float[] { collab }, null, 1));
+				// break;
+				// }
+				//
+				// case MODIFIED_AT: {
+				// this.dataParsed.playlistFeatures.get(featureName)
+				// .addRow(rowIndex, new MLSparseVector(new int[] { 0 },
+				// new float[] { TimeUnit.MILLISECONDS
+				// .toHours(playlist
+				// .get_modified_at()) },
+				// null, 1));
+				// break;
+				// }
+				//
+				// case N_FOLLOWERS: {
+				// this.dataParsed.playlistFeatures.get(featureName)
+				// .addRow(rowIndex, new MLSparseVector(new int[] { 0 },
+				// new float[] {
+				// playlist.get_num_followers() },
+				// null, 1));
+				// break;
+				// }
+				//
+				// case N_EDITS: {
+				// this.dataParsed.playlistFeatures.get(featureName)
+				// .addRow(rowIndex, new MLSparseVector(new int[] { 0 },
+				// new float[] {
+				// playlist.get_num_edits() },
+				// null, 1));
+				// break;
+				// }
+			}
+		}
+	}
+
+	private void addSongExtraInfoFeatures(final SongAudioFeatures audio,
+			final int songIndex) {
+		for (SongExtraInfoFeature featureName : SongExtraInfoFeature
+				.values()) {
+			if (audio.hasValue(featureName, songIndex) == false) {
+				continue;
+			}
+
+			float value = audio.getValue(featureName, songIndex);
+			if (featureName.equals(SongExtraInfoFeature.key) == true) {
+				this.dataParsed.songExtraInfoFeatures.get(featureName)
+						.addRow(songIndex, ((int) value) + "");
+			} else {
+				this.dataParsed.songExtraInfoFeatures.get(featureName)
+						.addRow(songIndex, value);
+			}
+		}
+	}
+
+	private void addSongFeatures(final SongTable songs, final int index,
+			final int rowIndex, final boolean appending) {
+		for (SongFeature featureName : SongFeature.values()) {
+			switch (featureName) {
+				case ARTIST_ID: {
+					MLSparseFeature feature = this.dataParsed.songFeatures
+							.get(featureName);
+					int artist = songs.getArtist(index);
+					if (appending == true) {
+						// song table codes are local to the delta
+						feature.addRow(rowIndex, new String[] {
+								songs.getArtistUri(artist) });
+					} else {
+						feature.addRow(rowIndex,
+								new MLSparseVector(new int[] { artist },
+										new float[] { 1 }, null,
+										songs.getNArtists()));
+					}
+					break;
+				}
+
+				case ALBUM_ID: {
+					MLSparseFeature feature = this.dataParsed.songFeatures
+							.get(featureName);
+					int album = songs.getAlbum(index);
+					if (appending == true) {
+						feature.addRow(rowIndex, new String[] {
+								songs.getAlbumUri(album) });
+					} else {
+						feature.addRow(rowIndex,
+								new MLSparseVector(new int[] { album },
+										new float[] { 1 }, null,
+										songs.getNAlbums()));
+					}
+					break;
+				}
+
+				case TRACK_NAME: {
+					this.dataParsed.songFeatures.get(featureName)
+							.addRow(rowIndex, songs.getTrackName(index));
+					break;
+				}
+
+				case DURATION: {
+					this.dataParsed.songFeatures.get(featureName)
+							.addRow(rowIndex, new MLSparseVector(new int[] { 0 },
+									new float[] { TimeUnit.MILLISECONDS
+											.toSeconds(songs
+													.getDurationMs(index)) },
+									null, 1));
+					break;
+				}
+			}
+		}
+	}
+
+	public void append(final Data delta) {
+		// extend parsed data in place with playlists and songs from delta,
+		// existing row, column and category indexes are not changed
+		MLTimer timer = new MLTimer("append");
+		timer.tic();
+
+		PlaylistStore playlists = delta.playlists;
+		SongTable songs = delta.songs;
+		int nPlaylistsOld = this.dataParsed.playlistIds.length;
+		int nSongsOld = this.dataParsed.songIds.length;
+		int nPlaylists = nPlaylistsOld + playlists.getNPlaylists();
+		int nSongs = nSongsOld + songs.getNSongs();
+
+		this.dataParsed.playlistIds = Arrays
+				.copyOf(this.dataParsed.playlistIds, nPlaylists);
+		this.dataParsed.songIds = Arrays.copyOf(this.dataParsed.songIds,
+				nSongs);
+		for (int i = 0; i < songs.getNSongs(); i++) {
+			this.dataParsed.songIds[nSongsOld + i] = songs.getTrackUri(i);
+		}
+
+		// grow interactions, existing rows only need their length updated
+		MLSparseMatrix interactions = this.dataParsed.interactions;
+		interactions.addRows(playlists.getNPlaylists());
+		interactions.setNCols(nSongs);
+		IntStream.range(0, nPlaylistsOld).parallel().forEach(i -> {
+			MLSparseVector row = interactions.getRow(i, false);
+			if (row != null) {
+				row.setLength(nSongs);
+			}
+		});
+		timer.toc("interactions resized");
+
+		// add new songs
+		for (MLSparseFeature feature : this.dataParsed.songFeatures.values()) {
+			feature.startAppend(nSongs);
+		}
+		IntStream.range(0, songs.getNSongs()).parallel().forEach(i -> {
+			this.addSongFeatures(songs, i, nSongsOld + i, true);
+		});
+		for (MLSparseFeature feature : this.dataParsed.songFeatures.values()) {
+			feature.finishAppend();
+		}
+		if (this.dataParsed.songAudioFeatures != null) {
+			this.dataParsed.songAudioFeatures.grow(nSongs);
+		}
+		if (this.dataParsed.songExtraInfoFeatures != null) {
+			// extra info is not available for new songs
+			for (MLSparseFeature feature : this.dataParsed.songExtraInfoFeatures
+					.values()) {
+				feature.startAppend(nSongs);
+				feature.finishAppend();
+			}
+		}
+		timer.toc("songs added " + songs.getNSongs());
+
+		// add new playlists
+		for (MLSparseFeature feature : this.dataParsed.playlistFeatures
+				.values()) {
+			feature.startAppend(nPlaylists);
+		}
+		AtomicInteger count = new AtomicInteger(0);
+		IntStream.range(0, playlists.getNPlaylists()).parallel().forEach(i -> {
+			int rowIndex = nPlaylistsOld + i;
+			this.dataParsed.playlistIds[rowIndex] = playlists.getPid(i);
+			MLSparseVector row = this.getInteractionRow(playlists, i,
+					rowIndex, nSongs);
+			if (row != null) {
+				interactions.setRow(row, rowIndex);
+			}
+			this.addPlaylistFeatures(playlists, i, rowIndex);
+
+			int curCount = count.incrementAndGet();
+			if (curCount % 100_000 == 0) {
+				timer.tocLoop(curCount);
+			}
+		});
+		timer.tocLoop(count.get());
+
+		for (MLSparseFeature feature : this.dataParsed.playlistFeatures
+				.values()) {
+			feature.finishAppend();
+		}
+		timer.toc("playlists added " + playlists.getNPlaylists());
+	}
+
+	private MLSparseVector getInteractionRow(final PlaylistStore playlists,
+			final int index, final int rowIndex, final int nSongs) {
+		// convert playlist to sparse matrix
+		int nTracks = playlists.getNTracks(index);
+		if (nTracks > 0) {
+			int start = playlists.getTrackStart(index);
+			int[] indexes = new int[nTracks];
+			float[] values = new float[nTracks];
+			long[] dates = new long[nTracks];
+			for (int j = 0; j < nTracks; j++) {
+				indexes[j] = playlists.getSongIndex(start + j);
+				values[j] = 1.0f;
+				// set date to position in the playlist
+				dates[j] = playlists.getSongPos(start + j);
+			}
+			// some playlists have duplicate songs, these are summed and keep
+			// the first position
+			return MLSparseMatrixBuilder.buildRow(indexes, values, dates, 0,
+					nTracks, nSongs, false);
+		}
+		return null;
+	}
+
 	public void loadPlaylists() {
 		MLTimer timer = new MLTimer("loadPlaylists");
 		timer.tic();
 
-		int nPlaylists = this.dataLoaded.playlists.length;
-		int nSongs = this.dataLoaded.songs.length;
+		PlaylistStore playlists = this.dataLoaded.playlists;
+		int nPlaylists = playlists.getNPlaylists();
+		int nSongs = this.dataLoaded.songs.getNSongs();
 
 		MLSparseVector[] rows = new MLSparseVector[nPlaylists];
 		this.dataParsed.interactions = new MLSparseMatrixAOO(rows, nSongs);
@@ -55,10 +330,12 @@ public class ParsedDataLoader {
 			MLTextTransform[] textTransforms;
 			switch (featureName) {
 				case NAME_TOKENIZED: {
-					// tokenize playlist name
+					// tokenize playlist name, names repeat a lot so tokens
+					// are cached
 					textTransforms = new MLTextTransform[] {
 							new MLTextTransform.LuceneAnalyzerTextTransform(
-									new MLTextTransform.DefaultAnalyzer()) };
+									new MLTextTransform.DefaultAnalyzer(),
+									true) };
 					break;
 				}
 				default: {
@@ -78,143 +355,16 @@ public class ParsedDataLoader {
 		AtomicInteger count = new AtomicInteger(0);
 		this.dataParsed.testIndexes = this.dataLoaded.testIndexes;
 		this.dataParsed.playlistIds = new String[nPlaylists];
-		// IntStream.range(0, nPlaylists).parallel()(i -> {
-		for (int i = 0; i < nPlaylists; i++) {
-			Playlist playlist = this.dataLoaded.playlists[i];
-			this.dataParsed.playlistIds[i] = playlist.get_pid();
-
-			Track[] tracks = playlist.getTracks();
-
-			// convert playlist to sparse matrix
-			if (tracks != null && tracks.length > 0) {
-				Map<Integer, MLMatrixElement> elementMap = new HashMap<Integer, MLMatrixElement>();
-				for (int j = 0; j < tracks.length; j++) {
-					MLMatrixElement element = elementMap
-							.get(tracks[j].getSongIndex());
-					if (element == null) {
-						// set date to position in the playlist
-						element = new MLMatrixElement(i,
-								tracks[j].getSongIndex(), 1.0f,
-								tracks[j].getSongPos());
-						elementMap.put(tracks[j].getSongIndex(), element);
-					} else {
-						// some playlists have duplicate songs
-						element.setValue(element.getValue() + 1.0f);
-					}
-				}
-				MLMatrixElement[] elements = new MLMatrixElement[elementMap
-						.size()];
-				int curIndex = 0;
-				for (MLMatrixElement element : elementMap.values()) {
-					elements[curIndex] = element;
-					curIndex++;
-				}
-				Arrays.sort(elements,
-						new MLMatrixElement.ColIndexComparator(false));
-
-				int[] indexes = new int[elements.length];
-				float[] values = new float[elements.length];
-				long[] dates = new long[elements.length];
-				for (int j = 0; j < elements.length; j++) {
-					indexes[j] = elements[j].getColIndex();
-					values[j] = elements[j].getValue();
-					dates[j] = elements[j].getDate();
-				}
-				rows[i] = new MLSparseVector(indexes, values, dates, nSongs);
-			}
-
-			// add playlist features
-			for (PlaylistFeature featureName : PlaylistFeature.values()) {
-				switch (featureName) {
-					case NAME_ORIGINAL: {
-						if (playlist.get_name() != null) {
-							this.dataParsed.playlistFeatures.get(featureName)
-									.addRow(i, playlist.get_name());
-						}
-						break;
-					}
-
-					case NAME_REGEXED: {
-						if (playlist.get_name() != null) {
-							String name = playlist.get_name();
-							name = name.toLowerCase();
-							name = name.replaceAll("\\p{Punct}", " ");
-							name = name.replaceAll("\\s+", " ").trim();
-							this.dataParsed.playlistFeatures.get(featureName)
-									.addRow(i, name);
-						}
-						break;
-					}
-
-					case NAME_TOKENIZED: {
-						if (playlist.get_name() != null) {
-							// convert emojis to string
-							String name = playlist.get_name();
-							this.dataParsed.playlistFeatures.get(featureName)
-									.addRow(i, name);
-						}
-						break;
-					}
-
-					case N_TRACKS: {
-						if (playlist.get_num_tracks() != null) {
-							this.dataParsed.playlistFeatures.get(featureName)
-									.addRow(i, new MLSparseVector(
-											new int[] { 0 },
-											new float[] {
-													playlist.get_num_tracks() },
-											null, 1));
-						}
-						break;
-					}
-
-					// case IS_COLLABORATIVE: {
-					// int collab = 0;
-					// if (playlist.get_collaborative() == true) {
-					// collab = 1;
-					// }
-					// this.dataParsed.playlistFeatures.get(featureName)
-					// .addRow(i, new MLSparseVector(new int[] { 0 },
-					// new float[] { collab }, null, 1));
-					// break;
-					// }
-					//
-					// case MODIFIED_AT: {
-					// this.dataParsed.playlistFeatures.get(featureName)
-					// .addRow(i, new MLSparseVector(new int[] { 0 },
-					// new float[] { TimeUnit.MILLISECONDS
-					// .toHours(playlist
-					// .get_modified_at()) },
-					// null, 1));
-					// break;
-					// }
-					//
-					// case N_FOLLOWERS: {
-					// this.dataParsed.playlistFeatures.get(featureName)
-					// .addRow(i, new MLSparseVector(new int[] { 0 },
-					// new float[] {
-					// playlist.get_num_followers() },
-					// null, 1));
-					// break;
-					// }
-					//
-					// case N_EDITS: {
-					// this.dataParsed.playlistFeatures.get(featureName)
-					// .addRow(i, new MLSparseVector(new int[] { 0 },
-					// new float[] {
-					// playlist.get_num_edits() },
-					// null, 1));
-					// break;
-					// }
-				}
-			}
+		IntStream.range(0, nPlaylists).parallel().forEach(i -> {
+			this.dataParsed.playlistIds[i] = playlists.getPid(i);
+			rows[i] = this.getInteractionRow(playlists, i, i, nSongs);
+			this.addPlaylistFeatures(playlists, i, i);
 
 			int curCount = count.incrementAndGet();
 			if (curCount % 100_000 == 0) {
 				timer.tocLoop(curCount);
 			}
-			// });
-		}
+		});
 		timer.tocLoop(count.get());
 
 		for (PlaylistFeature featureName : PlaylistFeature.values()) {
@@ -227,7 +377,8 @@ public class ParsedDataLoader {
 	public void loadSongs() {
 		MLTimer timer = new MLTimer("loadSongs");
 		timer.tic();
-		int nSongs = this.dataLoaded.songs.length;
+		SongTable songs = this.dataLoaded.songs;
+		int nSongs = songs.getNSongs();
 
 		// init song feature matrices
 		this.dataParsed.songFeatures = new HashMap<SongFeature, MLSparseFeature>();
@@ -238,7 +389,8 @@ public class ParsedDataLoader {
 			MLTextTransform[] textTransforms;
 			switch (featureName) {
 				case TRACK_NAME: {
-					// tokenize song name
+					// tokenize song name, track names are mostly unique so
+					// tokens are not cached
 					textTransforms = new MLTextTransform[] {
 							new MLTextTransform.LuceneAnalyzerTextTransform(
 									new MLTextTransform.DefaultAnalyzer()) };
@@ -255,52 +407,24 @@ public class ParsedDataLoader {
 			this.dataParsed.songFeatures.put(featureName, feature);
 		}
 
+		// artist and album ids are already dictionary encoded in song table
+		this.dataParsed.songFeatures.get(SongFeature.ARTIST_ID)
+				.setCategories(songs.getArtistUris());
+		this.dataParsed.songFeatures.get(SongFeature.ALBUM_ID)
+				.setCategories(songs.getAlbumUris());
+
 		AtomicInteger count = new AtomicInteger(0);
 		this.dataParsed.songIds = new String[nSongs];
-		// IntStream.range(0, nSongs).parallel()(i -> {
-		for (int i = 0; i < nSongs; i++) {
-			Song song = this.dataLoaded.songs[i];
-			this.dataParsed.songIds[i] = song.get_track_uri();
-
-			// add song features
-			for (SongFeature featureName : SongFeature.values()) {
-				switch (featureName) {
-					case ARTIST_ID: {
-						this.dataParsed.songFeatures.get(featureName).addRow(i,
-								new String[] { song.get_artist_uri() });
-						break;
-					}
-
-					case ALBUM_ID: {
-						this.dataParsed.songFeatures.get(featureName).addRow(i,
-								new String[] { song.get_album_uri() });
-						break;
-					}
-
-					case TRACK_NAME: {
-						this.dataParsed.songFeatures.get(featureName).addRow(i,
-								song.get_track_name());
-						break;
-					}
+		IntStream.range(0, nSongs).parallel().forEach(i -> {
+			this.dataParsed.songIds[i] = songs.getTrackUri(i);
 
-					case DURATION: {
-						this.dataParsed.songFeatures.get(featureName).addRow(i,
-								new MLSparseVector(new int[] { 0 },
-										new float[] { TimeUnit.MILLISECONDS
-												.toSeconds(song
-														.get_duration_ms()) },
-										null, 1));
-						break;
-					}
-				}
-			}
+			this.addSongFeatures(songs, i, i, false);
 
 			int cur = count.incrementAndGet();
 			if (cur % 100_000 == 0) {
 				timer.tocLoop(cur);
 			}
-		}
-		// });
+		});
 		timer.tocLoop(count.get());
 
 		for (SongFeature featureName : SongFeature.values()) {
@@ -314,70 +438,38 @@ public class ParsedDataLoader {
 		MLTimer timer = new MLTimer("loadSongExtraInfo");
 		timer.tic();
 
-		Map<String, Integer> songToIndexMap = new HashMap<String, Integer>();
-		for (int i = 0; i < this.dataParsed.songIds.length; i++) {
-			songToIndexMap.put(this.dataParsed.songIds[i], i);
-		}
+		// audio features are kept in a dense store, sparse features are
+		// derived from it with one flat row per song
+		SongAudioFeatures audio = SongAudioFeatures.load(inFile,
+				this.dataParsed.songIds);
+		this.dataParsed.songAudioFeatures = audio;
+		timer.toc("audio features parsed");
 
+		int nSongs = audio.getNSongs();
 		this.dataParsed.songExtraInfoFeatures = new HashMap<SongExtraInfoFeature, MLSparseFeature>();
 		for (SongExtraInfoFeature featureName : SongExtraInfoFeature.values()) {
 			MLFeatureTransform[] featTransforms = new MLFeatureTransform[] {
 					new MLFeatureTransform.ColSelectorTransform(1_000) };
 
-			MLSparseFeature feature = new MLSparseFeature(
-					this.dataParsed.songIds.length, null, featTransforms,
-					MLSparseMatrixAOO.class);
+			MLSparseFeature feature = new MLSparseFeature(nSongs, null,
+					featTransforms, MLSparseMatrixFlat.class);
 			this.dataParsed.songExtraInfoFeatures.put(featureName, feature);
 		}
 
-		JSONParser parser = new JSONParser(JSONParser.USE_INTEGER_STORAGE);
-		AtomicInteger count = new AtomicInteger(0);
-		try (BufferedReader reader = new BufferedReader(
-				new FileReader(inFile))) {
-			JSONArray parsed = (JSONArray) parser.parse(reader);
-			for (Object element : parsed) {
-				if (element == null
-						|| ((JSONObject) element).containsKey("uri") == false) {
-					continue;
-				}
-
-				String songId = ((JSONObject) element).getAsString("uri");
-				int songIndex = songToIndexMap.get(songId);
-
-				int cur = count.incrementAndGet();
-				if (cur % 100_000 == 0) {
-					timer.tocLoop(cur);
-				}
-
-				for (SongExtraInfoFeature feature : SongExtraInfoFeature
-						.values()) {
-					if (((JSONObject) element)
-							.containsKey(feature.name()) == false
-							|| ((JSONObject) element)
-									.get(feature.name()) == null) {
-						continue;
-					}
-
-					if (feature.equals(SongExtraInfoFeature.key) == true) {
-						this.dataParsed.songExtraInfoFeatures.get(feature)
-								.addRow(songIndex,
-										((JSONObject) element)
-												.getAsNumber(feature.name())
-												.intValue() + "");
-
-					} else {
-						float value = ((JSONObject) element)
-								.getAsNumber(feature.name()).floatValue();
-						this.dataParsed.songExtraInfoFeatures.get(feature)
-								.addRow(songIndex,
-										new MLSparseVector(new int[] { 0 },
-												new float[] { value }, null,
-												1));
-					}
-				}
-			}
+		// songs are added in parallel by index so register key categories
+		// in file order first, this keeps the original category indexes
+		int[] keyOrder = audio.getKeyOrder();
+		String[] keyCats = new String[keyOrder.length];
+		for (int i = 0; i < keyOrder.length; i++) {
+			keyCats[i] = keyOrder[i] + "";
 		}
-		timer.tocLoop(count.get());
+		this.dataParsed.songExtraInfoFeatures.get(SongExtraInfoFeature.key)
+				.setCategories(keyCats);
+
+		IntStream.range(0, nSongs).parallel().forEach(i -> {
+			this.addSongExtraInfoFeatures(audio, i);
+		});
+		timer.toc("audio features added");
 
 		for (SongExtraInfoFeature featureName : SongExtraInfoFeature.values()) {
 			// finalize feature, apply transforms but preserve original data
@@ -0,0 +1,113 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import common.MLSnapshotReader;
+import common.MLSnapshotWriter;
+import common.MLSparseFeature;
+import common.MLTimer;
+import main.ParsedData.PlaylistFeature;
+import main.ParsedData.SongExtraInfoFeature;
+import main.ParsedData.SongFeature;
+
+public class ParsedDataSnapshot {
+
+	public static ParsedData read(final String inFile) throws IOException {
+		MLTimer timer = new MLTimer("ParsedDataSnapshot.read");
+		timer.tic();
+
+		ParsedData data = new ParsedData();
+		try (MLSnapshotReader reader = new MLSnapshotReader(inFile)) {
+			data.inputFiles = reader.readStringArray();
+			data.songIds = reader.readStringArray();
+			data.playlistIds = reader.readStringArray();
+			data.testIndexes = reader.readIntArray();
+			data.interactions = reader.readMatrix();
+			timer.toc("interactions read");
+
+			data.playlistFeatures = readFeatures(reader,
+					PlaylistFeature.class);
+			data.songFeatures = readFeatures(reader, SongFeature.class);
+			data.songExtraInfoFeatures = readFeatures(reader,
+					SongExtraInfoFeature.class);
+			if (reader.readBoolean() == true) {
+				data.songAudioFeatures = SongAudioFeatures.readSnapshot(reader);
+			}
+		}
+		timer.toc("snapshot read " + inFile);
+		return data;
+	}
+
+	public static String[] readInputFiles(final String inFile)
+			throws IOException {
+		// input files stored in snapshot, null if there is no snapshot or
+		// it was written in another format version
+		if (new File(inFile).exists() == false) {
+			return null;
+		}
+		try (MLSnapshotReader reader = new MLSnapshotReader(inFile)) {
+			return reader.readStringArray();
+		} catch (IllegalStateException e) {
+			return null;
+		}
+	}
+
+	public static void write(final ParsedData data, final String outFile)
+			throws IOException {
+		MLTimer timer = new MLTimer("ParsedDataSnapshot.write");
+		timer.tic();
+
+		try (MLSnapshotWriter writer = new MLSnapshotWriter(outFile)) {
+			writer.writeStringArray(data.inputFiles);
+			writer.writeStringArray(data.songIds);
+			writer.writeStringArray(data.playlistIds);
+			writer.writeIntArray(data.testIndexes);
+			writer.writeMatrix(data.interactions);
+
+			writeFeatures(writer, data.playlistFeatures);
+			writeFeatures(writer, data.songFeatures);
+			writeFeatures(writer, data.songExtraInfoFeatures);
+			writer.writeBoolean(data.songAudioFeatures != null);
+			if (data.songAudioFeatures != null) {
+				data.songAudioFeatures.writeSnapshot(writer);
+			}
+			writer.commit();
+		}
+		timer.toc("snapshot written " + outFile);
+	}
+
+	private static <E extends Enum<E>> Map<E, MLSparseFeature> readFeatures(
+			final MLSnapshotReader reader, final Class<E> enumClass)
+			throws IOException {
+		int nFeatures = reader.readInt();
+		if (nFeatures < 0) {
+			return null;
+		}
+
+		Map<E, MLSparseFeature> features = new HashMap<E, MLSparseFeature>();
+		for (int i = 0; i < nFeatures; i++) {
+			E featureName = Enum.valueOf(enumClass, reader.readString());
+			features.put(featureName, MLSparseFeature.readSnapshot(reader));
+		}
+		return features;
+	}
+
+	private static <E extends Enum<E>> void writeFeatures(
+			final MLSnapshotWriter writer,
+			final Map<E, MLSparseFeature> features) throws IOException {
+		if (features == null) {
+			writer.writeInt(-1);
+			return;
+		}
+
+		writer.writeInt(features.size());
+		for (Map.Entry<E, MLSparseFeature> entry : features.entrySet()) {
+			writer.writeString(entry.getKey().name());
+			entry.getValue().writeSnapshot(writer);
+		}
+	}
+
+}
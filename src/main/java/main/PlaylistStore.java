@@ -0,0 +1,255 @@
+package main;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+public class PlaylistStore implements Serializable {
+
+	private static final long serialVersionUID = 3542158804371694105L;
+	private static final int INIT_CAPACITY = 1 << 10;
+
+	// marks metadata that was not present in the json
+	public static final int MISSING = -1;
+
+	// per playlist metadata columns
+	private int nPlaylists;
+	private String[] pids;
+	private String[] names;
+	private byte[] collaborative;
+	private long[] modifiedAt;
+	private int[] numAlbums;
+	private int[] numTracks;
+	private int[] numFollowers;
+	private int[] numEdits;
+	private int[] durationMs;
+	private int[] numArtists;
+
+	// tracks in CSR format, tracks of playlist i are stored in
+	// [offsets[i], offsets[i + 1])
+	private int[] offsets;
+	private int nTracks;
+	private int[] songIndexes;
+	private int[] songPos;
+
+	public PlaylistStore() {
+		this.nPlaylists = 0;
+		this.pids = new String[INIT_CAPACITY];
+		this.names = new String[INIT_CAPACITY];
+		this.collaborative = new byte[INIT_CAPACITY];
+		this.modifiedAt = new long[INIT_CAPACITY];
+		this.numAlbums = new int[INIT_CAPACITY];
+		this.numTracks = new int[INIT_CAPACITY];
+		this.numFollowers = new int[INIT_CAPACITY];
+		this.numEdits = new int[INIT_CAPACITY];
+		this.durationMs = new int[INIT_CAPACITY];
+		this.numArtists = new int[INIT_CAPACITY];
+
+		this.offsets = new int[INIT_CAPACITY + 1];
+		this.nTracks = 0;
+		this.songIndexes = new int[INIT_CAPACITY];
+		this.songPos = new int[INIT_CAPACITY];
+	}
+
+	public int addPlaylist() {
+		if (this.nPlaylists == this.pids.length) {
+			int capacity = Math.max(INIT_CAPACITY, this.pids.length * 2);
+			this.pids = Arrays.copyOf(this.pids, capacity);
+			this.names = Arrays.copyOf(this.names, capacity);
+			this.collaborative = Arrays.copyOf(this.collaborative, capacity);
+			this.modifiedAt = Arrays.copyOf(this.modifiedAt, capacity);
+			this.numAlbums = Arrays.copyOf(this.numAlbums, capacity);
+			this.numTracks = Arrays.copyOf(this.numTracks, capacity);
+			this.numFollowers = Arrays.copyOf(this.numFollowers, capacity);
+			this.numEdits = Arrays.copyOf(this.numEdits, capacity);
+			this.durationMs = Arrays.copyOf(this.durationMs, capacity);
+			this.numArtists = Arrays.copyOf(this.numArtists, capacity);
+			this.offsets = Arrays.copyOf(this.offsets, capacity + 1);
+		}
+
+		int playlistIndex = this.nPlaylists;
+		this.collaborative[playlistIndex] = MISSING;
+		this.modifiedAt[playlistIndex] = MISSING;
+		this.numAlbums[playlistIndex] = MISSING;
+		this.numTracks[playlistIndex] = MISSING;
+		this.numFollowers[playlistIndex] = MISSING;
+		this.numEdits[playlistIndex] = MISSING;
+		this.durationMs[playlistIndex] = MISSING;
+		this.numArtists[playlistIndex] = MISSING;
+		this.offsets[playlistIndex + 1] = this.nTracks;
+		this.nPlaylists++;
+
+		return playlistIndex;
+	}
+
+	public void addTrack(final int songIndex, final int pos) {
+		// tracks are always added to the last playlist
+		if (this.nPlaylists == 0) {
+			throw new IllegalStateException("no playlist to add track to");
+		}
+
+		if (this.nTracks == this.songIndexes.length) {
+			int capacity = Math.max(INIT_CAPACITY,
+					this.songIndexes.length * 2);
+			this.songIndexes = Arrays.copyOf(this.songIndexes, capacity);
+			this.songPos = Arrays.copyOf(this.songPos, capacity);
+		}
+		this.songIndexes[this.nTracks] = songIndex;
+		this.songPos[this.nTracks] = pos;
+		this.nTracks++;
+		this.offsets[this.nPlaylists] = this.nTracks;
+	}
+
+	public void append(final PlaylistStore other, final int[] songRemap) {
+		// append all playlists from other store, song indexes are mapped
+		// through songRemap
+		for (int i = 0; i < other.nPlaylists; i++) {
+			int playlistIndex = this.addPlaylist();
+			this.pids[playlistIndex] = other.pids[i];
+			this.names[playlistIndex] = other.names[i];
+			this.collaborative[playlistIndex] = other.collaborative[i];
+			this.modifiedAt[playlistIndex] = other.modifiedAt[i];
+			this.numAlbums[playlistIndex] = other.numAlbums[i];
+			this.numTracks[playlistIndex] = other.numTracks[i];
+			this.numFollowers[playlistIndex] = other.numFollowers[i];
+			this.numEdits[playlistIndex] = other.numEdits[i];
+			this.durationMs[playlistIndex] = other.durationMs[i];
+			this.numArtists[playlistIndex] = other.numArtists[i];
+
+			for (int j = other.offsets[i]; j < other.offsets[i + 1]; j++) {
+				this.addTrack(songRemap[other.songIndexes[j]],
+						other.songPos[j]);
+			}
+		}
+	}
+
+	public int getCollaborative(final int playlistIndex) {
+		// 1 if collaborative, 0 if not and MISSING if not present
+		return this.collaborative[playlistIndex];
+	}
+
+	public int getDurationMs(final int playlistIndex) {
+		return this.durationMs[playlistIndex];
+	}
+
+	public long getModifiedAt(final int playlistIndex) {
+		return this.modifiedAt[playlistIndex];
+	}
+
+	public String getName(final int playlistIndex) {
+		return this.names[playlistIndex];
+	}
+
+	public int getNPlaylists() {
+		return this.nPlaylists;
+	}
+
+	public int getNTracks() {
+		return this.nTracks;
+	}
+
+	public int getNTracks(final int playlistIndex) {
+		return this.offsets[playlistIndex + 1] - this.offsets[playlistIndex];
+	}
+
+	public int getNumAlbums(final int playlistIndex) {
+		return this.numAlbums[playlistIndex];
+	}
+
+	public int getNumArtists(final int playlistIndex) {
+		return this.numArtists[playlistIndex];
+	}
+
+	public int getNumEdits(final int playlistIndex) {
+		return this.numEdits[playlistIndex];
+	}
+
+	public int getNumFollowers(final int playlistIndex) {
+		return this.numFollowers[playlistIndex];
+	}
+
+	public int getNumTracks(final int playlistIndex) {
+		return this.numTracks[playlistIndex];
+	}
+
+	public String getPid(final int playlistIndex) {
+		return this.pids[playlistIndex];
+	}
+
+	public int getSongIndex(final int trackIndex) {
+		return this.songIndexes[trackIndex];
+	}
+
+	public int getSongPos(final int trackIndex) {
+		return this.songPos[trackIndex];
+	}
+
+	public int getTrackEnd(final int playlistIndex) {
+		return this.offsets[playlistIndex + 1];
+	}
+
+	public int getTrackStart(final int playlistIndex) {
+		return this.offsets[playlistIndex];
+	}
+
+	public void setCollaborative(final int playlistIndex,
+			final boolean value) {
+		this.collaborative[playlistIndex] = value == true ? (byte) 1
+				: (byte) 0;
+	}
+
+	public void setDurationMs(final int playlistIndex, final int value) {
+		this.durationMs[playlistIndex] = value;
+	}
+
+	public void setModifiedAt(final int playlistIndex, final long value) {
+		this.modifiedAt[playlistIndex] = value;
+	}
+
+	public void setName(final int playlistIndex, final String value) {
+		this.names[playlistIndex] = value;
+	}
+
+	public void setNumAlbums(final int playlistIndex, final int value) {
+		this.numAlbums[playlistIndex] = value;
+	}
+
+	public void setNumArtists(final int playlistIndex, final int value) {
+		this.numArtists[playlistIndex] = value;
+	}
+
+	public void setNumEdits(final int playlistIndex, final int value) {
+		this.numEdits[playlistIndex] = value;
+	}
+
+	public void setNumFollowers(final int playlistIndex, final int value) {
+		this.numFollowers[playlistIndex] = value;
+	}
+
+	public void setNumTracks(final int playlistIndex, final int value) {
+		this.numTracks[playlistIndex] = value;
+	}
+
+	public void setPid(final int playlistIndex, final String value) {
+		this.pids[playlistIndex] = value;
+	}
+
+	public void trim() {
+		// release unused capacity once loading is done
+		this.pids = Arrays.copyOf(this.pids, this.nPlaylists);
+		this.names = Arrays.copyOf(this.names, this.nPlaylists);
+		this.collaborative = Arrays.copyOf(this.collaborative,
+				this.nPlaylists);
+		this.modifiedAt = Arrays.copyOf(this.modifiedAt, this.nPlaylists);
+		this.numAlbums = Arrays.copyOf(this.numAlbums, this.nPlaylists);
+		this.numTracks = Arrays.copyOf(this.numTracks, this.nPlaylists);
+		this.numFollowers = Arrays.copyOf(this.numFollowers, this.nPlaylists);
+		this.numEdits = Arrays.copyOf(this.numEdits, this.nPlaylists);
+		this.durationMs = Arrays.copyOf(this.durationMs, this.nPlaylists);
+		this.numArtists = Arrays.copyOf(this.numArtists, this.nPlaylists);
+		this.offsets = Arrays.copyOf(this.offsets, this.nPlaylists + 1);
+
+		this.songIndexes = Arrays.copyOf(this.songIndexes, this.nTracks);
+		this.songPos = Arrays.copyOf(this.songPos, this.nTracks);
+	}
+
+}
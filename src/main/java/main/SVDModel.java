@@ -3,9 +3,9 @@ package main;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.IntStream;
 
-import common.MLDenseVector;
 import common.MLSparseMatrix;
 import common.MLSparseMatrixAOO;
+import common.MLSparseMatrixBuilder;
 import common.MLSparseVector;
 import common.MLTimer;
 import common.SplitterCF;
@@ -53,11 +53,10 @@ public class SVDModel {
 				return;
 			}
 
-			MLDenseVector rowAvg = getRowAvg(playlistNames, song.getIndexes(),
-					false);
-			MLSparseVector rowAvgSparse = rowAvg.toSparse();
-			if (rowAvgSparse.getIndexes() != null) {
-				rowsNames[songIndex] = rowAvgSparse;
+			MLSparseVector rowSum = getRowSum(playlistNames,
+					song.getIndexes());
+			if (rowSum.getIndexes() != null) {
+				rowsNames[songIndex] = rowSum;
 			}
 		});
 
@@ -135,12 +134,11 @@ public class SVDModel {
 						return;
 					}
 
-					MLDenseVector rowAvg = getRowAvg(songAlbums,
-							playlist.getIndexes(), false);
-					MLSparseVector rowAvgSparse = rowAvg.toSparse();
-					if (rowAvgSparse.getIndexes() != null) {
+					MLSparseVector rowSum = getRowSum(songAlbums,
+							playlist.getIndexes());
+					if (rowSum.getIndexes() != null) {
 						rowsAlbums[playlistIndex
-								+ Rtrain.getNCols()] = rowAvgSparse;
+								+ Rtrain.getNCols()] = rowSum;
 					}
 				});
 
@@ -203,12 +201,11 @@ public class SVDModel {
 						return;
 					}
 
-					MLDenseVector rowAvg = getRowAvg(songArtists,
-							playlist.getIndexes(), false);
-					MLSparseVector rowAvgSparse = rowAvg.toSparse();
-					if (rowAvgSparse.getIndexes() != null) {
+					MLSparseVector rowSum = getRowSum(songArtists,
+							playlist.getIndexes());
+					if (rowSum.getIndexes() != null) {
 						rowsArtist[playlistIndex
-								+ Rtrain.getNCols()] = rowAvgSparse;
+								+ Rtrain.getNCols()] = rowSum;
 					}
 				});
 
@@ -233,33 +230,23 @@ public class SVDModel {
 		this.latents.artist = svd.Q;
 	}
 
-	public static MLDenseVector getRowAvg(final MLSparseMatrix R,
-			final int[] rowIndices, final boolean normalize) {
-		float[] rowAvg = new float[R.getNCols()];
-		int count = 0;
-		for (int colIndex : rowIndices) {
-			MLSparseVector row = R.getRow(colIndex);
-			// count++;
-			if (row == null) {
-				continue;
-			}
-			count++;
-
-			int[] indexes = row.getIndexes();
-			float[] values = row.getValues();
-
-			for (int i = 0; i < indexes.length; i++) {
-				rowAvg[indexes[i]] += values[i];
-			}
+	public static MLSparseVector getRowSum(final MLSparseMatrix R,
+			final int[] rowIndices) {
+		// sum of the given rows, duplicate columns are merged by the
+		// builder instead of accumulating into a dense vector
+		int nnz = 0;
+		for (int rowIndex : rowIndices) {
+			nnz += R.getRowLength(rowIndex);
 		}
 
-		if (normalize == true && count > 1) {
-			for (int i = 0; i < rowAvg.length; i++) {
-				rowAvg[i] = rowAvg[i] / count;
-			}
+		int[] indexes = new int[nnz];
+		float[] values = new float[nnz];
+		int cur = 0;
+		for (int rowIndex : rowIndices) {
+			cur += R.copyRow(rowIndex, indexes, values, cur);
 		}
-
-		return new MLDenseVector(rowAvg);
+		return MLSparseMatrixBuilder.buildRow(indexes, values, null, 0, nnz,
+				R.getNCols(), false);
 	}
 
 }
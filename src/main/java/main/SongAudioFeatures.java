@@ -0,0 +1,175 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import common.MLJsonStreamReader;
+import common.MLSnapshotReader;
+import common.MLSnapshotWriter;
+import common.MLStringDictionary;
+import main.ParsedData.SongExtraInfoFeature;
+
+public class SongAudioFeatures implements Serializable {
+
+	private static final long serialVersionUID = -4617046385419357286L;
+	private static final SongExtraInfoFeature[] FEATURES = SongExtraInfoFeature
+			.values();
+
+	private int nSongs;
+	// one dense column per feature indexed by song
+	private float[][] values;
+	// bit per song set if the feature value is present
+	private long[][] present;
+	// distinct key values in the order they first appear in the loaded
+	// file, null if not loaded from file
+	private transient int[] keyOrder;
+
+	public SongAudioFeatures(final int nSongsP) {
+		this.nSongs = nSongsP;
+		this.values = new float[FEATURES.length][nSongsP];
+		this.present = new long[FEATURES.length][getNWords(nSongsP)];
+	}
+
+	public int[] getKeyOrder() {
+		return this.keyOrder;
+	}
+
+	public int getNSongs() {
+		return this.nSongs;
+	}
+
+	private static int getNWords(final int nBits) {
+		return (nBits + 63) >>> 6;
+	}
+
+	public float getValue(final SongExtraInfoFeature feature,
+			final int songIndex) {
+		return this.values[feature.ordinal()][songIndex];
+	}
+
+	public void grow(final int nSongsP) {
+		// new songs have all features missing
+		if (nSongsP < this.nSongs) {
+			throw new IllegalArgumentException(
+					"nSongsP must be >= " + this.nSongs);
+		}
+		for (int i = 0; i < FEATURES.length; i++) {
+			this.values[i] = Arrays.copyOf(this.values[i], nSongsP);
+			this.present[i] = Arrays.copyOf(this.present[i],
+					getNWords(nSongsP));
+		}
+		this.nSongs = nSongsP;
+	}
+
+	public boolean hasValue(final SongExtraInfoFeature feature,
+			final int songIndex) {
+		return (this.present[feature.ordinal()][songIndex >>> 6]
+				& (1L << songIndex)) != 0;
+	}
+
+	public static SongAudioFeatures load(final String inFile,
+			final String[] songIds) throws IOException {
+		// stream through the json array of per track audio features, tracks
+		// without uri or not in songIds are skipped
+		MLStringDictionary songToIndex = new MLStringDictionary(
+				songIds.length);
+		for (int i = 0; i < songIds.length; i++) {
+			songToIndex.add(songIds[i]);
+		}
+
+		Map<String, SongExtraInfoFeature> nameToFeature = new HashMap<String, SongExtraInfoFeature>();
+		for (SongExtraInfoFeature feature : FEATURES) {
+			nameToFeature.put(feature.name(), feature);
+		}
+
+		SongAudioFeatures audio = new SongAudioFeatures(songIds.length);
+		float[] trackValues = new float[FEATURES.length];
+		boolean[] trackPresent = new boolean[FEATURES.length];
+		int keyFeature = SongExtraInfoFeature.key.ordinal();
+		LinkedHashSet<Integer> keyOrder = new LinkedHashSet<Integer>();
+		try (MLJsonStreamReader reader = new MLJsonStreamReader(
+				new BufferedReader(new FileReader(inFile)))) {
+			reader.beginArray();
+			while (reader.hasNext() == true) {
+				if (reader.peek() == MLJsonStreamReader.Token.NULL) {
+					reader.nextNull();
+					continue;
+				}
+
+				String uri = null;
+				Arrays.fill(trackPresent, false);
+				reader.beginObject();
+				while (reader.hasNext() == true) {
+					String name = reader.nextName();
+					if (name.equals("uri") == true) {
+						uri = reader.nextString();
+						continue;
+					}
+
+					SongExtraInfoFeature feature = nameToFeature.get(name);
+					if (feature == null || reader
+							.peek() == MLJsonStreamReader.Token.NULL) {
+						reader.skipValue();
+						continue;
+					}
+					trackValues[feature.ordinal()] = (float) reader
+							.nextDouble();
+					trackPresent[feature.ordinal()] = true;
+				}
+				reader.endObject();
+
+				int songIndex = uri == null ? -1 : songToIndex.getIndex(uri);
+				if (songIndex < 0) {
+					continue;
+				}
+				for (int i = 0; i < FEATURES.length; i++) {
+					if (trackPresent[i] == true) {
+						audio.setValue(FEATURES[i], songIndex, trackValues[i]);
+					}
+				}
+				if (trackPresent[keyFeature] == true) {
+					keyOrder.add((int) trackValues[keyFeature]);
+				}
+			}
+			reader.endArray();
+		}
+		audio.keyOrder = keyOrder.stream().mapToInt(Integer::intValue)
+				.toArray();
+		return audio;
+	}
+
+	public static SongAudioFeatures readSnapshot(final MLSnapshotReader reader)
+			throws IOException {
+		SongAudioFeatures audio = new SongAudioFeatures(0);
+		audio.nSongs = reader.readInt();
+		for (int i = 0; i < FEATURES.length; i++) {
+			audio.values[i] = reader.readFloatArray();
+			audio.present[i] = reader.readLongArray();
+		}
+		return audio;
+	}
+
+	public void setValue(final SongExtraInfoFeature feature,
+			final int songIndex, final float value) {
+		// NOTE: not thread safe, songs sharing a bitmap word can't be set
+		// concurrently
+		this.values[feature.ordinal()][songIndex] = value;
+		this.present[feature.ordinal()][songIndex >>> 6] |= 1L << songIndex;
+	}
+
+	public void writeSnapshot(final MLSnapshotWriter writer)
+			throws IOException {
+		writer.writeInt(this.nSongs);
+		for (int i = 0; i < FEATURES.length; i++) {
+			writer.writeFloatArray(this.values[i]);
+			writer.writeLongArray(this.present[i]);
+		}
+	}
+
+}
@@ -0,0 +1,183 @@
+package main;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import common.MLStringDictionary;
+
+public class SongTable implements Serializable {
+
+	private static final long serialVersionUID = -2742180263375617370L;
+	private static final int INIT_CAPACITY = 1 << 10;
+
+	// per song columns, track uris also map uri to song index
+	private int nSongs;
+	private MLStringDictionary trackUris;
+	private String[] trackNames;
+	private int[] artists;
+	private int[] albums;
+	private int[] durations;
+
+	// artist and album dictionaries, codes are assigned in the order
+	// artists and albums first appear in the song table
+	private int nArtists;
+	private MLStringDictionary artistUris;
+	private String[] artistNames;
+
+	private int nAlbums;
+	private MLStringDictionary albumUris;
+	private String[] albumNames;
+
+	public SongTable() {
+		this.nSongs = 0;
+		this.trackUris = new MLStringDictionary();
+		this.trackNames = new String[INIT_CAPACITY];
+		this.artists = new int[INIT_CAPACITY];
+		this.albums = new int[INIT_CAPACITY];
+		this.durations = new int[INIT_CAPACITY];
+
+		this.nArtists = 0;
+		this.artistUris = new MLStringDictionary();
+		this.artistNames = new String[INIT_CAPACITY];
+
+		this.nAlbums = 0;
+		this.albumUris = new MLStringDictionary();
+		this.albumNames = new String[INIT_CAPACITY];
+	}
+
+	public int addSong(final SongTable other, final int songIndex) {
+		int artist = other.artists[songIndex];
+		int album = other.albums[songIndex];
+		return this.addSong(other.trackUris.get(songIndex),
+				other.trackNames[songIndex], other.artistUris.get(artist),
+				other.artistNames[artist], other.albumUris.get(album),
+				other.albumNames[album], other.durations[songIndex]);
+	}
+
+	public int addSong(final String trackUri, final String trackName,
+			final String artistUri, final String artistName,
+			final String albumUri, final String albumName,
+			final int durationMs) {
+		if (this.trackUris.add(trackUri) != this.nSongs) {
+			throw new IllegalArgumentException(
+					"song already added " + trackUri);
+		}
+		if (this.nSongs == this.trackNames.length) {
+			int capacity = Math.max(INIT_CAPACITY,
+					this.trackNames.length * 2);
+			this.trackNames = Arrays.copyOf(this.trackNames, capacity);
+			this.artists = Arrays.copyOf(this.artists, capacity);
+			this.albums = Arrays.copyOf(this.albums, capacity);
+			this.durations = Arrays.copyOf(this.durations, capacity);
+		}
+
+		int artist = this.artistUris.add(artistUri);
+		if (artist == this.nArtists) {
+			// new artist
+			if (this.nArtists == this.artistNames.length) {
+				int capacity = Math.max(INIT_CAPACITY,
+						this.artistNames.length * 2);
+				this.artistNames = Arrays.copyOf(this.artistNames, capacity);
+			}
+			this.artistNames[artist] = artistName;
+			this.nArtists++;
+		}
+
+		int album = this.albumUris.add(albumUri);
+		if (album == this.nAlbums) {
+			// new album
+			if (this.nAlbums == this.albumNames.length) {
+				int capacity = Math.max(INIT_CAPACITY,
+						this.albumNames.length * 2);
+				this.albumNames = Arrays.copyOf(this.albumNames, capacity);
+			}
+			this.albumNames[album] = albumName;
+			this.nAlbums++;
+		}
+
+		int songIndex = this.nSongs;
+		this.trackNames[songIndex] = trackName;
+		this.artists[songIndex] = artist;
+		this.albums[songIndex] = album;
+		this.durations[songIndex] = durationMs;
+		this.nSongs++;
+
+		return songIndex;
+	}
+
+	public int getAlbum(final int songIndex) {
+		return this.albums[songIndex];
+	}
+
+	public String getAlbumName(final int album) {
+		return this.albumNames[album];
+	}
+
+	public String getAlbumUri(final int album) {
+		return this.albumUris.get(album);
+	}
+
+	public String[] getAlbumUris() {
+		return this.albumUris.toArray();
+	}
+
+	public int getArtist(final int songIndex) {
+		return this.artists[songIndex];
+	}
+
+	public String getArtistName(final int artist) {
+		return this.artistNames[artist];
+	}
+
+	public String getArtistUri(final int artist) {
+		return this.artistUris.get(artist);
+	}
+
+	public String[] getArtistUris() {
+		return this.artistUris.toArray();
+	}
+
+	public int getDurationMs(final int songIndex) {
+		return this.durations[songIndex];
+	}
+
+	public int getNAlbums() {
+		return this.nAlbums;
+	}
+
+	public int getNArtists() {
+		return this.nArtists;
+	}
+
+	public int getNSongs() {
+		return this.nSongs;
+	}
+
+	public int getSongIndex(final String trackUri) {
+		// returns -1 if song is not in this table
+		return this.trackUris.getIndex(trackUri);
+	}
+
+	public String getTrackName(final int songIndex) {
+		return this.trackNames[songIndex];
+	}
+
+	public String getTrackUri(final int songIndex) {
+		return this.trackUris.get(songIndex);
+	}
+
+	public void trim() {
+		// release unused capacity once loading is done
+		this.trackUris.trim();
+		this.trackNames = Arrays.copyOf(this.trackNames, this.nSongs);
+		this.artists = Arrays.copyOf(this.artists, this.nSongs);
+		this.albums = Arrays.copyOf(this.albums, this.nSongs);
+		this.durations = Arrays.copyOf(this.durations, this.nSongs);
+
+		this.artistUris.trim();
+		this.artistNames = Arrays.copyOf(this.artistNames, this.nArtists);
+		this.albumUris.trim();
+		this.albumNames = Arrays.copyOf(this.albumNames, this.nAlbums);
+	}
+
+}
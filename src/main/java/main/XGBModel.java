@@ -24,9 +24,11 @@ import common.FloatElement;
 import common.MLConcurrentUtils.Async;
 import common.MLDenseMatrix;
 import common.MLDenseVector;
+import common.MLSparseAccumulator;
 import common.MLSparseFeature;
 import common.MLSparseMatrix;
 import common.MLSparseMatrixAOO;
+import common.MLSparseMatrixCSR;
 import common.MLSparseVector;
 import common.MLTimer;
 import common.MLXGBoost;
@@ -87,19 +89,21 @@ public class XGBModel {
 				new EvaluatorClicks(new int[] { 500 }) };
 
 		this.R = this.split.getRstrain().get(ParsedData.INTERACTION_KEY);
-		this.Rt = this.R.transpose();
+		// Rt is only read so it's kept in packed csr format if it fits
+		this.Rt = MLSparseMatrixCSR.fromTranspose(this.R);
 		timer.toc("Rt done");
 
 		// feature extractor
 		if (this.params.doCreative == true) {
 			this.featureExtractor = new FeatureExtractor(
 					this.data.playlistFeatures, this.data.songFeatures,
-					this.data.songExtraInfoFeatures, this.R, this.Rt,
-					this.latents, timer);
+					this.data.songExtraInfoFeatures,
+					this.data.songAudioFeatures, this.R, this.Rt, this.latents,
+					timer);
 		} else {
 			this.featureExtractor = new FeatureExtractor(
 					this.data.playlistFeatures, this.data.songFeatures, null,
-					this.R, this.Rt, this.latents, timer);
+					null, this.R, this.Rt, this.latents, timer);
 		}
 		timer.toc("featureExtractor init done");
 
@@ -144,19 +148,14 @@ public class XGBModel {
 				int batchEnd = Math.min((batch + 1) * batchSize,
 						validRowIndexes.length);
 
-				int[] batchIndexes = new int[batchEnd - batchStart];
-				for (int i = batchStart; i < batchEnd; i++) {
-					batchIndexes[i - batchStart] = validRowIndexes[i];
-				}
-
-				IntStream.range(0, batchIndexes.length).parallel()
+				IntStream.range(batchStart, batchEnd).parallel()
 						.forEach(index -> {
 							int cur = rowCounter.incrementAndGet();
 							if (cur % 10_000 == 0) {
 								timer.tocLoop("extractFeatures", cur);
 							}
 
-							int rowIndex = batchIndexes[index];
+							int rowIndex = validRowIndexes[index];
 							MLSparseVector validRow = Rvalid.getRow(rowIndex);
 							if (validRow == null) {
 								return;
@@ -355,6 +354,17 @@ public class XGBModel {
 				.ceil(((double) targetRowIndexes.length / batchSize));
 
 		final float[] WEIGHTS = new float[] { 0.2f, 0.15f, 0.1f, 0.15f };
+
+		// normalized user-user matrix is the same for all batches
+		MLSparseMatrix Rnorm = MLSparseMatrix.concatHorizontal(this.R,
+				this.data.playlistFeatures.get(PlaylistFeature.NAME_REGEXED)
+						.getFeatMatrix());
+		Rnorm.applyRowNorm(Rnorm.getRowNorm(2));
+		Rnorm.applyColNorm(Rnorm.getColNorm(2));
+
+		// NOTE: Rnorm can be different from R here
+		MLSparseMatrix Rnormt = Rnorm.transpose();
+
 		AtomicInteger counter = new AtomicInteger(0);
 		FloatElement[][] rankingsBlend = new FloatElement[this.R.getNRows()][];
 		for (int batch = 0; batch < nBatches; batch++) {
@@ -362,22 +372,18 @@ public class XGBModel {
 			int batchEnd = Math.min((batch + 1) * batchSize,
 					targetRowIndexes.length);
 
-			int[] batchIndexes = new int[batchEnd - batchStart];
-			for (int i = batchStart; i < batchEnd; i++) {
-				batchIndexes[i - batchStart] = targetRowIndexes[i];
-			}
-
 			FloatElement[][] rankingsUserUser = this.getRankingUserUser(
-					batchIndexes, BLEND_NCANDS, 17_000, 0.9f);
+					targetRowIndexes, batchStart, batchEnd, Rnorm, Rnormt,
+					BLEND_NCANDS, 17_000, 0.9f);
 
-			IntStream.range(0, batchIndexes.length).parallel()
+			IntStream.range(batchStart, batchEnd).parallel()
 					.forEach(index -> {
 						int count = counter.incrementAndGet();
 						if (count % 1_000 == 0) {
 							timer.tocLoop("blend", count);
 						}
 
-						int playlistIndex = batchIndexes[index];
+						int playlistIndex = targetRowIndexes[index];
 						MLSparseVector row = this.R.getRow(playlistIndex);
 
 						// compute all the scores
@@ -472,30 +478,26 @@ public class XGBModel {
 	}
 
 	private FloatElement[][] getRankingUserUser(final int[] playlistIndexes,
-			final int nItems, final int topK, final float beta) {
-
-		MLSparseMatrix Rnorm = MLSparseMatrix.concatHorizontal(this.R,
-				this.data.playlistFeatures.get(PlaylistFeature.NAME_REGEXED)
-						.getFeatMatrix());
-		Rnorm.applyRowNorm(Rnorm.getRowNorm(2));
-		Rnorm.applyColNorm(Rnorm.getColNorm(2));
+			final int start, final int end, final MLSparseMatrix Rnorm,
+			final MLSparseMatrix Rnormt, final int nItems, final int topK,
+			final float beta) {
 
+		// only playlistIndexes[start, end) are ranked
 		FloatElement[][] rankingsLatent = EvaluatorCF.getRankingsNative(
 				this.split.getRstrain().get(ParsedData.INTERACTION_KEY),
-				playlistIndexes, this.split.getValidColIndexes(),
+				playlistIndexes, start, end, this.split.getValidColIndexes(),
 				this.latents.U, this.latents.V, nItems, 500);
 
-		// NOTE: Rnorm can be different from R here
-		MLSparseMatrix Rnormt = Rnorm.transpose();
-
 		MLDenseVector popularVec = this.R.getColSum();
 		popularVec.scalarDivide(popularVec.sum());
 		float[] popularity = popularVec.getValues();
 
+		Async<MLSparseAccumulator> accumulators = new Async<>(
+				() -> new MLSparseAccumulator(Rnorm.getNRows()), null);
 		FloatElement[][] rankings = new FloatElement[this.R.getNRows()][];
 		AtomicInteger counter = new AtomicInteger(0);
 		AtomicInteger counterBackfilled = new AtomicInteger(0);
-		IntStream.range(0, playlistIndexes.length).parallel().forEach(index -> {
+		IntStream.range(start, end).parallel().forEach(index -> {
 			int count = counter.incrementAndGet();
 			if (count % 5_000 == 0) {
 				timer.tocLoop("inferenceUserUser", count);
@@ -504,28 +506,26 @@ public class XGBModel {
 			int rowIndex = playlistIndexes[index];
 			MLSparseVector trainRowNorm = Rnorm.getRow(rowIndex);
 
-			// get indexes of all playlists that intersect with current
-			Set<Integer> playlistIntersect = new HashSet<Integer>();
-			for (int songIndex : trainRowNorm.getIndexes()) {
-				MLSparseVector row = Rnormt.getRow(songIndex);
-				if (row == null) {
-					continue;
-				}
-				for (int playlistIndex : row.getIndexes()) {
-					playlistIntersect.add(playlistIndex);
-				}
+			// compute user-user score for all playlists that intersect with
+			// current, only topK highest scores are kept
+			MLSparseAccumulator accumulator = accumulators.get();
+			int[] trainIndexes = trainRowNorm.getIndexes();
+			float[] trainValues = trainRowNorm.getValues();
+			for (int i = 0; i < trainIndexes.length; i++) {
+				float scale = trainValues[i];
+				Rnormt.forEachNonZero(trainIndexes[i], (otherIndex,
+						value) -> accumulator.add(otherIndex, scale * value));
 			}
-
-			// compute user-user score
-			FloatElement[] elements = new FloatElement[playlistIntersect
-					.size()];
-			int cur = 0;
-			for (int playlistIndex : playlistIntersect) {
-
-				float weight = trainRowNorm
-						.multiply(Rnorm.getRow(playlistIndex));
-				elements[cur] = new FloatElement(playlistIndex, weight);
-				cur++;
+			MLSparseVector weights = accumulator.toSparse(Rnorm.getNRows(),
+					topK);
+
+			FloatElement[] elements = new FloatElement[0];
+			if (weights.getIndexes() != null) {
+				elements = new FloatElement[weights.getIndexes().length];
+				for (int i = 0; i < elements.length; i++) {
+					elements[i] = new FloatElement(weights.getIndexes()[i],
+							weights.getValues()[i]);
+				}
 			}
 			Arrays.sort(elements, new FloatElement.ValueComparator(true));
 
@@ -549,7 +549,7 @@ public class XGBModel {
 			// back fill with latent, if necessary
 			FloatElement[] rankingLatent = rankingsLatent[rowIndex];
 			Set<Integer> indexes = new HashSet<Integer>();
-			cur = 0;
+			int cur = 0;
 
 			for (int i = 0; i < rankings[rowIndex].length; i++) {
 				FloatElement element = rankings[rowIndex][i];